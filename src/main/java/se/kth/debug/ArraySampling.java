@@ -0,0 +1,11 @@
+package se.kth.debug;
+
+/** Decides which elements of an array are collected when it is longer than asked for. */
+public enum ArraySampling {
+    /** The first non-null elements of the array. */
+    HEAD,
+    /** The last non-null elements of the array. */
+    TAIL,
+    /** Elements evenly spaced over the whole array, including the first and the last one. */
+    STRIDE,
+}
@@ -0,0 +1,93 @@
+package se.kth.debug;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import se.kth.debug.struct.FileAndBreakpoint;
+import se.kth.debug.struct.HitSampling;
+import se.kth.debug.struct.MethodForExitEvent;
+
+/**
+ * Looks up the breakpoints and the methods given as input by class. Every method exit is checked
+ * against them, so the input lists are indexed once instead of being scanned for each event.
+ */
+public class BreakpointIndex {
+    private static final Logger logger = Logger.getLogger(BreakpointIndex.class.getName());
+    private static final BitSet NO_BREAKPOINTS = new BitSet();
+
+    private final Map<String, BitSet> breakpointsByClass = new HashMap<>();
+    private final Map<String, Set<String>> methodsByClass = new HashMap<>();
+    // Sampling of the breakpoints that do not capture every hit, keyed by class and line.
+    private final Map<String, HitSampling> samplingByLine = new HashMap<>();
+    private final Set<String> classes = new LinkedHashSet<>();
+
+    public BreakpointIndex(
+            List<FileAndBreakpoint> classesAndBreakpoints,
+            List<MethodForExitEvent> methodForExitEvents) {
+        if (classesAndBreakpoints != null) {
+            for (FileAndBreakpoint classToBeDebugged : classesAndBreakpoints) {
+                String className = classToBeDebugged.getFileName();
+                classes.add(className);
+                BitSet lines = breakpointsByClass.computeIfAbsent(className, k -> new BitSet());
+                HitSampling sampling = classToBeDebugged.getSampling();
+                if (sampling != null && (sampling.getPolicy() == null || sampling.getSize() < 1)) {
+                    logger.warning(
+                            String.format(
+                                    "%s is not a valid sampling in %s, so every hit is captured",
+                                    sampling, className));
+                    sampling = null;
+                }
+                for (int lineNumber : classToBeDebugged.getBreakpoints()) {
+                    if (lineNumber < 0) {
+                        logger.warning(
+                                String.format(
+                                        "%d is not a valid breakpoint in %s",
+                                        lineNumber, className));
+                        continue;
+                    }
+                    lines.set(lineNumber);
+                    if (sampling != null) {
+                        samplingByLine.put(className + ":" + lineNumber, sampling);
+                    }
+                }
+            }
+        }
+        if (methodForExitEvents != null) {
+            for (MethodForExitEvent method : methodForExitEvents) {
+                classes.add(method.getClassName());
+                methodsByClass
+                        .computeIfAbsent(method.getClassName(), k -> new HashSet<>())
+                        .add(method.getName());
+            }
+        }
+    }
+
+    /** Returns the classes that have either breakpoints or methods whose exits are asked for. */
+    public Set<String> getClasses() {
+        return classes;
+    }
+
+    /** Returns the breakpoint lines of the class. The returned set must not be modified. */
+    public BitSet getBreakpoints(String className) {
+        return breakpointsByClass.getOrDefault(className, NO_BREAKPOINTS);
+    }
+
+    /** Returns which hits of the breakpoint are captured, or null for all of them. */
+    public HitSampling getSampling(String className, int lineNumber) {
+        return samplingByLine.get(className + ":" + lineNumber);
+    }
+
+    public boolean isBreakpoint(String className, int lineNumber) {
+        return lineNumber >= 0 && getBreakpoints(className).get(lineNumber);
+    }
+
+    public boolean isMethodExplicitlyAskedFor(String className, String methodName) {
+        Set<String> methods = methodsByClass.get(className);
+        return methods != null && methods.contains(methodName);
+    }
+}
@@ -0,0 +1,130 @@
+package se.kth.debug;
+
+import com.sun.jdi.Location;
+import com.sun.jdi.request.EventRequest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import se.kth.debug.struct.HitSampling;
+import se.kth.debug.struct.result.BreakPointContext;
+
+/**
+ * Applies the {@link HitSampling} of each breakpoint to its hits. Hits of {@link
+ * HitSampling.Policy#EVERY_NTH} are skipped by the debuggee, so only the others are counted here.
+ * The hits of a reservoir and the last hits are only known once the debuggee is done, so they are
+ * kept until {@link #drain()} and come after the other hits in the output. A reservoir only has the
+ * hits it draws captured, while every hit after the first ones has to be captured in case it is one
+ * of the last ones.
+ */
+final class BreakpointSampler {
+    private final BreakpointIndex breakpointIndex;
+    private final Map<String, Sample> samples = new LinkedHashMap<>();
+
+    BreakpointSampler(BreakpointIndex breakpointIndex) {
+        this.breakpointIndex = breakpointIndex;
+    }
+
+    /**
+     * Counts a hit of the breakpoint, and returns whether it is to be captured. The request of the
+     * hit is re-armed if the debuggee skips hits for it.
+     */
+    boolean sample(Location location, EventRequest request) {
+        HitSampling sampling =
+                breakpointIndex.getSampling(location.declaringType().name(), location.lineNumber());
+        if (sampling == null) {
+            return true;
+        }
+        if (sampling.getPolicy() == HitSampling.Policy.EVERY_NTH) {
+            // Enabling the request again resets its count filter.
+            request.disable();
+            request.enable();
+            return true;
+        }
+        return samples.computeIfAbsent(key(location), k -> new Sample(sampling)).hit();
+    }
+
+    /**
+     * Takes the captured hit of the breakpoint.
+     *
+     * @return the hit if it can be written right away, or null if it is kept until the end
+     */
+    BreakPointContext retain(Location location, BreakPointContext breakPointContext) {
+        Sample sample = samples.get(key(location));
+        return sample == null ? breakPointContext : sample.retain(breakPointContext);
+    }
+
+    /** Returns the hits kept until the end, and forgets them. */
+    List<BreakPointContext> drain() {
+        List<BreakPointContext> kept = new ArrayList<>();
+        for (Sample sample : samples.values()) {
+            sample.drainTo(kept);
+        }
+        return kept;
+    }
+
+    private static String key(Location location) {
+        return location.declaringType().name() + ":" + location.lineNumber();
+    }
+
+    private static class Sample {
+        private final HitSampling.Policy policy;
+        private final BreakPointContext[] kept;
+        // The same seed for every breakpoint and every run, so that runs on two revisions of a
+        // program pick the same hits.
+        private final Random random = new Random(0);
+        private long hits = 0;
+        // Hits can be sampled without being retained, like hits in a state seen before.
+        private long retained = 0;
+        private int slot = -1;
+
+        Sample(HitSampling sampling) {
+            policy = sampling.getPolicy();
+            kept = new BreakPointContext[sampling.getSize()];
+        }
+
+        boolean hit() {
+            hits++;
+            if (policy == HitSampling.Policy.FIRST_LAST) {
+                // Any hit after the first ones may be one of the last ones.
+                return true;
+            }
+            if (hits <= kept.length) {
+                slot = (int) hits - 1;
+                return true;
+            }
+            long drawn = (long) (random.nextDouble() * hits);
+            slot = drawn < kept.length ? (int) drawn : -1;
+            return slot >= 0;
+        }
+
+        BreakPointContext retain(BreakPointContext breakPointContext) {
+            if (policy == HitSampling.Policy.RESERVOIR) {
+                kept[slot] = breakPointContext;
+                return null;
+            }
+            retained++;
+            if (retained <= kept.length) {
+                return breakPointContext;
+            }
+            kept[(int) ((retained - kept.length - 1) % kept.length)] = breakPointContext;
+            return null;
+        }
+
+        void drainTo(List<BreakPointContext> out) {
+            int start = 0;
+            if (policy == HitSampling.Policy.FIRST_LAST && retained > 2L * kept.length) {
+                // The ring buffer has wrapped around, so its oldest hit is the next to be replaced.
+                start = (int) ((retained - kept.length) % kept.length);
+            }
+            for (int i = 0; i < kept.length; i++) {
+                BreakPointContext breakPointContext = kept[(start + i) % kept.length];
+                if (breakPointContext != null) {
+                    out.add(breakPointContext);
+                }
+                kept[(start + i) % kept.length] = null;
+            }
+        }
+    }
+}
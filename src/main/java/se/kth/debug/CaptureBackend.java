@@ -0,0 +1,13 @@
+package se.kth.debug;
+
+/** How the values are captured inside the debuggee. */
+public enum CaptureBackend {
+    /** The debuggee is suspended at every breakpoint and return, and inspected over JDWP. */
+    JDWP,
+    /**
+     * An agent inserts probes at the breakpoints and returns while the classes are loaded, and the
+     * probes capture the values without suspending the debuggee. Only the frame of the breakpoint
+     * is captured, whatever the stack trace depth, and the suspend policy does not apply.
+     */
+    AGENT,
+}
@@ -0,0 +1,151 @@
+package se.kth.debug;
+
+import com.sun.jdi.Location;
+import com.sun.jdi.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.LocalVariableData;
+import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.struct.result.RuntimeValue;
+import se.kth.debug.struct.result.StackFrameContext;
+
+/**
+ * Counts what a collection captures against the quotas of its options. A quota of zero means no
+ * quota. Hits are counted per line of a class and returns per method, so that a line or a method
+ * reached by several requests shares its quota.
+ */
+final class CaptureQuota {
+    // Bytes taken by the names of the properties of an object in compact JSON, and their
+    // punctuation.
+    private static final long ENTRY_OVERHEAD = 64;
+
+    private final int maxHitsPerLine;
+    private final int maxReturnsPerMethod;
+    private final long maxCapturedBytes;
+    private final Map<String, Integer> hitsPerLine = new HashMap<>();
+    private final Map<String, Integer> returnsPerMethod = new HashMap<>();
+    private long capturedBytes = 0;
+    private boolean isOverBudget = false;
+
+    CaptureQuota(CollectorOptions context) {
+        maxHitsPerLine = context.getMaxHitsPerLine();
+        maxReturnsPerMethod = context.getMaxReturnsPerMethod();
+        maxCapturedBytes = context.getMaxCapturedBytes();
+    }
+
+    boolean isLineExhausted(Location location) {
+        return maxHitsPerLine > 0 && hitsPerLine.getOrDefault(key(location), 0) >= maxHitsPerLine;
+    }
+
+    /** Counts a hit of the line, and returns whether the line has now reached its quota. */
+    boolean countHit(Location location) {
+        return hitsPerLine.merge(key(location), 1, Integer::sum) == maxHitsPerLine;
+    }
+
+    boolean isMethodExhausted(Method method) {
+        return maxReturnsPerMethod > 0
+                && returnsPerMethod.getOrDefault(key(method), 0) >= maxReturnsPerMethod;
+    }
+
+    /** Counts a return of the method, and returns whether the method has now reached its quota. */
+    boolean countReturn(Method method) {
+        return returnsPerMethod.merge(key(method), 1, Integer::sum) == maxReturnsPerMethod;
+    }
+
+    boolean fits(BreakPointContext breakPointContext) {
+        if (maxCapturedBytes <= 0) {
+            return true;
+        }
+        long size = ENTRY_OVERHEAD + length(breakPointContext.getFile());
+        for (StackFrameContext stackFrameContext : breakPointContext.getStackFrameContexts()) {
+            size += ENTRY_OVERHEAD + length(stackFrameContext.getLocation());
+            size += length(stackFrameContext.getStackTrace());
+            for (RuntimeValue runtimeValue : stackFrameContext.getRuntimeValueCollection()) {
+                size += estimateSize(runtimeValue);
+            }
+        }
+        return fits(size);
+    }
+
+    boolean fits(ReturnData returnData) {
+        if (maxCapturedBytes <= 0) {
+            return true;
+        }
+        long size = estimateSize(returnData) + length(returnData.getLocation());
+        size += length(returnData.getStackTrace());
+        if (returnData.getParameterValues() != null) {
+            for (LocalVariableData parameter : returnData.getParameterValues()) {
+                size += estimateSize(parameter);
+            }
+        }
+        return fits(size);
+    }
+
+    /**
+     * Adds the size of the data to the captured bytes, unless it does not fit in the budget
+     * anymore. Data that does not fit must be dropped, and nothing is captured after it.
+     */
+    private boolean fits(long size) {
+        if (isOverBudget) {
+            return false;
+        }
+        if (capturedBytes + size > maxCapturedBytes) {
+            isOverBudget = true;
+            return false;
+        }
+        capturedBytes += size;
+        return true;
+    }
+
+    /**
+     * Estimates the size of the value as compact JSON from the length of its strings, without
+     * serialising it. Characters are counted as single bytes.
+     */
+    private static long estimateSize(RuntimeValue runtimeValue) {
+        long size =
+                ENTRY_OVERHEAD
+                        + length(runtimeValue.getName())
+                        + length(runtimeValue.getType())
+                        + length(String.valueOf(runtimeValue.getValue()));
+        if (runtimeValue.getFields() != null) {
+            for (RuntimeValue field : runtimeValue.getFields()) {
+                size += estimateSize(field);
+            }
+        }
+        if (runtimeValue.getArrayElements() != null) {
+            for (RuntimeValue element : runtimeValue.getArrayElements()) {
+                size += estimateSize(element);
+            }
+        }
+        return size;
+    }
+
+    private static long length(List<String> strings) {
+        long length = 0;
+        if (strings != null) {
+            for (String string : strings) {
+                // The quotes and the comma around the string.
+                length += string.length() + 3;
+            }
+        }
+        return length;
+    }
+
+    private static long length(String string) {
+        return string == null ? 0 : string.length();
+    }
+
+    boolean isOverBudget() {
+        return isOverBudget;
+    }
+
+    private static String key(Location location) {
+        return location.declaringType().name() + ":" + location.lineNumber();
+    }
+
+    private static String key(Method method) {
+        return method.declaringType().name() + "#" + method.name() + method.signature();
+    }
+}
@@ -0,0 +1,149 @@
+package se.kth.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Makes debuggees share an archive of the classes they load while JUnit starts, so that later
+ * launches map them instead of parsing and verifying them again.
+ *
+ * <p>A JVM refuses to dump an archive when a non-empty directory is on its classpath, so the
+ * archive only holds the classes of the jars at the start of the classpath. It is dumped once per
+ * classpath by a JUnit console launcher that discovers no tests, and is named after a hash of the
+ * whole classpath in its order, with the sizes and modification times of its jars. Which jars are
+ * archived depends on that order, and so does which class of a name is loaded, so another order
+ * makes another archive, and so does changing a jar. A JVM that cannot dump archives (before Java
+ * 13) ignores the option, and a JVM that finds an archive it cannot use runs without it.
+ */
+class ClassDataSharing {
+    private static final Logger logger = Logger.getLogger("Debugger");
+    private static final Path ARCHIVES =
+            Paths.get(System.getProperty("java.io.tmpdir"), "collector-sahab-cds");
+    private static final String WARM_UP = "org.junit.platform.console.ConsoleLauncher";
+    private static final long WARM_UP_TIMEOUT_SECONDS = 60;
+    // Archives that could not be dumped, so that the debuggees do not try again.
+    private static final Set<String> unavailable = new HashSet<>();
+
+    private ClassDataSharing() {}
+
+    /**
+     * Returns the options that make a debuggee with the classpath use the archive of its jars,
+     * dumping the archive first if there is none yet. Returns no option if no archive can be used.
+     * The classpath is not reordered, since a class in a directory must keep shadowing the classes
+     * of the same name in the jars after it, so only the jars before the first directory are
+     * archived.
+     *
+     * @param classpath the classpath of the debuggee, in a deterministic order
+     */
+    static synchronized List<String> getVMOptions(String classpath) {
+        List<String> elements = Arrays.asList(classpath.split(File.pathSeparator));
+        List<String> jars = new ArrayList<>();
+        for (String element : elements) {
+            if (!isJar(element)) {
+                break;
+            }
+            jars.add(element);
+        }
+        if (jars.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String key = hash(elements);
+        if (unavailable.contains(key)) {
+            return Collections.emptyList();
+        }
+        Path archive = ARCHIVES.resolve(key + ".jsa");
+        if (!Files.exists(archive) && !dump(String.join(File.pathSeparator, jars), archive)) {
+            unavailable.add(key);
+            return Collections.emptyList();
+        }
+        // Warnings about the archive go to the standard error, instead of the output of the tests.
+        return List.of(
+                "-XX:SharedArchiveFile=" + archive,
+                "-Xshare:auto",
+                "-Xlog:disable",
+                "-Xlog:all=warning:stderr");
+    }
+
+    private static boolean dump(String jars, Path archive) {
+        try {
+            Files.createDirectories(ARCHIVES);
+            // Debuggees of other collectors may be reading the archive already there.
+            Path partial = Files.createTempFile(ARCHIVES, "archive", ".part");
+            Files.delete(partial);
+            Process process =
+                    new ProcessBuilder(
+                                    "java",
+                                    "-XX:+IgnoreUnrecognizedVMOptions",
+                                    "-XX:ArchiveClassesAtExit=" + partial,
+                                    "-Xlog:disable",
+                                    "-cp",
+                                    jars,
+                                    WARM_UP,
+                                    "--disable-banner",
+                                    "--details=none",
+                                    "--select-package=" + ClassDataSharing.class.getName())
+                            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                            .redirectError(ProcessBuilder.Redirect.DISCARD)
+                            .start();
+            if (!process.waitFor(WARM_UP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+                Files.deleteIfExists(partial);
+                logger.warning("The class data archive was not dumped in time.");
+                return false;
+            }
+            if (!Files.exists(partial)) {
+                logger.info("The JVM cannot dump class data archives, so debuggees run without.");
+                return false;
+            }
+            Files.move(partial, archive, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Class data archive dumped to: " + archive);
+            return true;
+        } catch (IOException e) {
+            logger.warning("The class data archive could not be dumped: " + e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String hash(List<String> classpath) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String element : classpath) {
+                String entry = element + '\n';
+                if (isJar(element)) {
+                    File file = new File(element);
+                    entry += file.length() + "\n" + file.lastModified() + '\n';
+                }
+                digest.update(entry.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is available in every JVM", e);
+        }
+    }
+
+    private static boolean isJar(String element) {
+        return element.endsWith(".jar") && new File(element).isFile();
+    }
+}
@@ -1,15 +1,32 @@
 package se.kth.debug;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.stream.JsonWriter;
 import com.sun.jdi.AbsentInformationException;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import picocli.CommandLine;
-import se.kth.debug.struct.result.BreakPointContext;
-import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.output.BackpressurePolicy;
+import se.kth.debug.output.BinaryReader;
+import se.kth.debug.output.BinarySink;
+import se.kth.debug.output.CollectedDataSink;
+import se.kth.debug.output.OutputFormat;
+import se.kth.debug.output.PipelinedSink;
 
 @CommandLine.Command(name = "collector", mixinStandardHelpOptions = true)
 public class Collector implements Callable<Integer> {
@@ -31,9 +48,27 @@ public class Collector implements Callable<Integer> {
             required = true)
     private String[] tests;
 
-    @CommandLine.Option(names = "-o", description = "Path to output file (JSON)", required = true)
+    @CommandLine.Option(names = "-o", description = "Path to output file", required = true)
     private String collectedOutput;
 
+    @CommandLine.Option(
+            names = "--output-format",
+            description =
+                    "Format of the output file, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).")
+    private OutputFormat outputFormat = OutputFormat.JSON;
+
+    @CommandLine.Option(
+            names = "--output-queue-capacity",
+            description =
+                    "Number of breakpoints and returns that may wait to be written by a separate thread, or 0 to write them before resuming the debuggee (default: ${DEFAULT-VALUE}).")
+    private int outputQueueCapacity = 0;
+
+    @CommandLine.Option(
+            names = "--backpressure-policy",
+            description =
+                    "What happens when the output queue is full, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).")
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+
     @CommandLine.Option(
             names = "-i",
             description = "File containing class names and breakpoints",
@@ -43,6 +78,26 @@ public class Collector implements Callable<Integer> {
     @CommandLine.Option(names = "-m", description = "File containing method names")
     private File methodsForExitEvent = null;
 
+    @CommandLine.Option(
+            names = "--daemon-port",
+            description =
+                    "Port of a collector daemon on this machine that runs the job in its debuggee, instead of launching one.")
+    private Integer daemonPort = null;
+
+    @CommandLine.Option(
+            names = "--daemon-token-file",
+            description =
+                    "File holding the token of the collector daemon (default: the file the daemon writes by default for its port).")
+    private File daemonTokenFile = null;
+
+    @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
+    @CommandLine.Option(
+            names = "--parallel",
+            description =
+                    "Number of debuggee JVMs the tests are split across (default: ${DEFAULT-VALUE}).")
+    private int parallelism = 1;
+
     @CommandLine.Option(
             names = "--stack-trace-depth",
             description =
@@ -55,16 +110,118 @@ public class Collector implements Callable<Integer> {
                     "Number of elements that need to be printed inside an array (default: ${DEFAULT-VALUE}).")
     private int numberOfArrayElements = 10;
 
+    @CommandLine.Option(
+            names = "--array-sampling",
+            description =
+                    "Which elements of an array are printed, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).")
+    private ArraySampling arraySampling = ArraySampling.HEAD;
+
     @CommandLine.Option(
             names = "--execution-depth",
             description = "The depth of each element inside an array (default: ${DEFAULT-VALUE}).")
     private int executionDepth = 0;
 
+    @CommandLine.Option(
+            names = "--deduplicate-objects",
+            description =
+                    "Whether to collect the fields of an object only once per breakpoint or return and refer back to it afterwards (default: ${DEFAULT-VALUE}).")
+    private boolean deduplicateObjects = false;
+
+    @CommandLine.Option(
+            names = "--snapshot-in-debuggee",
+            description =
+                    "Whether the fields and elements below each variable, field and return value are collected by a helper invoked in the debuggee, in one round trip per breakpoint or return instead of one per object and array. Objects are still collected over JDWP when they are deduplicated, or when returns are requested without suspending every thread (default: ${DEFAULT-VALUE}).")
+    private boolean snapshotInDebuggee = false;
+
     @CommandLine.Option(
             names = "--skip-printing-field",
             description = "Whether to collect field data or not (default: ${DEFAULT-VALUE}).")
     private boolean skipPrintingField = false;
 
+    @CommandLine.Option(
+            names = "--targeted-method-exits",
+            description =
+                    "Whether to request only the exits of methods whose return values are collected, instead of the exits of every method in their classes (default: ${DEFAULT-VALUE}).")
+    private boolean targetMethodExits = false;
+
+    @CommandLine.Option(
+            names = "--capture-backend",
+            description =
+                    "How values are captured, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}). AGENT inserts probes into the classes instead of suspending the debuggee, and only captures the frame of the breakpoint.")
+    private CaptureBackend captureBackend = CaptureBackend.JDWP;
+
+    @CommandLine.Option(
+            names = "--class-data-sharing",
+            description =
+                    "Whether debuggees map the classes of the jars at the start of the classpath from an archive dumped by the first of them, on Java 13 or later (default: ${DEFAULT-VALUE}).")
+    private boolean shareClassData = false;
+
+    @CommandLine.Option(
+            names = "--debuggee-log-directory",
+            description =
+                    "Directory the standard output and error of debuggees are logged to (default: discarded).")
+    private File debuggeeLogDirectory = null;
+
+    @CommandLine.Option(
+            names = "--debuggee-log-size",
+            description =
+                    "Number of bytes a log of a debuggee holds before it replaces the previous one (default: ${DEFAULT-VALUE}).")
+    private long debuggeeLogSize = 10 * 1024 * 1024;
+
+    @CommandLine.Option(
+            names = "--select-tests-by-coverage",
+            description =
+                    "Whether to run the tests under JaCoCo first, and to only debug those that reach a breakpoint or a method whose exits are asked for (default: ${DEFAULT-VALUE}).")
+    private boolean selectTestsByCoverage = false;
+
+    @CommandLine.Option(
+            names = "--jacoco-agent",
+            description =
+                    "JaCoCo runtime jar used to select the tests (default: the one on the classpath).")
+    private File jaCoCoAgent = null;
+
+    @CommandLine.Option(
+            names = "--max-hits-per-line",
+            description =
+                    "Number of hits of each breakpoint that are captured before the breakpoint is disabled (default: all of them).")
+    private int maxHitsPerLine = 0;
+
+    @CommandLine.Option(
+            names = "--max-returns-per-method",
+            description =
+                    "Number of returns of each method that are captured before its returns are no longer requested (default: all of them).")
+    private int maxReturnsPerMethod = 0;
+
+    @CommandLine.Option(
+            names = "--max-captured-bytes",
+            description =
+                    "Number of bytes of captured data, estimated as compact JSON, after which the debuggee is shut down (default: no limit).")
+    private long maxCapturedBytes = 0;
+
+    @CommandLine.Option(
+            names = "--count-hits",
+            description =
+                    "Whether to only count how often each breakpoint is hit and each method returns, per test method, without suspending the debuggee (default: ${DEFAULT-VALUE}).")
+    private boolean countHits = false;
+
+    @CommandLine.Option(
+            names = "--fingerprint-states",
+            description =
+                    "Whether a breakpoint hit in a state it has been hit in before only increments the hit count of the earlier snapshot. States are told apart by the primitive values and the object identities of the variables and fields (default: ${DEFAULT-VALUE}).")
+    private boolean fingerprintStates = false;
+
+    @CommandLine.Option(
+            names = "--suspend-policy",
+            description =
+                    "Threads suspended while a breakpoint or a return is processed, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).")
+    private SuspendPolicy suspendPolicy = SuspendPolicy.ALL;
+
+    @CommandLine.Option(
+            names = "--thread-name-filter",
+            description =
+                    "Regular expression that names of the threads to be inspected must match. The events of the other threads only suspend their own thread (default: all threads).")
+    private Pattern threadNameFilter = null;
+
     @CommandLine.Option(
             names = "--skip-breakpoint-values",
             description = "Whether to collect breakpoint values (default: ${DEFAULT-VALUE}).")
@@ -81,7 +238,110 @@ public class Collector implements Callable<Integer> {
 
     @Override
     public Integer call() throws IOException, AbsentInformationException {
+        if (daemonPort != null) {
+            submitToDaemon();
+            return 0;
+        }
+        CollectorOptions context = getCollectorOptions();
+        if (countHits) {
+            writeHitCounts(context);
+            return 0;
+        }
+        try (CollectedDataSink sink = createSink()) {
+            if (parallelism > 1) {
+                invokeInParallel(
+                        providedClasspath,
+                        tests,
+                        classesAndBreakpoints,
+                        methodsForExitEvent,
+                        context,
+                        parallelism,
+                        sink);
+            } else {
+                invoke(
+                        providedClasspath,
+                        tests,
+                        classesAndBreakpoints,
+                        methodsForExitEvent,
+                        context,
+                        sink);
+            }
+            sink.finish();
+        }
+        return 0;
+    }
+
+    /**
+     * Sends the arguments as they are to the daemon, with its token, and waits until it has run the
+     * job.
+     */
+    private void submitToDaemon() throws IOException {
+        List<String> args = spec.commandLine().getParseResult().originalArgs();
+        File tokenFile =
+                daemonTokenFile == null
+                        ? CollectorDaemon.getDefaultTokenFile(daemonPort)
+                        : daemonTokenFile;
+        String token = Files.readString(tokenFile.toPath()).trim();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemonPort);
+                PrintWriter out =
+                        new PrintWriter(
+                                new OutputStreamWriter(
+                                        socket.getOutputStream(), StandardCharsets.UTF_8),
+                                true);
+                BufferedReader in =
+                        new BufferedReader(
+                                new InputStreamReader(
+                                        socket.getInputStream(), StandardCharsets.UTF_8))) {
+            out.println(token);
+            out.println(new Gson().toJson(args));
+            String response = in.readLine();
+            if (!CollectorDaemon.OK.equals(response)) {
+                throw new IOException("The daemon could not run the job: " + response);
+            }
+        }
+    }
+
+    /** Runs the job in the debuggee of the daemon. */
+    void runIn(CollectorDaemon daemon) throws IOException, AbsentInformationException {
+        if (parallelism > 1) {
+            logger.warning(
+                    "The daemon has a single debuggee, so the tests are not run in parallel.");
+        }
+        if (captureBackend != CaptureBackend.JDWP) {
+            logger.warning("The daemon debugs its debuggee, so values are captured over JDWP.");
+        }
         CollectorOptions context = getCollectorOptions();
+        if (countHits) {
+            logger.warning(
+                    "The debuggee of the daemon suspends at every breakpoint, so hits are counted in a debuggee of their own.");
+            writeHitCounts(context);
+            return;
+        }
+        String[] selectedTests =
+                selectTests(
+                        providedClasspath,
+                        tests,
+                        classesAndBreakpoints,
+                        methodsForExitEvent,
+                        context);
+        try (CollectedDataSink sink = createSink()) {
+            daemon.collect(
+                    providedClasspath,
+                    selectedTests,
+                    classesAndBreakpoints,
+                    methodsForExitEvent,
+                    context,
+                    sink);
+            sink.finish();
+        }
+    }
+
+    /** Runs the tests to only count hits and returns, and writes the counts as compact JSON. */
+    private void writeHitCounts(CollectorOptions context)
+            throws IOException, AbsentInformationException {
+        if (parallelism > 1) {
+            logger.warning("Hits are counted in a single debuggee.");
+        }
         EventProcessor eventProcessor =
                 invoke(
                         providedClasspath,
@@ -89,8 +349,13 @@ public class Collector implements Callable<Integer> {
                         classesAndBreakpoints,
                         methodsForExitEvent,
                         context);
-        write(eventProcessor);
-        return 0;
+        File output = new File(collectedOutput);
+        if (output.getParentFile() != null) {
+            output.getParentFile().mkdirs();
+        }
+        try (Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            new Gson().toJson(eventProcessor.getHitCounts(), writer);
+        }
     }
 
     public static EventProcessor invoke(
@@ -100,14 +365,79 @@ public class Collector implements Callable<Integer> {
             File methodsForExitEvent,
             CollectorOptions context)
             throws AbsentInformationException {
+        return invoke(
+                providedClasspath,
+                tests,
+                classesAndBreakpoints,
+                methodsForExitEvent,
+                context,
+                null);
+    }
+
+    /**
+     * Hands the collected data to the sink as soon as it is available, instead of keeping it in the
+     * returned event processor. The sink is neither finished nor closed.
+     */
+    public static EventProcessor invoke(
+            String[] providedClasspath,
+            String[] tests,
+            File classesAndBreakpoints,
+            File methodsForExitEvent,
+            CollectorOptions context,
+            CollectedDataSink sink)
+            throws AbsentInformationException {
+        String[] selectedTests =
+                selectTests(
+                        providedClasspath,
+                        tests,
+                        classesAndBreakpoints,
+                        methodsForExitEvent,
+                        context);
         EventProcessor eventProcessor =
                 new EventProcessor(
-                        providedClasspath, tests, classesAndBreakpoints, methodsForExitEvent);
-        eventProcessor.startEventProcessor(context);
+                        providedClasspath,
+                        selectedTests,
+                        classesAndBreakpoints,
+                        methodsForExitEvent,
+                        sink);
+        if (selectedTests.length > 0) {
+            eventProcessor.startEventProcessor(context);
+        }
 
         return eventProcessor;
     }
 
+    /**
+     * Returns the tests that reach the input if {@link
+     * CollectorOptions#shouldSelectTestsByCoverage()}, and all the tests otherwise or if they
+     * cannot be selected.
+     */
+    static String[] selectTests(
+            String[] providedClasspath,
+            String[] tests,
+            File classesAndBreakpoints,
+            File methodsForExitEvent,
+            CollectorOptions context) {
+        if (!context.shouldSelectTestsByCoverage()) {
+            return tests;
+        }
+        try {
+            File jaCoCoAgent =
+                    context.getJaCoCoAgent() != null
+                            ? context.getJaCoCoAgent()
+                            : Utility.getJaCoCoJavaagentJar(providedClasspath);
+            return TestSelection.select(
+                    providedClasspath,
+                    tests,
+                    EventProcessor.parseFileAndBreakpoints(classesAndBreakpoints),
+                    EventProcessor.parseMethodsForExitEvent(methodsForExitEvent),
+                    jaCoCoAgent);
+        } catch (ClassNotFoundException | IOException e) {
+            logger.warning("All the tests are debugged, as they could not be selected: " + e);
+            return tests;
+        }
+    }
+
     public static EventProcessor invoke(
             String[] providedClasspath,
             String[] tests,
@@ -117,69 +447,135 @@ public class Collector implements Callable<Integer> {
         return invoke(providedClasspath, tests, classesAndBreakpoints, null, context);
     }
 
+    /**
+     * Splits the tests into contiguous shards and runs each shard in its own debuggee. The data of
+     * each shard is spooled in the binary format and handed to the sink shard by shard. Since the
+     * tests of a shard run in the given order, the data arrives in the same order as if all of them
+     * had run in a single debuggee, whichever shard finishes first. Each shard selects its own
+     * tests if {@link CollectorOptions#shouldSelectTestsByCoverage()}.
+     */
+    public static void invokeInParallel(
+            String[] providedClasspath,
+            String[] tests,
+            File classesAndBreakpoints,
+            File methodsForExitEvent,
+            CollectorOptions context,
+            int parallelism,
+            CollectedDataSink sink)
+            throws AbsentInformationException, IOException {
+        List<String[]> shards = shard(tests, parallelism);
+        Path spoolDirectory = Files.createTempDirectory("collector-shards");
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+        try {
+            List<Future<File>> spools = new ArrayList<>();
+            for (int i = 0; i < shards.size(); ++i) {
+                String[] shard = shards.get(i);
+                File spool = spoolDirectory.resolve("shard-" + i + ".bin").toFile();
+                spools.add(
+                        executor.submit(
+                                () -> {
+                                    try (BinarySink spoolSink = new BinarySink(spool)) {
+                                        invoke(
+                                                providedClasspath,
+                                                shard,
+                                                classesAndBreakpoints,
+                                                methodsForExitEvent,
+                                                context,
+                                                spoolSink);
+                                        spoolSink.finish();
+                                    }
+                                    return spool;
+                                }));
+            }
+            // Hit counts of a shard refer to its own breakpoints, which come after those before it.
+            long breakpoints = 0;
+            for (Future<File> spool : spools) {
+                File file = awaitShard(spool);
+                try (BinaryReader reader = new BinaryReader(new FileInputStream(file))) {
+                    breakpoints += reader.readTo(sink, breakpoints);
+                }
+                Files.delete(file.toPath());
+            }
+        } finally {
+            executor.shutdownNow();
+            try (Stream<Path> paths = Files.walk(spoolDirectory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Splits the tests into at most {@code parallelism} shards whose sizes differ by one at most.
+     */
+    private static List<String[]> shard(String[] tests, int parallelism) {
+        int numberOfShards = Math.max(1, Math.min(parallelism, tests.length));
+        List<String[]> shards = new ArrayList<>();
+        for (int i = 0; i < numberOfShards; ++i) {
+            int from = (int) ((long) tests.length * i / numberOfShards);
+            int to = (int) ((long) tests.length * (i + 1) / numberOfShards);
+            shards.add(Arrays.copyOfRange(tests, from, to));
+        }
+        return shards;
+    }
+
+    private static File awaitShard(Future<File> spool)
+            throws AbsentInformationException, IOException {
+        try {
+            return spool.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shard");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AbsentInformationException) {
+                throw (AbsentInformationException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private CollectedDataSink createSink() throws IOException {
+        CollectedDataSink sink =
+                outputFormat.createSink(
+                        new File(collectedOutput), skipBreakpointValues, skipReturnValues);
+        if (outputQueueCapacity <= 0) {
+            return sink;
+        }
+        return new PipelinedSink(sink, outputQueueCapacity, backpressurePolicy);
+    }
+
     private CollectorOptions getCollectorOptions() {
         CollectorOptions context = new CollectorOptions();
         context.setStackTraceDepth(stackTraceDepth);
         context.setNumberOfArrayElements(numberOfArrayElements);
+        context.setArraySampling(arraySampling);
         context.setExecutionDepth(executionDepth);
         context.setSkipPrintingField(skipPrintingField);
+        context.setDeduplicateObjects(deduplicateObjects);
+        context.setSnapshotInDebuggee(snapshotInDebuggee);
+        context.setSuspendPolicy(suspendPolicy);
+        context.setThreadNameFilter(threadNameFilter);
+        context.setTargetMethodExits(targetMethodExits);
+        context.setShareClassData(shareClassData);
+        context.setDebuggeeLogDirectory(debuggeeLogDirectory);
+        context.setDebuggeeLogSize(debuggeeLogSize);
+        context.setSelectTestsByCoverage(selectTestsByCoverage);
+        context.setJaCoCoAgent(jaCoCoAgent);
+        context.setMaxHitsPerLine(maxHitsPerLine);
+        context.setMaxReturnsPerMethod(maxReturnsPerMethod);
+        context.setMaxCapturedBytes(maxCapturedBytes);
+        context.setCountHits(countHits);
+        context.setFingerprintStates(fingerprintStates);
+        context.setCaptureBackend(captureBackend);
         context.setSkipBreakpointValues(skipBreakpointValues);
         context.setSkipReturnValues(skipReturnValues);
 
         return context;
     }
-
-    public void write(EventProcessor eventProcessor) throws IOException {
-        final Gson gson =
-                new GsonBuilder()
-                        .setPrettyPrinting()
-                        .serializeNulls()
-                        .serializeSpecialFloatingPointValues()
-                        .create();
-
-        File file = new File(collectedOutput);
-        if (file.getParentFile() != null) {
-            file.getParentFile().mkdirs();
-        }
-
-        JsonWriter writer = new JsonWriter(new FileWriter(file));
-
-        writer.setIndent("  ");
-        writer.beginObject();
-
-        if (skipBreakpointValues) {
-            logger.info(
-                    "Breakpoint data was not asked for. Please provide class names and line numbers if you desire otherwise.");
-        } else if (!eventProcessor.getBreakpointContexts().isEmpty()) {
-            writer.name("breakpoint");
-            writer.beginArray();
-            for (BreakPointContext bpc : eventProcessor.getBreakpointContexts()) {
-                gson.toJson(bpc, BreakPointContext.class, writer);
-            }
-            writer.endArray();
-            logger.info("Breakpoints serialised!");
-        } else {
-            writer.name("breakpoint").beginArray().endArray();
-            logger.info("Output file was not generated as breakpoints were not encountered.");
-        }
-
-        if (skipReturnValues) {
-            logger.info(
-                    "Return data was not asked for. Please provide method names if you desire otherwise.");
-        } else if (!eventProcessor.getReturnValues().isEmpty()) {
-            writer.name("return");
-            writer.beginArray();
-            for (ReturnData rd : eventProcessor.getReturnValues()) {
-                gson.toJson(rd, ReturnData.class, writer);
-            }
-            writer.endArray();
-            logger.info("Return values serialised!");
-        } else {
-            writer.name("return").beginArray().endArray();
-            logger.info("No method exits were encountered.");
-        }
-        writer.endObject();
-        writer.close();
-        logger.info("File output to: " + file.getAbsolutePath());
-    }
 }
@@ -0,0 +1,336 @@
+package se.kth.debug;
+
+import com.google.gson.Gson;
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.VMDeathEvent;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequestManager;
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import picocli.CommandLine;
+import se.kth.debug.output.CollectedDataSink;
+
+/**
+ * Keeps a debuggee running between collections, so that a job does not pay for launching a JVM,
+ * bootstrapping JUnit and loading the classes that earlier jobs have loaded already. A job is the
+ * arguments of {@link Collector}, sent as a JSON array on a single line over a local socket. The
+ * line is preceded by a line with the token of the daemon, which is random and written to a file
+ * only the owner of the daemon can read, so that other users of the machine cannot run jobs. The
+ * daemon answers with {@value #OK} or with the error that made the job fail. A client that does not
+ * send its token and its job within {@value #READ_TIMEOUT_MILLIS} ms is disconnected, and the jobs
+ * run one after the other.
+ *
+ * <p>The classpath of every job must be the one the daemon was started with, and paths in jobs are
+ * resolved against the working directory of the daemon. Static state of the debuggee survives from
+ * one job to the next.
+ */
+@CommandLine.Command(name = "collector-daemon", mixinStandardHelpOptions = true)
+public class CollectorDaemon implements Callable<Integer>, Closeable {
+    public static final String OK = "OK";
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+    private static final Logger logger = Logger.getLogger(CollectorDaemon.class.getName());
+
+    @CommandLine.Option(
+            names = "-p",
+            arity = "0..*",
+            description = "Classpath required to run JUnit",
+            split = " ",
+            required = true)
+    private String[] providedClasspath;
+
+    @CommandLine.Option(
+            names = "--port",
+            description = "Local port on which jobs are accepted (default: ${DEFAULT-VALUE}).")
+    private int port = 4040;
+
+    @CommandLine.Option(
+            names = "--class-data-sharing",
+            description =
+                    "Whether the debuggee maps the classes of the jars at the start of the classpath from an archive shared with other debuggees, on Java 13 or later (default: ${DEFAULT-VALUE}).")
+    private boolean shareClassData = false;
+
+    @CommandLine.Option(
+            names = "--debuggee-log-directory",
+            description =
+                    "Directory the standard output and error of the debuggee are logged to (default: discarded).")
+    private File debuggeeLogDirectory = null;
+
+    @CommandLine.Option(
+            names = "--debuggee-log-size",
+            description =
+                    "Number of bytes a log of the debuggee holds before it replaces the previous one (default: ${DEFAULT-VALUE}).")
+    private long debuggeeLogSize = 10 * 1024 * 1024;
+
+    @CommandLine.Option(
+            names = "--token-file",
+            description =
+                    "File the token that jobs must be sent with is written to (default: .collector-sahab/daemon-<port>.token in the home directory).")
+    private File tokenFile = null;
+
+    private ServerSocket serverSocket;
+    private byte[] token;
+    // The debuggee, or null if it has to be launched for the next job.
+    private VirtualMachine vm;
+    private Debugger launcher;
+    private Writer jobs;
+    // Held while a job runs, as the debuggee runs one job at a time.
+    private final Object jobLock = new Object();
+
+    public CollectorDaemon() {}
+
+    public CollectorDaemon(String[] providedClasspath) {
+        this.providedClasspath = providedClasspath;
+    }
+
+    public static void main(String[] args) {
+        new CommandLine(new CollectorDaemon()).execute(args);
+    }
+
+    @Override
+    public Integer call() throws IOException {
+        int boundPort = start(port);
+        logger.info("Waiting for jobs on port " + boundPort);
+        serve();
+        return 0;
+    }
+
+    /**
+     * Starts accepting jobs on the port, or on any free port if it is 0.
+     *
+     * @return the port jobs are accepted on
+     */
+    public int start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        int boundPort = serverSocket.getLocalPort();
+        if (tokenFile == null) {
+            tokenFile = getDefaultTokenFile(boundPort);
+        }
+        byte[] randomBytes = new byte[32];
+        new SecureRandom().nextBytes(randomBytes);
+        String newToken = String.format("%064x", new BigInteger(1, randomBytes));
+        Files.createDirectories(tokenFile.getAbsoluteFile().getParentFile().toPath());
+        writeOwnerOnly(tokenFile.toPath(), newToken);
+        token = newToken.getBytes(StandardCharsets.UTF_8);
+        return boundPort;
+    }
+
+    /**
+     * Returns the file the token of the daemon on the port is written to by default. It is in the
+     * home directory rather than in the temporary one, where other users could create it first.
+     */
+    public static File getDefaultTokenFile(int port) {
+        return new File(
+                new File(System.getProperty("user.home"), ".collector-sahab"),
+                "daemon-" + port + ".token");
+    }
+
+    /**
+     * Writes the text to a new file that only the owner can read. A file left by another daemon is
+     * replaced rather than reused, as someone else may be able to read it.
+     */
+    private static void writeOwnerOnly(Path file, String text) throws IOException {
+        Files.deleteIfExists(file);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(
+                    file,
+                    PosixFilePermissions.asFileAttribute(
+                            PosixFilePermissions.fromString("rw-------")));
+        } else {
+            File created = Files.createFile(file).toFile();
+            created.setReadable(false, false);
+            created.setWritable(false, false);
+            created.setReadable(true, true);
+            created.setWritable(true, true);
+        }
+        Files.writeString(file, text);
+    }
+
+    /**
+     * Runs the jobs one after the other until the daemon is closed. Each connection is read by a
+     * worker of its own, so that a client that is slow to send its job does not hold up the others.
+     */
+    public void serve() throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    // The daemon was closed.
+                    return;
+                }
+                connections.execute(() -> handle(socket));
+            }
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+                BufferedReader in =
+                        new BufferedReader(
+                                new InputStreamReader(
+                                        socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out =
+                        new PrintWriter(
+                                new OutputStreamWriter(
+                                        socket.getOutputStream(), StandardCharsets.UTF_8),
+                                true)) {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            String jobToken = in.readLine();
+            if (jobToken == null
+                    || !MessageDigest.isEqual(token, jobToken.getBytes(StandardCharsets.UTF_8))) {
+                logger.warning("A job without the token of the daemon was refused.");
+                out.println("The job was refused, as it was not sent with the daemon's token.");
+                return;
+            }
+            String[] args = new Gson().fromJson(in.readLine(), String[].class);
+            synchronized (jobLock) {
+                out.println(runJob(args));
+            }
+        } catch (SocketTimeoutException e) {
+            logger.warning("A client that did not send its job in time was disconnected.");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "A job could not be received", e);
+        }
+    }
+
+    private String runJob(String[] args) {
+        try {
+            Collector job = new Collector();
+            new CommandLine(job).parseArgs(args);
+            job.runIn(this);
+            return OK;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "The job failed", e);
+            return e.toString();
+        }
+    }
+
+    /**
+     * Runs the tests in the debuggee kept by the daemon, and hands the collected data to the sink.
+     */
+    public synchronized void collect(
+            String[] providedClasspath,
+            String[] tests,
+            File classesAndBreakpoints,
+            File methodsForExitEvent,
+            CollectorOptions context,
+            CollectedDataSink sink)
+            throws AbsentInformationException, IOException {
+        if (!Arrays.equals(providedClasspath, this.providedClasspath)) {
+            throw new IllegalArgumentException(
+                    "The daemon runs tests with the classpath "
+                            + String.join(" ", this.providedClasspath));
+        }
+        if (vm == null) {
+            launch();
+        }
+        EventProcessor eventProcessor =
+                new EventProcessor(
+                        providedClasspath, tests, classesAndBreakpoints, methodsForExitEvent, sink);
+        eventProcessor.prepareJob(vm, context);
+        jobs.write(Utility.parseTests(tests));
+        jobs.write('\n');
+        jobs.flush();
+        vm.resume();
+        if (!eventProcessor.processEvents(vm, context)) {
+            logger.warning("The debuggee exited during the job, so the next job launches another.");
+            shutdownDebuggee();
+        }
+    }
+
+    private void launch() throws IOException {
+        launcher = new Debugger(providedClasspath, null, null, null);
+        vm =
+                launcher.launchVMAndJunitForJobs(
+                        new CollectorOptions()
+                                .setShareClassData(shareClassData)
+                                .setDebuggeeLogDirectory(debuggeeLogDirectory)
+                                .setDebuggeeLogSize(debuggeeLogSize));
+        if (vm == null) {
+            throw new IOException("The debuggee could not be launched");
+        }
+        jobs =
+                new BufferedWriter(
+                        new OutputStreamWriter(
+                                launcher.getProcess().getOutputStream(), StandardCharsets.UTF_8));
+        launcher.registerClassUnloads(vm);
+        try {
+            runUntilAwaitingJob();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while launching the debuggee");
+        }
+    }
+
+    /** Lets the debuggee run until its test runner waits for the first job. */
+    private void runUntilAwaitingJob() throws InterruptedException, IOException {
+        EventRequestManager erm = vm.eventRequestManager();
+        ClassPrepareRequest cpr = erm.createClassPrepareRequest();
+        cpr.addClassFilter(JUnitTestRunner.class.getName());
+        cpr.setEnabled(true);
+        vm.resume();
+        while (true) {
+            EventSet eventSet = vm.eventQueue().remove();
+            for (Event event : eventSet) {
+                if (event instanceof ClassPrepareEvent) {
+                    launcher.setBreakpointAtAwaitingJob(
+                            vm, ((ClassPrepareEvent) event).referenceType());
+                    erm.deleteEventRequest(cpr);
+                }
+                if (Debugger.isAwaitingJob(event)) {
+                    return;
+                }
+                if (event instanceof VMDeathEvent || event instanceof VMDisconnectEvent) {
+                    shutdownDebuggee();
+                    throw new IOException("The debuggee exited before running any job");
+                }
+            }
+            eventSet.resume();
+        }
+    }
+
+    private void shutdownDebuggee() {
+        if (vm != null) {
+            launcher.shutdown(vm);
+            vm = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (tokenFile != null) {
+            Files.deleteIfExists(tokenFile.toPath());
+        }
+        shutdownDebuggee();
+    }
+}
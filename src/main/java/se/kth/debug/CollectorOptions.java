@@ -1,5 +1,8 @@
 package se.kth.debug;
 
+import java.io.File;
+import java.util.regex.Pattern;
+
 public class CollectorOptions {
     private int stackTraceDepth;
     private int numberOfArrayElements;
@@ -7,6 +10,23 @@ public class CollectorOptions {
     private boolean skipPrintingField;
     private boolean skipReturnValues;
     private boolean skipBreakpointValues;
+    private ArraySampling arraySampling = ArraySampling.HEAD;
+    private boolean deduplicateObjects;
+    private SuspendPolicy suspendPolicy = SuspendPolicy.ALL;
+    private Pattern threadNameFilter;
+    private boolean targetMethodExits;
+    private boolean shareClassData;
+    private CaptureBackend captureBackend = CaptureBackend.JDWP;
+    private boolean snapshotInDebuggee;
+    private File debuggeeLogDirectory;
+    private long debuggeeLogSize = 10 * 1024 * 1024;
+    private boolean selectTestsByCoverage;
+    private File jaCoCoAgent;
+    private int maxHitsPerLine;
+    private int maxReturnsPerMethod;
+    private long maxCapturedBytes;
+    private boolean countHits;
+    private boolean fingerprintStates;
 
     public int getStackTraceDepth() {
         return stackTraceDepth;
@@ -32,6 +52,83 @@ public class CollectorOptions {
         return skipReturnValues;
     }
 
+    public ArraySampling getArraySampling() {
+        return arraySampling;
+    }
+
+    public boolean shouldDeduplicateObjects() {
+        return deduplicateObjects;
+    }
+
+    public SuspendPolicy getSuspendPolicy() {
+        return suspendPolicy;
+    }
+
+    /** Returns the pattern names of the threads to be inspected match, or null for all threads. */
+    public Pattern getThreadNameFilter() {
+        return threadNameFilter;
+    }
+
+    public boolean shouldTargetMethodExits() {
+        return targetMethodExits;
+    }
+
+    public boolean shouldShareClassData() {
+        return shareClassData;
+    }
+
+    public CaptureBackend getCaptureBackend() {
+        return captureBackend;
+    }
+
+    public boolean shouldSnapshotInDebuggee() {
+        return snapshotInDebuggee;
+    }
+
+    /** Returns the directory the output of debuggees is logged to, or null to discard it. */
+    public File getDebuggeeLogDirectory() {
+        return debuggeeLogDirectory;
+    }
+
+    /** Returns the number of bytes a log of the output of a debuggee holds before it rotates. */
+    public long getDebuggeeLogSize() {
+        return debuggeeLogSize;
+    }
+
+    public boolean shouldSelectTestsByCoverage() {
+        return selectTestsByCoverage;
+    }
+
+    /** Returns the JaCoCo runtime jar, or null to look for it on the classpaths. */
+    public File getJaCoCoAgent() {
+        return jaCoCoAgent;
+    }
+
+    /** Returns the number of hits of a breakpoint that are captured, or 0 for all of them. */
+    public int getMaxHitsPerLine() {
+        return maxHitsPerLine;
+    }
+
+    /** Returns the number of returns of a method that are captured, or 0 for all of them. */
+    public int getMaxReturnsPerMethod() {
+        return maxReturnsPerMethod;
+    }
+
+    /** Returns the number of bytes of captured data, as compact JSON, or 0 for no limit. */
+    public long getMaxCapturedBytes() {
+        return maxCapturedBytes;
+    }
+
+    /** Returns whether hits and returns are only counted, without suspending the debuggee. */
+    public boolean shouldCountHits() {
+        return countHits;
+    }
+
+    /** Returns whether a state seen before at a breakpoint is only counted instead of captured. */
+    public boolean shouldFingerprintStates() {
+        return fingerprintStates;
+    }
+
     public void setStackTraceDepth(int stackTraceDepth) {
         this.stackTraceDepth = stackTraceDepth;
     }
@@ -57,4 +154,89 @@ public class CollectorOptions {
         this.skipBreakpointValues = skipBreakpointValues;
         return this;
     }
+
+    public CollectorOptions setArraySampling(ArraySampling arraySampling) {
+        this.arraySampling = arraySampling;
+        return this;
+    }
+
+    public CollectorOptions setDeduplicateObjects(boolean deduplicateObjects) {
+        this.deduplicateObjects = deduplicateObjects;
+        return this;
+    }
+
+    public CollectorOptions setSuspendPolicy(SuspendPolicy suspendPolicy) {
+        this.suspendPolicy = suspendPolicy;
+        return this;
+    }
+
+    public CollectorOptions setThreadNameFilter(Pattern threadNameFilter) {
+        this.threadNameFilter = threadNameFilter;
+        return this;
+    }
+
+    public CollectorOptions setTargetMethodExits(boolean targetMethodExits) {
+        this.targetMethodExits = targetMethodExits;
+        return this;
+    }
+
+    public CollectorOptions setShareClassData(boolean shareClassData) {
+        this.shareClassData = shareClassData;
+        return this;
+    }
+
+    public CollectorOptions setCaptureBackend(CaptureBackend captureBackend) {
+        this.captureBackend = captureBackend;
+        return this;
+    }
+
+    public CollectorOptions setSnapshotInDebuggee(boolean snapshotInDebuggee) {
+        this.snapshotInDebuggee = snapshotInDebuggee;
+        return this;
+    }
+
+    public CollectorOptions setDebuggeeLogDirectory(File debuggeeLogDirectory) {
+        this.debuggeeLogDirectory = debuggeeLogDirectory;
+        return this;
+    }
+
+    public CollectorOptions setDebuggeeLogSize(long debuggeeLogSize) {
+        this.debuggeeLogSize = debuggeeLogSize;
+        return this;
+    }
+
+    public CollectorOptions setSelectTestsByCoverage(boolean selectTestsByCoverage) {
+        this.selectTestsByCoverage = selectTestsByCoverage;
+        return this;
+    }
+
+    public CollectorOptions setJaCoCoAgent(File jaCoCoAgent) {
+        this.jaCoCoAgent = jaCoCoAgent;
+        return this;
+    }
+
+    public CollectorOptions setMaxHitsPerLine(int maxHitsPerLine) {
+        this.maxHitsPerLine = maxHitsPerLine;
+        return this;
+    }
+
+    public CollectorOptions setMaxReturnsPerMethod(int maxReturnsPerMethod) {
+        this.maxReturnsPerMethod = maxReturnsPerMethod;
+        return this;
+    }
+
+    public CollectorOptions setMaxCapturedBytes(long maxCapturedBytes) {
+        this.maxCapturedBytes = maxCapturedBytes;
+        return this;
+    }
+
+    public CollectorOptions setCountHits(boolean countHits) {
+        this.countHits = countHits;
+        return this;
+    }
+
+    public CollectorOptions setFingerprintStates(boolean fingerprintStates) {
+        this.fingerprintStates = fingerprintStates;
+        return this;
+    }
 }
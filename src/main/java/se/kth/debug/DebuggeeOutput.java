@@ -0,0 +1,77 @@
+package se.kth.debug;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Logger;
+
+/**
+ * Copies what a debuggee prints to log files on background threads, so that the debuggee never
+ * blocks on a full pipe. A log that would grow past its size limit replaces the previous one, so a
+ * stream takes about twice the limit on disk at most.
+ */
+public final class DebuggeeOutput {
+    private static final Logger logger = Logger.getLogger(DebuggeeOutput.class.getName());
+
+    private DebuggeeOutput() {}
+
+    /**
+     * Drains the standard output and the standard error of the debuggee into {@code
+     * debuggee-<pid>.out} and {@code debuggee-<pid>.err} in the directory, which is created if
+     * needed. The previous content of a log is kept with the suffix {@code .1}.
+     */
+    public static void drain(Process debuggee, File directory, long limit) throws IOException {
+        Files.createDirectories(directory.toPath());
+        String name = "debuggee-" + debuggee.pid();
+        start(debuggee.getInputStream(), new File(directory, name + ".out"), limit);
+        start(debuggee.getErrorStream(), new File(directory, name + ".err"), limit);
+    }
+
+    private static void start(InputStream stream, File log, long limit) throws IOException {
+        OutputStream out = new FileOutputStream(log);
+        Thread thread =
+                new Thread(
+                        () -> {
+                            try (stream) {
+                                try {
+                                    copy(stream, out, log, limit);
+                                } catch (IOException e) {
+                                    logger.warning("Could not write " + log + ": " + e);
+                                    stream.transferTo(OutputStream.nullOutputStream());
+                                }
+                            } catch (IOException e) {
+                                // The debuggee is gone.
+                            }
+                        },
+                        log.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void copy(InputStream stream, OutputStream out, File log, long limit)
+            throws IOException {
+        File previous = new File(log.getPath() + ".1");
+        byte[] buffer = new byte[8192];
+        try {
+            long written = 0;
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                if (written > 0 && written + read > limit) {
+                    out.close();
+                    Files.move(
+                            log.toPath(), previous.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    out = new FileOutputStream(log);
+                    written = 0;
+                }
+                out.write(buffer, 0, read);
+                written += read;
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -3,28 +3,52 @@ package se.kth.debug;
 import com.sun.jdi.*;
 import com.sun.jdi.event.*;
 import com.sun.jdi.request.*;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import se.kth.debug.agent.AgentLauncher;
+import se.kth.debug.agent.GraphSnapshot;
+import se.kth.debug.output.BinaryReader;
 import se.kth.debug.struct.FileAndBreakpoint;
+import se.kth.debug.struct.HitSampling;
 import se.kth.debug.struct.MethodForExitEvent;
 import se.kth.debug.struct.result.*;
 
 public class Debugger {
     private Process process;
     private static final Logger logger = Logger.getLogger("Debugger");
+    // Key of the property that marks requests made for collecting the return value of a method.
+    private static final String RETURNING_METHOD = "returningMethod";
+    // Key of the property holding the methods whose returns a class-wide exit request is for.
+    private static final String METHODS_ASKED_FOR = "methodsAskedFor";
+    // Key of the property that marks the breakpoint at which the debuggee waits for the next job.
+    private static final String AWAITING_JOB = "awaitingJob";
+    // Key of the property that marks the requests that tell when a test method starts.
+    private static final String TEST_STARTED = "testStarted";
+    private static final List<String> EXCLUDED_PACKAGES =
+            List.of("java.lang", "java.util", "org.junit", "junit", "jdk", "se.kth.debug");
 
     private final String[] pathToBuiltProject;
     private final String[] tests;
-    private final List<FileAndBreakpoint> classesAndBreakpoints;
-    private final List<MethodForExitEvent> methodForExitEvents;
+    private final BreakpointIndex breakpointIndex;
+    private final ReferenceTypeCache referenceTypeCache = new ReferenceTypeCache();
+    // Objects expanded in the breakpoint or return currently being processed, by unique ID.
+    private final Map<Long, ExpandedObject> capturedObjects = new HashMap<>();
+    private final Map<ThreadReference, List<String>> stackTraces = new HashMap<>();
+    // Names of the classes of the input whose requests have been created.
+    private final Set<String> preparedClasses = new HashSet<>();
+    // Values whose fields and elements wait to be collected by GraphSnapshot in the debuggee.
+    private final List<PendingSnapshot> pendingSnapshots = new ArrayList<>();
+    private ClassType graphSnapshot;
+    private Method snapshotMethod;
+    private ArrayType snapshotArgumentType;
+    private boolean isGraphSnapshotUnavailable = false;
 
     public Debugger(
             String[] pathToBuiltProject,
@@ -33,22 +57,61 @@ public class Debugger {
             List<MethodForExitEvent> methodForExitEvents) {
         this.pathToBuiltProject = pathToBuiltProject;
         this.tests = tests;
-        this.classesAndBreakpoints = classesAndBreakpoints;
-        this.methodForExitEvents = methodForExitEvents;
+        this.breakpointIndex = new BreakpointIndex(classesAndBreakpoints, methodForExitEvents);
     }
 
     public VirtualMachine launchVMAndJunit() {
+        return launchVMAndJunit(new CollectorOptions());
+    }
+
+    /**
+     * Launches the tests in a debuggee. It maps the classes JUnit needs from an archive shared with
+     * other debuggees if {@link CollectorOptions#shouldShareClassData()}, and lets {@link
+     * GraphSnapshot} read any field if {@link CollectorOptions#shouldSnapshotInDebuggee()}. What
+     * the debuggee prints is logged to {@link CollectorOptions#getDebuggeeLogDirectory()}, or
+     * discarded.
+     */
+    public VirtualMachine launchVMAndJunit(CollectorOptions context) {
+        return launchVMAndJunit(
+                Utility.parseTests(tests), context, context.shouldSnapshotInDebuggee());
+    }
+
+    /**
+     * Launches a test runner that runs the jobs written to its standard input, one line of tests
+     * per job. It calls {@link JUnitTestRunner#awaitingJob()} before reading each job. Class data
+     * sharing and the output of the debuggee are handled as in {@link
+     * #launchVMAndJunit(CollectorOptions)}.
+     */
+    public VirtualMachine launchVMAndJunitForJobs(CollectorOptions context) {
+        return launchVMAndJunit(JUnitTestRunner.JOBS_ARGUMENT, context, false);
+    }
+
+    private VirtualMachine launchVMAndJunit(
+            String runnerArgument, CollectorOptions context, boolean openModules) {
+        VMAcquirer acquirer = new VMAcquirer();
         try {
+            String address = acquirer.startListening();
             String classpath = Utility.getClasspathForRunningJUnit(pathToBuiltProject);
-            String testsSeparatedBySpace = Utility.parseTests(tests);
-            ProcessBuilder processBuilder =
-                    new ProcessBuilder(
-                            "java",
-                            "-agentlib:jdwp=transport=dt_socket,server=y,suspend=y",
+            List<String> command = new ArrayList<>();
+            command.add("java");
+            if (context.shouldShareClassData()) {
+                command.addAll(ClassDataSharing.getVMOptions(classpath));
+            }
+            if (openModules) {
+                File agent = File.createTempFile("collector-agent", ".jar");
+                agent.deleteOnExit();
+                AgentLauncher.writeAgentJar(agent);
+                command.add("-javaagent:" + agent);
+            }
+            command.addAll(
+                    List.of(
+                            "-agentlib:jdwp=transport=dt_socket,server=n,suspend=y,address="
+                                    + address,
                             "-cp",
                             classpath,
                             JUnitTestRunner.class.getCanonicalName(),
-                            testsSeparatedBySpace);
+                            runnerArgument));
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
             logger.log(
                     Level.INFO,
                     "java -cp "
@@ -56,20 +119,22 @@ public class Debugger {
                             + " "
                             + JUnitTestRunner.class.getCanonicalName()
                             + " "
-                            + testsSeparatedBySpace);
+                            + runnerArgument);
 
-            process = processBuilder.start();
-
-            InputStreamReader isr = new InputStreamReader(process.getInputStream());
-            BufferedReader br = new BufferedReader(isr);
-            String lineRead = br.readLine();
-            Pattern pattern = Pattern.compile("([0-9]{4,})");
-            Matcher matcher = pattern.matcher(lineRead);
-            matcher.find();
-            int port = Integer.parseInt(matcher.group());
+            if (context.getDebuggeeLogDirectory() == null) {
+                process =
+                        processBuilder
+                                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                                .start();
+            } else {
+                process = processBuilder.start();
+                DebuggeeOutput.drain(
+                        process, context.getDebuggeeLogDirectory(), context.getDebuggeeLogSize());
+            }
 
-            final VirtualMachine vm = new VMAcquirer().connect(port);
-            logger.log(Level.INFO, "Connected to port: " + port);
+            final VirtualMachine vm = acquirer.accept(process);
+            logger.log(Level.INFO, "Connected to " + address);
             // kill process when the program exit
             Runtime.getRuntime()
                     .addShutdownHook(
@@ -83,14 +148,15 @@ public class Debugger {
             logger.log(Level.SEVERE, "Wrong URL: " + e.toString());
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            acquirer.stopListening();
         }
         return null;
     }
 
     public void addClassPrepareEvent(VirtualMachine vm) {
         EventRequestManager erm = vm.eventRequestManager();
-        Set<String> classesToBeRegistered = getUniqueClasses();
-        for (String className : classesToBeRegistered) {
+        for (String className : breakpointIndex.getClasses()) {
             ClassPrepareRequest cpr = erm.createClassPrepareRequest();
             cpr.addClassFilter(className);
             cpr.setEnabled(true);
@@ -99,75 +165,377 @@ public class Debugger {
         }
     }
 
-    /** We need to register unique class prepare requests, so we combine the class filters. */
-    private Set<String> getUniqueClasses() {
-        Set<String> classesFromRegisteringClassPrepareRequest = new HashSet<>();
-        if (classesAndBreakpoints != null) {
-            for (FileAndBreakpoint classToBeDebugged : classesAndBreakpoints) {
-                classesFromRegisteringClassPrepareRequest.add(classToBeDebugged.getFileName());
+    /**
+     * Replaces the requests left by the previous job of a debuggee that runs several jobs. Classes
+     * loaded by earlier jobs will not be prepared again, so their requests are created right away.
+     */
+    public void prepareJob(VirtualMachine vm, CollectorOptions context)
+            throws AbsentInformationException {
+        EventRequestManager erm = vm.eventRequestManager();
+        erm.deleteEventRequests(erm.classPrepareRequests());
+        erm.deleteEventRequests(erm.methodExitRequests());
+        erm.deleteEventRequests(
+                erm.breakpointRequests().stream()
+                        .filter(br -> br.getProperty(AWAITING_JOB) == null)
+                        .collect(Collectors.toList()));
+        for (String className : breakpointIndex.getClasses()) {
+            ClassPrepareRequest cpr = erm.createClassPrepareRequest();
+            cpr.addClassFilter(className);
+            cpr.setEnabled(true);
+            for (ReferenceType type : vm.classesByName(className)) {
+                prepareClass(vm, type, context);
             }
         }
-        if (methodForExitEvents != null) {
-            for (MethodForExitEvent method : methodForExitEvents) {
-                classesFromRegisteringClassPrepareRequest.add(method.getClassName());
-            }
+    }
+
+    /** Creates the requests for a class of the input once it has been prepared. */
+    public void prepareClass(VirtualMachine vm, ReferenceType type, CollectorOptions context)
+            throws AbsentInformationException {
+        preparedClasses.add(type.name());
+        if (!context.shouldSkipBreakpointValues()) {
+            setBreakpoints(vm, type, context);
         }
-        return classesFromRegisteringClassPrepareRequest;
+        if (!context.shouldSkipReturnValues()) {
+            registerMethodExits(vm, type, context);
+        }
+    }
+
+    /** Suspends the debuggee whenever its test runner waits for the next job. */
+    public void setBreakpointAtAwaitingJob(VirtualMachine vm, ReferenceType testRunner) {
+        Method awaitingJob = testRunner.methodsByName("awaitingJob").get(0);
+        BreakpointRequest br =
+                vm.eventRequestManager().createBreakpointRequest(awaitingJob.location());
+        br.putProperty(AWAITING_JOB, true);
+        br.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+        br.setEnabled(true);
+    }
+
+    public static boolean isAwaitingJob(Event event) {
+        return event instanceof BreakpointEvent
+                && event.request().getProperty(AWAITING_JOB) != null;
+    }
+
+    /** Waits for the test runner to be prepared, to know when each test method starts. */
+    public void watchTestsStarting(VirtualMachine vm) {
+        ClassPrepareRequest cpr = vm.eventRequestManager().createClassPrepareRequest();
+        cpr.addClassFilter(JUnitTestRunner.class.getName());
+        cpr.putProperty(TEST_STARTED, true);
+        cpr.setEnabled(true);
+    }
+
+    public static boolean isTestRunnerPrepared(Event event) {
+        return event instanceof ClassPrepareEvent
+                && event.request().getProperty(TEST_STARTED) != null;
+    }
+
+    /** Suspends the thread that starts a test method, until it has been read which one it is. */
+    public void setBreakpointAtTestStarted(VirtualMachine vm, ReferenceType testRunner) {
+        Method testStarted = testRunner.methodsByName("testStarted").get(0);
+        BreakpointRequest br =
+                vm.eventRequestManager().createBreakpointRequest(testStarted.location());
+        br.putProperty(TEST_STARTED, true);
+        br.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+        br.setEnabled(true);
     }
 
-    public void setBreakpoints(VirtualMachine vm, ClassPrepareEvent event)
+    public static boolean isTestStarted(Event event) {
+        return event instanceof BreakpointEvent
+                && event.request().getProperty(TEST_STARTED) != null;
+    }
+
+    /**
+     * Returns the test method that starts at the breakpoint of {@link #setBreakpointAtTestStarted}.
+     */
+    public String getStartedTest(BreakpointEvent bpe) throws IncompatibleThreadStateException {
+        return ((StringReference) bpe.thread().frame(0).getArgumentValues().get(0)).value();
+    }
+
+    public void setBreakpoints(VirtualMachine vm, ReferenceType type, CollectorOptions context)
             throws AbsentInformationException {
         EventRequestManager erm = vm.eventRequestManager();
 
-        List<Integer> breakpoints =
-                classesAndBreakpoints.stream()
-                        .filter(cb -> cb.getFileName().equals(event.referenceType().name()))
-                        .findFirst()
-                        .get()
-                        .getBreakpoints();
+        BitSet breakpoints = breakpointIndex.getBreakpoints(type.name());
 
-        for (int lineNumber : breakpoints) {
+        for (int lineNumber = breakpoints.nextSetBit(0);
+                lineNumber >= 0;
+                lineNumber = breakpoints.nextSetBit(lineNumber + 1)) {
             try {
-                List<Location> locations = event.referenceType().locationsOfLine(lineNumber);
+                List<Location> locations = type.locationsOfLine(lineNumber);
                 BreakpointRequest br = erm.createBreakpointRequest(locations.get(0));
+                br.setSuspendPolicy(getJdiSuspendPolicy(context));
+                HitSampling sampling = breakpointIndex.getSampling(type.name(), lineNumber);
+                if (sampling != null
+                        && sampling.getPolicy() == HitSampling.Policy.EVERY_NTH
+                        && !context.shouldCountHits()) {
+                    // The debuggee skips the other hits itself. The filter expires with the hit it
+                    // reports, so BreakpointSampler re-arms the request after each of them.
+                    br.addCountFilter(sampling.getSize());
+                }
                 br.setEnabled(true);
             } catch (IndexOutOfBoundsException exception) {
                 logger.warning(
                         String.format(
-                                "%d is not a valid breakpoint in %s",
-                                lineNumber, event.referenceType().name()));
+                                "%d is not a valid breakpoint in %s", lineNumber, type.name()));
             }
         }
     }
 
-    public void registerMethodExits(VirtualMachine vm, ClassPrepareEvent event) {
+    public void registerMethodExits(
+            VirtualMachine vm, ReferenceType type, CollectorOptions context) {
+        if (context.shouldTargetMethodExits()) {
+            if (vm.canGetBytecodes()) {
+                setBreakpointsAtReturns(vm, type, context);
+                return;
+            }
+            logger.warning(
+                    "The VM cannot provide bytecodes, so exits of all methods are requested.");
+        }
         EventRequestManager erm = vm.eventRequestManager();
         MethodExitRequest mer = erm.createMethodExitRequest();
-        mer.addClassFilter(event.referenceType());
+        mer.addClassFilter(type);
+        mer.putProperty(METHODS_ASKED_FOR, getMethodsWithReturnsAskedFor(vm, type));
+        mer.setSuspendPolicy(getJdiSuspendPolicy(context));
         mer.setEnabled(true);
     }
 
+    /**
+     * Returns the methods of the type that {@link #processMethodExit(MethodExitEvent,
+     * CollectorOptions)} may keep a return of. Without the bytecodes, any line of a method may hold
+     * one of its returns.
+     */
+    private List<Method> getMethodsWithReturnsAskedFor(VirtualMachine vm, ReferenceType type) {
+        List<Method> methods = new ArrayList<>();
+        for (Method method : type.methods()) {
+            if (method.isAbstract()) {
+                continue;
+            }
+            if (isMethodExplicitlyAskedFor(method)) {
+                methods.add(method);
+                continue;
+            }
+            List<Location> returns = new ArrayList<>();
+            try {
+                if (vm.canGetBytecodes()) {
+                    for (long codeIndex : ReturnInstructions.findCodeIndices(method.bytecodes())) {
+                        returns.add(method.locationOfCodeIndex(codeIndex));
+                    }
+                } else {
+                    returns.addAll(method.allLineLocations());
+                }
+            } catch (AbsentInformationException e) {
+                // The exits of the method have no line, so none is within the breakpoints.
+            }
+            if (returns.stream()
+                    .anyMatch(
+                            location ->
+                                    isReturnWithinBreakpoints(
+                                            location.lineNumber(), type.name()))) {
+                methods.add(method);
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * JDI cannot filter method exits by method. Hence, breakpoints are set at the return
+     * instructions that {@link #processMethodExit(MethodExitEvent, CollectorOptions)} would keep,
+     * and each of them requests the one exit that immediately follows it.
+     */
+    private void setBreakpointsAtReturns(
+            VirtualMachine vm, ReferenceType type, CollectorOptions context) {
+        EventRequestManager erm = vm.eventRequestManager();
+        for (Method method : type.methods()) {
+            if (method.isAbstract() || method.isNative()) {
+                continue;
+            }
+            boolean isExplicitlyAskedFor = isMethodExplicitlyAskedFor(method);
+            for (long codeIndex : ReturnInstructions.findCodeIndices(method.bytecodes())) {
+                Location location = method.locationOfCodeIndex(codeIndex);
+                if (isExplicitlyAskedFor
+                        || isReturnWithinBreakpoints(location.lineNumber(), type.name())) {
+                    BreakpointRequest br = erm.createBreakpointRequest(location);
+                    br.putProperty(RETURNING_METHOD, method);
+                    br.setSuspendPolicy(getJdiSuspendPolicy(context));
+                    br.setEnabled(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the suspend policy of the requests, which suspend nothing if hits are only counted.
+     * When threads are filtered by name, the requests only suspend the event thread, so that the
+     * events of the other threads do not stop the debuggee, and {@link #suspendForInspection}
+     * suspends the rest of it.
+     */
+    private static int getJdiSuspendPolicy(CollectorOptions context) {
+        if (context.shouldCountHits()) {
+            return EventRequest.SUSPEND_NONE;
+        }
+        if (context.getThreadNameFilter() != null) {
+            return EventRequest.SUSPEND_EVENT_THREAD;
+        }
+        return context.getSuspendPolicy().getJdiSuspendPolicy();
+    }
+
+    public boolean isAtReturnInstruction(BreakpointEvent bpe) {
+        return bpe.request().getProperty(RETURNING_METHOD) != null;
+    }
+
+    /**
+     * Requests the exit of the method the thread is about to return from. Nothing else can run on
+     * the thread before the return instruction, so the next exit from the class on the thread is
+     * the one of this method.
+     */
+    public void requestExitOfReturningMethod(
+            VirtualMachine vm, BreakpointEvent bpe, CollectorOptions context) {
+        MethodExitRequest mer = vm.eventRequestManager().createMethodExitRequest();
+        mer.addThreadFilter(bpe.thread());
+        mer.addClassFilter(bpe.location().declaringType());
+        mer.addCountFilter(1);
+        mer.putProperty(RETURNING_METHOD, bpe.location().method());
+        mer.setSuspendPolicy(getJdiSuspendPolicy(context));
+        mer.setEnabled(true);
+    }
+
+    /** Returns whether the return is within the breakpoints or from a method asked for. */
+    public boolean isReturnAskedFor(MethodExitEvent mee) {
+        return isReturnWithinBreakpoints(
+                        mee.location().lineNumber(), mee.method().declaringType().name())
+                || isMethodExplicitlyAskedFor(mee.method());
+    }
+
+    /**
+     * Stops requesting the returns of the method at its return instructions. The class-wide exit
+     * request of its class is disabled too once the returns of all its methods are exhausted.
+     */
+    public void disableReturnsOf(
+            VirtualMachine vm, Method method, Predicate<Method> isMethodExhausted) {
+        EventRequestManager erm = vm.eventRequestManager();
+        for (BreakpointRequest br : erm.breakpointRequests()) {
+            if (method.equals(br.getProperty(RETURNING_METHOD))) {
+                br.disable();
+            }
+        }
+        for (MethodExitRequest mer : erm.methodExitRequests()) {
+            List<?> methods = (List<?>) mer.getProperty(METHODS_ASKED_FOR);
+            if (methods != null
+                    && methods.contains(method)
+                    && methods.stream().allMatch(m -> isMethodExhausted.test((Method) m))) {
+                mer.disable();
+            }
+        }
+    }
+
+    /**
+     * Deletes the request of the exit if it was made at a return instruction for this exit only.
+     */
+    public void expireMethodExitRequest(MethodExitEvent mee) {
+        if (mee.request().getProperty(RETURNING_METHOD) != null) {
+            mee.virtualMachine().eventRequestManager().deleteEventRequest(mee.request());
+        }
+    }
+
+    /** Disables every request that captures data, so that the debuggee runs on undisturbed. */
+    public void disableCaptureRequests(VirtualMachine vm) {
+        EventRequestManager erm = vm.eventRequestManager();
+        erm.classPrepareRequests().forEach(EventRequest::disable);
+        erm.methodExitRequests().forEach(EventRequest::disable);
+        erm.breakpointRequests().stream()
+                .filter(br -> br.getProperty(AWAITING_JOB) == null)
+                .forEach(EventRequest::disable);
+    }
+
+    /**
+     * Returns whether nothing is left to capture: every class of the input has been prepared, and
+     * all the requests that capture data have been disabled or have expired.
+     */
+    public boolean areCaptureRequestsExhausted(VirtualMachine vm) {
+        EventRequestManager erm = vm.eventRequestManager();
+        return preparedClasses.containsAll(breakpointIndex.getClasses())
+                && erm.methodExitRequests().stream().noneMatch(EventRequest::isEnabled)
+                && erm.breakpointRequests().stream()
+                        .noneMatch(br -> br.isEnabled() && br.getProperty(AWAITING_JOB) == null);
+    }
+
+    /**
+     * Returns whether events from the thread should be processed. JDI thread filters only accept
+     * threads that are already running, while the test runner starts a new thread for every test.
+     * Hence, thread names are matched when the events arrive.
+     */
+    public boolean isThreadToBeInspected(ThreadReference thread, CollectorOptions context) {
+        return context.getThreadNameFilter() == null
+                || context.getThreadNameFilter().matcher(thread.name()).matches();
+    }
+
+    /**
+     * Suspends the whole debuggee for an event set of a thread to be inspected, if all threads are
+     * to be suspended but the requests only suspended the event thread because of the thread name
+     * filter. The other threads are thus suspended a little after the event rather than with it.
+     *
+     * @return whether the debuggee was suspended, and has to be resumed after the event set
+     */
+    public boolean suspendForInspection(EventSet eventSet, CollectorOptions context) {
+        if (eventSet.suspendPolicy() != EventRequest.SUSPEND_EVENT_THREAD
+                || context.getThreadNameFilter() == null
+                || context.getSuspendPolicy() != SuspendPolicy.ALL) {
+            return false;
+        }
+        for (Event event : eventSet) {
+            if (event instanceof LocatableEvent
+                    && isThreadToBeInspected(((LocatableEvent) event).thread(), context)) {
+                eventSet.virtualMachine().suspend();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Class unloads are watched to evict the metadata cached for the unloaded classes. */
+    public void registerClassUnloads(VirtualMachine vm) {
+        ClassUnloadRequest cur = vm.eventRequestManager().createClassUnloadRequest();
+        cur.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+        cur.setEnabled(true);
+    }
+
+    public void processClassUnload(ClassUnloadEvent cue) {
+        referenceTypeCache.invalidate(cue.className());
+    }
+
     public List<StackFrameContext> processBreakpoints(BreakpointEvent bpe, CollectorOptions context)
             throws IncompatibleThreadStateException, AbsentInformationException {
         ThreadReference threadReference = bpe.thread();
 
+        int frameCount = threadReference.frameCount();
         int framesToBeProcessed = context.getStackTraceDepth();
-        if (context.getStackTraceDepth() > threadReference.frameCount()) {
-            framesToBeProcessed = threadReference.frameCount();
+        if (framesToBeProcessed > frameCount) {
+            framesToBeProcessed = frameCount;
             logger.warning(
                     String.format(
                             "Stack trace depth cannot be larger than actual. Processing %d frames instead.",
                             framesToBeProcessed));
         }
 
+        // The stack trace is shared by all the frames processed for this event.
+        List<String> stackTrace = stackTraces.get(threadReference);
+        List<StackFrame> frames;
+        if (stackTrace == null) {
+            // The whole stack is read once, for the stack trace and for the frames to be processed.
+            List<StackFrame> stack = threadReference.frames(0, frameCount);
+            stackTrace = computeStackTrace(stack);
+            stackTraces.put(threadReference, stackTrace);
+            frames = stack.subList(0, framesToBeProcessed);
+        } else {
+            frames = threadReference.frames(0, framesToBeProcessed);
+        }
+
+        capturedObjects.clear();
+        pendingSnapshots.clear();
         List<StackFrameContext> stackFrameContexts = new ArrayList<>();
         for (int i = 0; i < framesToBeProcessed; ++i) {
-            StackFrame stackFrame = threadReference.frame(i);
+            StackFrame stackFrame = frames.get(i);
             StackFrameContext stackFrameContext =
-                    new StackFrameContext(
-                            i + 1,
-                            stackFrame.location().toString(),
-                            computeStackTrace(threadReference));
+                    new StackFrameContext(i + 1, stackFrame.location().toString(), stackTrace);
             try {
                 List<LocalVariableData> localVariables = collectLocalVariable(stackFrame, context);
                 stackFrameContext.addRuntimeValueCollection(localVariables);
@@ -185,21 +553,42 @@ public class Debugger {
                 }
                 logger.warning(
                         "Information does not exist for " + stackFrame + " and frames later on");
-                return stackFrameContexts;
+                break;
             }
         }
+        takeSnapshots(threadReference, bpe.location().declaringType().classLoader(), context);
         return stackFrameContexts;
     }
 
-    private List<String> computeStackTrace(ThreadReference threadReference)
+    /**
+     * Returns the stack trace of the suspended thread. It is computed only once per event set, and
+     * then shared by all the events of the set, because the stack cannot change before the thread
+     * is resumed.
+     */
+    private List<String> getStackTrace(ThreadReference threadReference)
             throws IncompatibleThreadStateException {
+        List<String> stackTrace = stackTraces.get(threadReference);
+        if (stackTrace == null) {
+            stackTrace = computeStackTrace(threadReference.frames());
+            stackTraces.put(threadReference, stackTrace);
+        }
+        return stackTrace;
+    }
+
+    /** Forgets the stack traces computed so far. It must be called before the VM is resumed. */
+    public void resetStackTraces() {
+        stackTraces.clear();
+    }
+
+    private static List<String> computeStackTrace(List<StackFrame> stack) {
         List<String> result = new ArrayList<>();
-        List<String> excludedPackages =
-                List.of("java.lang", "java.util", "org.junit", "junit", "jdk", "se.kth.debug");
-        for (StackFrame stackFrame : threadReference.frames()) {
+        for (StackFrame stackFrame : stack) {
             Location location = stackFrame.location();
             String declaringTypeName = location.declaringType().name();
-            if (excludedPackages.stream().filter(declaringTypeName::contains).findAny().isEmpty()) {
+            if (EXCLUDED_PACKAGES.stream()
+                    .filter(declaringTypeName::contains)
+                    .findAny()
+                    .isEmpty()) {
                 String output =
                         String.format(
                                 "%s:%d, %s",
@@ -212,15 +601,16 @@ public class Debugger {
 
     public ReturnData processMethodExit(MethodExitEvent mee, CollectorOptions context)
             throws IncompatibleThreadStateException, AbsentInformationException {
+        expireMethodExitRequest(mee);
         String methodName = mee.method().name();
-        if (!isReturnWithinBreakpoints(
-                        mee.location().lineNumber(), mee.method().declaringType().name())
-                && !isMethodExplicitlyAskedFor(mee.method())) {
+        if (!isReturnAskedFor(mee)) {
             return null;
         }
         String location = mee.location().toString();
         List<LocalVariable> arguments = mee.method().arguments();
 
+        capturedObjects.clear();
+        pendingSnapshots.clear();
         ReturnData returnData =
                 new ReturnData(
                         methodName,
@@ -230,44 +620,19 @@ public class Debugger {
                         // the method will be in the 0th stack frame when the method exit event is
                         // triggered
                         collectArguments(mee.thread().frame(0), arguments, context),
-                        computeStackTrace(mee.thread()));
-        if (isAnObjectReference(mee.returnValue())) {
-            returnData.setFields(
-                    getNestedFields(
-                            (ObjectReference) mee.returnValue(),
-                            context.getExecutionDepth(),
-                            context));
-        }
-        if (mee.returnValue() instanceof ArrayReference) {
-            returnData.setArrayElements(
-                    getNestedElements(
-                            (ArrayReference) mee.returnValue(),
-                            context.getExecutionDepth(),
-                            context));
-        }
+                        getStackTrace(mee.thread()));
+        expand(returnData, mee.returnValue(), context);
+        takeSnapshots(mee.thread(), mee.method().declaringType().classLoader(), context);
         return returnData;
     }
 
     private boolean isReturnWithinBreakpoints(int lineNumber, String fullyQualifiedClassName) {
-        for (FileAndBreakpoint fNB : classesAndBreakpoints) {
-            if (fNB.getFileName().equals(fullyQualifiedClassName)) {
-                if (fNB.getBreakpoints().isEmpty()) {
-                    continue;
-                }
-                return fNB.getBreakpoints().contains(lineNumber);
-            }
-        }
-        return false;
+        return breakpointIndex.isBreakpoint(fullyQualifiedClassName, lineNumber);
     }
 
     private boolean isMethodExplicitlyAskedFor(Method method) {
-        for (MethodForExitEvent candidate : methodForExitEvents) {
-            if (candidate.getName().equals(method.name())
-                    && candidate.getClassName().equals(method.declaringType().name())) {
-                return true;
-            }
-        }
-        return false;
+        return breakpointIndex.isMethodExplicitlyAskedFor(
+                method.declaringType().name(), method.name());
     }
 
     private List<LocalVariableData> collectArguments(
@@ -282,23 +647,96 @@ public class Debugger {
 
     // We do not use recursion to compute representation of nested array elements because we need
     // only the values at current level.
-    private static Object computeReadableValue(Value value, CollectorOptions context) {
+    private Object computeReadableValue(Value value, CollectorOptions context) {
         if (value instanceof ArrayReference) {
             return getReadableValueOfArray((ArrayReference) value, context);
         }
         return getReadableValue(value);
     }
 
-    private static List<Object> getReadableValueOfArray(
-            ArrayReference array, CollectorOptions context) {
-        return array.getValues().stream()
-                .filter(Objects::nonNull)
-                .limit(context.getNumberOfArrayElements())
-                .map(Debugger::getReadableValue)
+    private List<Object> getReadableValueOfArray(ArrayReference array, CollectorOptions context) {
+        return sampleArray(array, context).stream()
+                .map(this::getReadableValue)
                 .collect(Collectors.toList());
     }
 
-    private static Object getReadableValue(Value value) {
+    /**
+     * Fetches at most {@link CollectorOptions#getNumberOfArrayElements()} non-null elements of the
+     * array. Only the indices selected by {@link CollectorOptions#getArraySampling()} are
+     * transferred, so the cost depends on the number of elements asked for and not on the length of
+     * the array.
+     */
+    private static List<Value> sampleArray(ArrayReference array, CollectorOptions context) {
+        int needed = context.getNumberOfArrayElements();
+        int length = array.length();
+        if (needed <= 0 || length == 0) {
+            return new ArrayList<>();
+        }
+        switch (context.getArraySampling()) {
+            case TAIL:
+                return sampleTail(array, length, needed);
+            case STRIDE:
+                return sampleStride(array, length, needed);
+            default:
+                return sampleHead(array, length, needed);
+        }
+    }
+
+    private static List<Value> sampleHead(ArrayReference array, int length, int needed) {
+        List<Value> result = new ArrayList<>();
+        int windowLength = needed;
+        int start = 0;
+        // Null elements are skipped, so sparse arrays, like the table of a hash map, may need more
+        // than one window. The window grows geometrically to bound the number of requests.
+        while (start < length && result.size() < needed) {
+            int end = (int) Math.min(length, (long) start + windowLength);
+            for (Value value : array.getValues(start, end - start)) {
+                if (value != null && result.size() < needed) {
+                    result.add(value);
+                }
+            }
+            start = end;
+            windowLength *= 2;
+        }
+        return result;
+    }
+
+    private static List<Value> sampleTail(ArrayReference array, int length, int needed) {
+        List<Value> result = new ArrayList<>();
+        int windowLength = needed;
+        int end = length;
+        while (end > 0 && result.size() < needed) {
+            int start = (int) Math.max(0, (long) end - windowLength);
+            List<Value> window = array.getValues(start, end - start);
+            for (int i = window.size() - 1; i >= 0 && result.size() < needed; --i) {
+                if (window.get(i) != null) {
+                    result.add(window.get(i));
+                }
+            }
+            end = start;
+            windowLength *= 2;
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static List<Value> sampleStride(ArrayReference array, int length, int needed) {
+        if (needed >= length) {
+            return sampleHead(array, length, needed);
+        }
+        List<Value> result = new ArrayList<>();
+        for (int i = 0; i < needed; ++i) {
+            // Spread the indices so that both the first and the last element are included.
+            int index = needed == 1 ? 0 : (int) ((long) i * (length - 1) / (needed - 1));
+            Value value = array.getValue(index);
+            if (value != null) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+
+    private Object getReadableValue(Value value) {
         if (value == null) {
             return null;
         }
@@ -322,36 +760,31 @@ public class Debugger {
             return ((DoubleValue) value).value();
         } else if (value instanceof VoidValue) {
             return String.valueOf(value);
-        } else if (isPrimitiveWrapper(value)) {
-            Field field = ((ObjectReference) value).referenceType().fieldByName("value");
+        }
+        ReferenceType type = ((ObjectReference) value).referenceType();
+        if (referenceTypeCache.isPrimitiveWrapper(type)) {
+            Field field = referenceTypeCache.getValueField(type);
             Value nestedValue = ((ObjectReference) value).getValue(field);
             return getReadableValue(nestedValue);
         } else {
-            return String.valueOf(((ObjectReference) value).referenceType().name());
+            return String.valueOf(type.name());
         }
     }
 
     private List<LocalVariableData> parseVariable(
             StackFrame stackFrame, List<LocalVariable> variables, CollectorOptions context) {
         List<LocalVariableData> result = new ArrayList<>();
+        // All values are fetched in a single request instead of one request per variable.
+        Map<LocalVariable, Value> values = stackFrame.getValues(variables);
         for (LocalVariable variable : variables) {
-            Value value = stackFrame.getValue(variable);
+            Value value = values.get(variable);
             LocalVariableData localVariableData =
                     new LocalVariableData(
                             variable.name(),
                             variable.typeName(),
                             computeReadableValue(value, context));
             result.add(localVariableData);
-            if (isAnObjectReference(value)) {
-                localVariableData.setFields(
-                        getNestedFields(
-                                (ObjectReference) value, context.getExecutionDepth(), context));
-            }
-            if (value instanceof ArrayReference) {
-                localVariableData.setArrayElements(
-                        getNestedElements(
-                                (ArrayReference) value, context.getExecutionDepth(), context));
-            }
+            expand(localVariableData, value, context);
         }
         return result;
     }
@@ -359,48 +792,111 @@ public class Debugger {
     private List<FieldData> collectFields(StackFrame stackFrame, CollectorOptions context) {
         List<FieldData> result = new ArrayList<>();
 
-        List<Field> visibleFields = stackFrame.location().declaringType().visibleFields();
-        for (Field field : visibleFields) {
-            Value value;
-            if (field.isStatic()) {
-                value = stackFrame.location().declaringType().getValue(field);
-            } else if (stackFrame.location().method().isStatic()) {
-                // Since we are inside a static method, we don't have access to the non-static
-                // field.
-                // Hence, we are skipping its collection.
-                continue;
-            } else {
-                value = stackFrame.thisObject().getValue(field);
-            }
+        List<Field> fieldsToBeCollected = getFieldsToBeCollected(stackFrame);
+        Map<Field, Value> values = getFieldValues(stackFrame, fieldsToBeCollected);
+        for (Field field : fieldsToBeCollected) {
+            Value value = values.get(field);
             FieldData fieldData =
                     new FieldData(
                             field.name(), field.typeName(), computeReadableValue(value, context));
-            if (isAnObjectReference(value)) {
-                fieldData.setFields(
-                        getNestedFields(
-                                (ObjectReference) value, context.getExecutionDepth(), context));
-            }
-            if (value instanceof ArrayReference) {
-                fieldData.setArrayElements(
-                        getNestedElements(
-                                (ArrayReference) value, context.getExecutionDepth(), context));
-            }
+            expand(fieldData, value, context);
             result.add(fieldData);
         }
         return result;
     }
 
-    private static List<ArrayElement> getNestedElements(
+    private List<Field> getFieldsToBeCollected(StackFrame stackFrame) {
+        boolean isInsideStaticMethod = stackFrame.location().method().isStatic();
+        // Since we are inside a static method, we don't have access to the non-static fields.
+        // Hence, we are skipping their collection.
+        return referenceTypeCache.getVisibleFields(stackFrame.location().declaringType()).stream()
+                .filter(field -> field.isStatic() || !isInsideStaticMethod)
+                .collect(Collectors.toList());
+    }
+
+    private static Map<Field, Value> getFieldValues(StackFrame stackFrame, List<Field> fields) {
+        // All values are fetched in a single request instead of one request per field.
+        return stackFrame.location().method().isStatic()
+                ? stackFrame.location().declaringType().getValues(fields)
+                : stackFrame.thisObject().getValues(fields);
+    }
+
+    /**
+     * Hashes the state of the frames that {@link #processBreakpoints(BreakpointEvent,
+     * CollectorOptions)} would collect, without expanding anything: the location of each frame, and
+     * the values of its variables and fields. Objects, strings and arrays only count by their
+     * identity, so a change below them goes unnoticed. It takes one request per frame for the
+     * variables and one for the fields, however deep the values are.
+     */
+    public long fingerprint(BreakpointEvent bpe, CollectorOptions context)
+            throws IncompatibleThreadStateException, AbsentInformationException {
+        ThreadReference threadReference = bpe.thread();
+        int framesToBeProcessed =
+                Math.min(context.getStackTraceDepth(), threadReference.frameCount());
+        long fingerprint = 0;
+        List<StackFrame> frames = threadReference.frames(0, framesToBeProcessed);
+        for (int i = 0; i < framesToBeProcessed; ++i) {
+            StackFrame stackFrame = frames.get(i);
+            fingerprint = mix(fingerprint, stackFrame.location().hashCode());
+            List<LocalVariable> variables;
+            try {
+                variables = stackFrame.visibleVariables();
+            } catch (AbsentInformationException e) {
+                if (i == 0) {
+                    throw new AbsentInformationException(
+                            "The files corresponding to provided breakpoints are not compiled with debugging information.");
+                }
+                break;
+            }
+            Map<LocalVariable, Value> values = stackFrame.getValues(variables);
+            for (LocalVariable variable : variables) {
+                fingerprint = mix(fingerprint, values.get(variable));
+            }
+            if (!context.shouldSkipPrintingField()) {
+                List<Field> fields = getFieldsToBeCollected(stackFrame);
+                Map<Field, Value> fieldValues = getFieldValues(stackFrame, fields);
+                for (Field field : fields) {
+                    fingerprint = mix(fingerprint, fieldValues.get(field));
+                }
+            }
+        }
+        return fingerprint;
+    }
+
+    private static long mix(long fingerprint, Value value) {
+        if (value == null) {
+            return mix(fingerprint, 0);
+        }
+        if (value instanceof ObjectReference) {
+            return mix(mix(fingerprint, 1), ((ObjectReference) value).uniqueID());
+        }
+        if (value instanceof BooleanValue) {
+            return mix(fingerprint, ((BooleanValue) value).value() ? 2 : 3);
+        }
+        if (value instanceof FloatValue) {
+            return mix(mix(fingerprint, 4), Float.floatToIntBits(((FloatValue) value).value()));
+        }
+        if (value instanceof DoubleValue) {
+            return mix(mix(fingerprint, 5), Double.doubleToLongBits(((DoubleValue) value).value()));
+        }
+        return mix(mix(fingerprint, 6), ((PrimitiveValue) value).longValue());
+    }
+
+    /** Combines the value with the fingerprint, with the finalizer of SplitMix64. */
+    private static long mix(long fingerprint, long value) {
+        long z = (fingerprint ^ value) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private List<ArrayElement> getNestedElements(
             ArrayReference array, int executionDepth, CollectorOptions context) {
         if (executionDepth == 0) {
             return null;
         }
         List<ArrayElement> result = new ArrayList<>();
-        List<Value> neededValues =
-                array.getValues().stream()
-                        .filter(Objects::nonNull)
-                        .limit(context.getNumberOfArrayElements())
-                        .collect(Collectors.toList());
+        List<Value> neededValues = sampleArray(array, context);
         for (Value nestedValue : neededValues) {
             if (nestedValue instanceof ArrayReference) {
                 ArrayElement arrayElement =
@@ -408,16 +904,20 @@ public class Debugger {
                                 nestedValue.type().name(),
                                 getReadableValueOfArray((ArrayReference) nestedValue, context));
                 result.add(arrayElement);
-                arrayElement.setArrayElements(
-                        getNestedElements(
-                                (ArrayReference) nestedValue, executionDepth - 1, context));
+                if (shouldExpand(arrayElement, nestedValue, executionDepth - 1, context)) {
+                    arrayElement.setArrayElements(
+                            getNestedElements(
+                                    (ArrayReference) nestedValue, executionDepth - 1, context));
+                }
             } else if (isAnObjectReference(nestedValue)) {
                 ArrayElement arrayElement =
                         new ArrayElement(nestedValue.type().name(), getReadableValue(nestedValue));
                 result.add(arrayElement);
-                arrayElement.setFields(
-                        getNestedFields(
-                                (ObjectReference) nestedValue, executionDepth - 1, context));
+                if (shouldExpand(arrayElement, nestedValue, executionDepth - 1, context)) {
+                    arrayElement.setFields(
+                            getNestedFields(
+                                    (ObjectReference) nestedValue, executionDepth - 1, context));
+                }
             } else {
                 ArrayElement arrayElement =
                         new ArrayElement(nestedValue.type().name(), getReadableValue(nestedValue));
@@ -427,58 +927,251 @@ public class Debugger {
         return result;
     }
 
-    private static List<FieldData> getNestedFields(
+    private List<FieldData> getNestedFields(
             ObjectReference object, int executionDepth, CollectorOptions context) {
         if (executionDepth == 0) {
             return null;
         }
         List<FieldData> result = new ArrayList<>();
-        List<Field> fields = object.referenceType().visibleFields();
+        List<Field> fields = referenceTypeCache.getVisibleFields(object.referenceType());
+        Map<Field, Value> values = object.getValues(fields);
         for (Field field : fields) {
-            Value value = object.getValue(field);
+            Value value = values.get(field);
 
             FieldData fieldData =
                     new FieldData(
                             field.name(), field.typeName(), computeReadableValue(value, context));
             result.add(fieldData);
-            if (isAnObjectReference(value)) {
-                fieldData.setFields(
-                        getNestedFields((ObjectReference) value, executionDepth - 1, context));
-            }
-            if (value instanceof ArrayReference) {
-                fieldData.setArrayElements(
-                        getNestedElements((ArrayReference) value, executionDepth - 1, context));
+            if (shouldExpand(fieldData, value, executionDepth - 1, context)) {
+                expandOverJdwp(fieldData, value, executionDepth - 1, context);
             }
         }
         return result;
     }
 
-    private static boolean isPrimitiveWrapper(Value value) {
-        // Void.class is not here because it does not matter as this function is supposed to decide
-        // how the object
-        // will be printed. Since void does not have any value, we do not need to determine how its
-        // printing will be handled.
-        List<Class<?>> included =
-                List.of(
-                        String.class,
-                        Integer.class,
-                        Long.class,
-                        Double.class,
-                        Float.class,
-                        Boolean.class,
-                        Character.class,
-                        Byte.class,
-                        Short.class);
+    /**
+     * Collects the fields and the elements of a variable, a field or a return value into the
+     * holder. If they are to be collected by {@link GraphSnapshot}, the value is put aside until
+     * {@link #takeSnapshots} is called.
+     */
+    private void expand(RuntimeValue holder, Value value, CollectorOptions context) {
+        if (!shouldExpand(holder, value, context.getExecutionDepth(), context)) {
+            return;
+        }
+        if (shouldSnapshotInDebuggee(value, context)) {
+            pendingSnapshots.add(new PendingSnapshot(holder, (ObjectReference) value));
+            return;
+        }
+        expandOverJdwp(holder, value, context.getExecutionDepth(), context);
+    }
+
+    private void expandOverJdwp(
+            RuntimeValue holder, Value value, int executionDepth, CollectorOptions context) {
+        if (isAnObjectReference(value)) {
+            holder.setFields(getNestedFields((ObjectReference) value, executionDepth, context));
+        }
+        if (value instanceof ArrayReference) {
+            holder.setArrayElements(
+                    getNestedElements((ArrayReference) value, executionDepth, context));
+        }
+    }
+
+    /**
+     * Objects are only deduplicated over JDWP, because the IDs of the objects expanded in the
+     * debuggee could not be told apart from their unique IDs.
+     */
+    private boolean shouldSnapshotInDebuggee(Value value, CollectorOptions context) {
+        return context.shouldSnapshotInDebuggee()
+                && !context.shouldDeduplicateObjects()
+                && context.getExecutionDepth() > 0
+                && !isGraphSnapshotUnavailable
+                && isAnObjectReference(value);
+    }
+
+    /**
+     * Collects the values put aside by {@link #expand} with a single invocation of {@link
+     * GraphSnapshot#snapshot}. It must come after everything else is read from the thread, since
+     * invoking a method invalidates its stack frames. The values the snapshot fails for are
+     * expanded over JDWP instead.
+     */
+    private void takeSnapshots(
+            ThreadReference thread, ClassLoaderReference classLoader, CollectorOptions context) {
+        if (pendingSnapshots.isEmpty()) {
+            return;
+        }
+        // The debuggee posts a method exit for every method the helper returns from before the
+        // requests filter them out, which would take longer than the snapshot itself. Hence, the
+        // requests are paused, which only misses no return if the other threads are suspended.
+        List<MethodExitRequest> pausedRequests =
+                thread.virtualMachine().eventRequestManager().methodExitRequests().stream()
+                        .filter(EventRequest::isEnabled)
+                        .collect(Collectors.toList());
+        if (!pausedRequests.isEmpty() && context.getSuspendPolicy() != SuspendPolicy.ALL) {
+            logger.warning(
+                    "Returns are collected while other threads run, so values are collected over JDWP from now on.");
+            isGraphSnapshotUnavailable = true;
+        }
+        List<RuntimeValue> snapshots = null;
+        if (!isGraphSnapshotUnavailable) {
+            try {
+                pausedRequests.forEach(EventRequest::disable);
+                loadGraphSnapshot(thread, classLoader);
+                snapshots = takeSnapshots(thread, context);
+            } catch (InvocationException
+                    | InvalidTypeException
+                    | ClassNotLoadedException
+                    | IncompatibleThreadStateException
+                    | ObjectCollectedException
+                    | IOException e) {
+                logger.warning("The snapshots failed, so the values are collected over JDWP: " + e);
+            } finally {
+                pausedRequests.forEach(EventRequest::enable);
+            }
+        }
+
+        try {
+            for (int i = 0; i < pendingSnapshots.size(); ++i) {
+                PendingSnapshot pendingSnapshot = pendingSnapshots.get(i);
+                // A snapshot without fields is one the helper could not read the value for.
+                if (snapshots == null || snapshots.get(i).getFields() == null) {
+                    expandOverJdwp(
+                            pendingSnapshot.holder,
+                            pendingSnapshot.value,
+                            context.getExecutionDepth(),
+                            context);
+                } else {
+                    pendingSnapshot.holder.setFields(snapshots.get(i).getFields());
+                    pendingSnapshot.holder.setArrayElements(snapshots.get(i).getArrayElements());
+                }
+            }
+        } finally {
+            pendingSnapshots.clear();
+        }
+    }
+
+    /**
+     * Loads {@link GraphSnapshot} with the class loader of the class being debugged, which the
+     * collector is on the classpath of. If it cannot be loaded, no snapshot is taken from then on.
+     */
+    private void loadGraphSnapshot(ThreadReference thread, ClassLoaderReference classLoader)
+            throws InvocationException, InvalidTypeException, ClassNotLoadedException,
+                    IncompatibleThreadStateException {
+        if (graphSnapshot == null) {
+            List<ReferenceType> loaded =
+                    thread.virtualMachine().classesByName(GraphSnapshot.class.getName());
+            graphSnapshot =
+                    loaded.isEmpty()
+                            ? loadClass(thread, classLoader, GraphSnapshot.class.getName())
+                            : (ClassType) loaded.get(0);
+            snapshotMethod =
+                    graphSnapshot.concreteMethodByName(
+                            "snapshot", "([Ljava/lang/Object;III)Ljava/lang/String;");
+        }
+        if (snapshotArgumentType == null) {
+            snapshotArgumentType = (ArrayType) snapshotMethod.argumentTypes().get(0);
+        }
+    }
+
+    private ClassType loadClass(
+            ThreadReference thread, ClassLoaderReference classLoader, String className)
+            throws InvocationException, InvalidTypeException, ClassNotLoadedException,
+                    IncompatibleThreadStateException {
+        VirtualMachine vm = thread.virtualMachine();
+        ClassType classType = (ClassType) vm.classesByName(Class.class.getName()).get(0);
+        Method forName =
+                classType.concreteMethodByName(
+                        "forName", "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;");
+        StringReference name = vm.mirrorOf(className);
+        // The name must not be collected before the class is loaded.
+        name.disableCollection();
         try {
-            return included.contains(Class.forName(value.type().name()));
-        } catch (ClassNotFoundException exception) {
+            ClassObjectReference classObject =
+                    (ClassObjectReference)
+                            classType.invokeMethod(
+                                    thread,
+                                    forName,
+                                    Arrays.asList(name, vm.mirrorOf(true), classLoader),
+                                    ObjectReference.INVOKE_SINGLE_THREADED);
+            return (ClassType) classObject.reflectedType();
+        } catch (InvocationException e) {
+            isGraphSnapshotUnavailable = true;
+            throw e;
+        } finally {
+            name.enableCollection();
+        }
+    }
+
+    /**
+     * Passes every pending value at once, since JDI lists all the classes the class loader of
+     * {@link GraphSnapshot} can see to check the arguments of each invocation.
+     */
+    private List<RuntimeValue> takeSnapshots(ThreadReference thread, CollectorOptions context)
+            throws InvocationException, InvalidTypeException, ClassNotLoadedException,
+                    IncompatibleThreadStateException, IOException {
+        VirtualMachine vm = thread.virtualMachine();
+        ArrayReference values = snapshotArgumentType.newInstance(pendingSnapshots.size());
+        values.disableCollection();
+        try {
+            values.setValues(
+                    pendingSnapshots.stream()
+                            .map(pendingSnapshot -> pendingSnapshot.value)
+                            .collect(Collectors.toList()));
+            StringReference encoded =
+                    (StringReference)
+                            graphSnapshot.invokeMethod(
+                                    thread,
+                                    snapshotMethod,
+                                    List.of(
+                                            values,
+                                            vm.mirrorOf(context.getExecutionDepth()),
+                                            vm.mirrorOf(context.getNumberOfArrayElements()),
+                                            vm.mirrorOf(context.getArraySampling().ordinal())),
+                                    ObjectReference.INVOKE_SINGLE_THREADED);
+            byte[] bytes = Base64.getDecoder().decode(encoded.value());
+            List<RuntimeValue> result = new ArrayList<>();
+            try (BinaryReader reader = new BinaryReader(new ByteArrayInputStream(bytes))) {
+                for (int i = 0; i < pendingSnapshots.size(); ++i) {
+                    result.add(reader.readRuntimeValue());
+                }
+            }
+            return result;
+        } finally {
+            values.enableCollection();
+        }
+    }
+
+    /**
+     * Decides whether the fields and elements of the value should be collected into the holder.
+     * When objects are deduplicated, an object is expanded only once in a snapshot, where it is
+     * reached with the most depth left. Its other occurrences refer back to it, which also stops
+     * the expansion of cycles. Since the values are walked depth first, an object reached again
+     * with more depth left is expanded again, and its first expansion is dropped for a reference.
+     */
+    private boolean shouldExpand(
+            RuntimeValue holder, Value value, int executionDepth, CollectorOptions context) {
+        if (!context.shouldDeduplicateObjects()
+                || executionDepth == 0
+                || !isAnObjectReference(value)) {
+            return true;
+        }
+        long objectId = ((ObjectReference) value).uniqueID();
+        ExpandedObject expanded = capturedObjects.get(objectId);
+        if (expanded != null && expanded.executionDepth >= executionDepth) {
+            holder.setBackReference(objectId);
             return false;
         }
+        if (expanded != null) {
+            expanded.dropForReference(objectId);
+        }
+        capturedObjects.put(objectId, new ExpandedObject(holder, executionDepth));
+        holder.setObjectId(objectId);
+        return true;
     }
 
-    private static boolean isAnObjectReference(Value value) {
+    private boolean isAnObjectReference(Value value) {
         if (value instanceof ObjectReference) {
-            return !isPrimitiveWrapper(value);
+            return !referenceTypeCache.isPrimitiveWrapper(
+                    ((ObjectReference) value).referenceType());
         }
         return false;
     }
@@ -492,7 +1185,42 @@ public class Debugger {
         }
     }
 
+    BreakpointIndex getBreakpointIndex() {
+        return breakpointIndex;
+    }
+
     public Process getProcess() {
         return process;
     }
+
+    private static class ExpandedObject {
+        private final RuntimeValue holder;
+        private final int executionDepth;
+
+        ExpandedObject(RuntimeValue holder, int executionDepth) {
+            this.holder = holder;
+            this.executionDepth = executionDepth;
+        }
+
+        /**
+         * Turns the expansion into a reference. The objects nested in it are reached again with
+         * more depth left where it is expanded again, so none of them is only expanded here.
+         */
+        void dropForReference(long objectId) {
+            holder.setObjectId(null);
+            holder.setFields(null);
+            holder.setArrayElements(null);
+            holder.setBackReference(objectId);
+        }
+    }
+
+    private static class PendingSnapshot {
+        private final RuntimeValue holder;
+        private final ObjectReference value;
+
+        PendingSnapshot(RuntimeValue holder, ObjectReference value) {
+            this.holder = holder;
+            this.value = value;
+        }
+    }
 }
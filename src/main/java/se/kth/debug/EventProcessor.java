@@ -9,11 +9,15 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
+import se.kth.debug.agent.AgentLauncher;
+import se.kth.debug.output.CollectedDataSink;
 import se.kth.debug.struct.FileAndBreakpoint;
 import se.kth.debug.struct.MethodForExitEvent;
 import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.HitCountSummary;
 import se.kth.debug.struct.result.ReturnData;
 import se.kth.debug.struct.result.StackFrameContext;
+import se.kth.debug.struct.result.StateHitCount;
 
 /** For managing events triggered by JDB. */
 public class EventProcessor {
@@ -22,58 +26,271 @@ public class EventProcessor {
     private static final int TIMEOUT = 5000; // milliseconds;
     private final List<BreakPointContext> breakpointContexts = new ArrayList<>();
     private final List<ReturnData> returnValues = new ArrayList<>();
+    private final String[] providedClasspath;
+    private final String[] tests;
+    private final List<FileAndBreakpoint> classesAndBreakpoints;
+    private final List<MethodForExitEvent> methodsForExitEvent;
     private final Debugger debugger;
+    // Receives the collected data instead of the lists above, if set.
+    private final CollectedDataSink sink;
+    private final HitCounter hitCounter = new HitCounter();
+    // Index of the next breakpoint written, which hit counts refer to.
+    private long breakpointsWritten = 0;
 
     EventProcessor(
             String[] providedClasspath,
             String[] tests,
             File classesAndBreakpoints,
             File methodsForExitEvent) {
+        this(providedClasspath, tests, classesAndBreakpoints, methodsForExitEvent, null);
+    }
+
+    EventProcessor(
+            String[] providedClasspath,
+            String[] tests,
+            File classesAndBreakpoints,
+            File methodsForExitEvent,
+            CollectedDataSink sink) {
+        this.providedClasspath = providedClasspath;
+        this.tests = tests;
+        this.classesAndBreakpoints = parseFileAndBreakpoints(classesAndBreakpoints);
+        this.methodsForExitEvent = parseMethodsForExitEvent(methodsForExitEvent);
         debugger =
                 new Debugger(
                         providedClasspath,
                         tests,
-                        parseFileAndBreakpoints(classesAndBreakpoints),
-                        parseMethodsForExitEvent(methodsForExitEvent));
+                        this.classesAndBreakpoints,
+                        this.methodsForExitEvent);
+        this.sink = sink;
     }
 
     /** Monitor events triggered by JDB. */
     public void startEventProcessor(CollectorOptions context) throws AbsentInformationException {
-        VirtualMachine vm = debugger.launchVMAndJunit();
+        if (context.shouldCountHits()) {
+            VirtualMachine vm = debugger.launchVMAndJunit(context);
+            debugger.watchTestsStarting(vm);
+            debugger.addClassPrepareEvent(vm);
+            vm.resume();
+            countEvents(vm, context);
+            return;
+        }
+        if (context.getCaptureBackend() == CaptureBackend.AGENT) {
+            collectWithAgent(context);
+            return;
+        }
+        VirtualMachine vm = debugger.launchVMAndJunit(context);
         debugger.addClassPrepareEvent(vm);
+        debugger.registerClassUnloads(vm);
         vm.resume();
+        processEvents(vm, context);
+    }
+
+    /** Replaces the requests of the previous job run by the debuggee with those of this job. */
+    void prepareJob(VirtualMachine vm, CollectorOptions context) throws AbsentInformationException {
+        debugger.prepareJob(vm, context);
+    }
+
+    /**
+     * Processes events until the debuggee dies or its test runner waits for the next job. In the
+     * latter case, the debuggee stays suspended. Once the quotas of the options leave nothing to
+     * capture, a debuggee launched for this collection is shut down, while the debuggee of a daemon
+     * runs the rest of the job without its requests.
+     *
+     * @return whether the debuggee waits for the next job
+     */
+    boolean processEvents(VirtualMachine vm, CollectorOptions context)
+            throws AbsentInformationException {
+        CaptureQuota quota = new CaptureQuota(context);
+        BreakpointSampler sampler = new BreakpointSampler(debugger.getBreakpointIndex());
+        SeenStates seenStates = new SeenStates();
+        boolean isCapturing = true;
         try {
             EventSet eventSet;
             while ((eventSet = vm.eventQueue().remove()) != null) {
+                boolean isAwaitingJob = false;
+                boolean isSuspendedForInspection =
+                        isCapturing && debugger.suspendForInspection(eventSet, context);
+                // Only then can the requests have run out of their quotas.
+                boolean hasDisabledRequests = false;
                 for (Event event : eventSet) {
-                    if (event instanceof VMDeathEvent || event instanceof VMDisconnectEvent) {
+                    if ((event instanceof VMDeathEvent || event instanceof VMDisconnectEvent)
+                            && debugger.getProcess() != null) {
                         debugger.getProcess().destroy();
                     }
-                    if (event instanceof ClassPrepareEvent) {
-                        if (!context.shouldSkipBreakpointValues()) {
-                            debugger.setBreakpoints(vm, (ClassPrepareEvent) event);
+                    if (Debugger.isAwaitingJob(event)) {
+                        isAwaitingJob = true;
+                        continue;
+                    }
+                    if (!isCapturing) {
+                        // Only events queued before the requests were disabled are left.
+                        if (event instanceof MethodExitEvent) {
+                            debugger.expireMethodExitRequest((MethodExitEvent) event);
                         }
-                        if (!context.shouldSkipReturnValues()) {
-                            debugger.registerMethodExits(vm, (ClassPrepareEvent) event);
+                        continue;
+                    }
+                    if (event instanceof ClassPrepareEvent) {
+                        debugger.prepareClass(
+                                vm, ((ClassPrepareEvent) event).referenceType(), context);
+                    }
+                    if (event instanceof ClassUnloadEvent) {
+                        debugger.processClassUnload((ClassUnloadEvent) event);
+                    }
+                    if (event instanceof LocatableEvent
+                            && !debugger.isThreadToBeInspected(
+                                    ((LocatableEvent) event).thread(), context)) {
+                        if (event instanceof MethodExitEvent) {
+                            debugger.expireMethodExitRequest((MethodExitEvent) event);
                         }
+                        continue;
                     }
-                    if (event instanceof BreakpointEvent) {
+                    if (event instanceof BreakpointEvent
+                            && debugger.isAtReturnInstruction((BreakpointEvent) event)) {
+                        if (quota.isMethodExhausted(
+                                ((BreakpointEvent) event).location().method())) {
+                            event.request().disable();
+                            hasDisabledRequests = true;
+                        } else {
+                            debugger.requestExitOfReturningMethod(
+                                    vm, (BreakpointEvent) event, context);
+                        }
+                    } else if (event instanceof BreakpointEvent) {
+                        Location location = ((BreakpointEvent) event).location();
+                        if (quota.isLineExhausted(location)) {
+                            event.request().disable();
+                            hasDisabledRequests = true;
+                            continue;
+                        }
+                        if (!sampler.sample(location, event.request())) {
+                            continue;
+                        }
+                        long fingerprint = 0;
+                        if (context.shouldFingerprintStates()) {
+                            fingerprint = debugger.fingerprint((BreakpointEvent) event, context);
+                            if (seenStates.countRepeat(location, fingerprint)) {
+                                continue;
+                            }
+                        }
                         List<StackFrameContext> result =
                                 debugger.processBreakpoints((BreakpointEvent) event, context);
-                        Location location = ((BreakpointEvent) event).location();
-                        breakpointContexts.add(
+                        BreakPointContext breakPointContext =
                                 new BreakPointContext(
-                                        location.sourcePath(), location.lineNumber(), result));
+                                        location.sourcePath(), location.lineNumber(), result);
+                        if (quota.fits(breakPointContext)) {
+                            if (context.shouldFingerprintStates()) {
+                                // Also if a sample keeps the snapshot, so that repeats are counted.
+                                seenStates.add(location, fingerprint, breakPointContext);
+                            }
+                            breakPointContext = sampler.retain(location, breakPointContext);
+                            if (breakPointContext != null) {
+                                addSnapshot(seenStates, breakPointContext);
+                            }
+                        }
+                        if (quota.countHit(location)) {
+                            event.request().disable();
+                            hasDisabledRequests = true;
+                        }
                     }
                     if (event instanceof MethodExitEvent) {
-                        ReturnData rd =
-                                debugger.processMethodExit((MethodExitEvent) event, context);
-                        if (rd != null) {
-                            returnValues.add(rd);
+                        MethodExitEvent mee = (MethodExitEvent) event;
+                        if (quota.isMethodExhausted(mee.method())) {
+                            debugger.expireMethodExitRequest(mee);
+                            hasDisabledRequests = true;
+                            continue;
                         }
+                        ReturnData rd = debugger.processMethodExit(mee, context);
+                        if (rd != null && quota.fits(rd)) {
+                            addReturnValue(rd);
+                        }
+                        if (rd != null && quota.countReturn(mee.method())) {
+                            debugger.disableReturnsOf(vm, mee.method(), quota::isMethodExhausted);
+                            hasDisabledRequests = true;
+                        }
+                    }
+                }
+                debugger.resetStackTraces();
+                if (isAwaitingJob) {
+                    if (isSuspendedForInspection) {
+                        vm.resume();
+                    }
+                    return true;
+                }
+                if (isCapturing
+                        && (quota.isOverBudget()
+                                || hasDisabledRequests
+                                        && debugger.areCaptureRequestsExhausted(vm))) {
+                    isCapturing = false;
+                    debugger.disableCaptureRequests(vm);
+                    if (debugger.getProcess() != null) {
+                        logger.info(
+                                "The quotas leave nothing to capture, so the debuggee is shut down.");
+                        debugger.shutdown(vm);
+                        return false;
+                    }
+                }
+                // Resumes only the threads suspended for this event set, so that other threads
+                // stay suspended until their own events have been processed.
+                eventSet.resume();
+                if (isSuspendedForInspection) {
+                    vm.resume();
+                }
+            }
+        } catch (VMDisconnectedException | IncompatibleThreadStateException e) {
+            logger.warning(e.toString());
+        } catch (InterruptedException e) {
+            logger.warning(e.toString());
+            Thread.currentThread().interrupt();
+        } finally {
+            sampler.drain().forEach(snapshot -> addSnapshot(seenStates, snapshot));
+            seenStates.drain().forEach(this::addHitCount);
+        }
+        return false;
+    }
+
+    /**
+     * Counts hits and returns until the debuggee dies. The requests suspend nothing, so their
+     * events are only counted. The thread starting a test method is suspended until the test has
+     * been read, so the events that follow in the queue come from that test.
+     */
+    private void countEvents(VirtualMachine vm, CollectorOptions context)
+            throws AbsentInformationException {
+        try {
+            EventSet eventSet;
+            while ((eventSet = vm.eventQueue().remove()) != null) {
+                for (Event event : eventSet) {
+                    if ((event instanceof VMDeathEvent || event instanceof VMDisconnectEvent)
+                            && debugger.getProcess() != null) {
+                        debugger.getProcess().destroy();
+                    }
+                    if (Debugger.isTestRunnerPrepared(event)) {
+                        debugger.setBreakpointAtTestStarted(
+                                vm, ((ClassPrepareEvent) event).referenceType());
+                        continue;
+                    }
+                    if (event instanceof ClassPrepareEvent) {
+                        debugger.prepareClass(
+                                vm, ((ClassPrepareEvent) event).referenceType(), context);
+                    }
+                    if (Debugger.isTestStarted(event)) {
+                        hitCounter.startTest(debugger.getStartedTest((BreakpointEvent) event));
+                        continue;
+                    }
+                    if (event instanceof LocatableEvent
+                            && !debugger.isThreadToBeInspected(
+                                    ((LocatableEvent) event).thread(), context)) {
+                        continue;
+                    }
+                    if (event instanceof BreakpointEvent
+                            && debugger.isAtReturnInstruction((BreakpointEvent) event)) {
+                        hitCounter.countReturn(((BreakpointEvent) event).location().method());
+                    } else if (event instanceof BreakpointEvent) {
+                        hitCounter.countHit(event.request(), ((BreakpointEvent) event).location());
+                    }
+                    if (event instanceof MethodExitEvent
+                            && debugger.isReturnAskedFor((MethodExitEvent) event)) {
+                        hitCounter.countReturn(((MethodExitEvent) event).method());
                     }
                 }
-                vm.resume();
+                eventSet.resume();
             }
         } catch (VMDisconnectedException | IncompatibleThreadStateException e) {
             logger.warning(e.toString());
@@ -83,7 +300,86 @@ public class EventProcessor {
         }
     }
 
-    private List<FileAndBreakpoint> parseFileAndBreakpoints(File classesAndBreakpoints) {
+    private void collectWithAgent(CollectorOptions context) {
+        try {
+            AgentLauncher.collect(
+                    providedClasspath,
+                    tests,
+                    classesAndBreakpoints,
+                    methodsForExitEvent,
+                    context,
+                    new CollectedDataSink() {
+                        @Override
+                        public void writeBreakpoint(BreakPointContext breakPointContext) {
+                            addBreakpointContext(breakPointContext);
+                        }
+
+                        @Override
+                        public void writeReturn(ReturnData returnData) {
+                            addReturnValue(returnData);
+                        }
+
+                        @Override
+                        public void writeHitCount(StateHitCount stateHitCount) {
+                            addHitCount(stateHitCount);
+                        }
+
+                        @Override
+                        public void finish() {}
+
+                        @Override
+                        public void close() {}
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void addSnapshot(SeenStates seenStates, BreakPointContext breakPointContext) {
+        seenStates.written(breakPointContext, breakpointsWritten);
+        addBreakpointContext(breakPointContext);
+    }
+
+    private void addBreakpointContext(BreakPointContext breakPointContext) {
+        ++breakpointsWritten;
+        if (sink == null) {
+            breakpointContexts.add(breakPointContext);
+            return;
+        }
+        try {
+            sink.writeBreakpoint(breakPointContext);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void addHitCount(StateHitCount stateHitCount) {
+        if (sink == null) {
+            breakpointContexts
+                    .get((int) stateHitCount.getBreakpoint())
+                    .setHitCount(stateHitCount.getHitCount());
+            return;
+        }
+        try {
+            sink.writeHitCount(stateHitCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void addReturnValue(ReturnData returnData) {
+        if (sink == null) {
+            returnValues.add(returnData);
+            return;
+        }
+        try {
+            sink.writeReturn(returnData);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static List<FileAndBreakpoint> parseFileAndBreakpoints(File classesAndBreakpoints) {
         if (classesAndBreakpoints == null) {
             return null;
         }
@@ -95,7 +391,7 @@ public class EventProcessor {
         }
     }
 
-    private List<MethodForExitEvent> parseMethodsForExitEvent(File methodsForExitEvent) {
+    static List<MethodForExitEvent> parseMethodsForExitEvent(File methodsForExitEvent) {
         if (methodsForExitEvent == null) {
             return List.of();
         }
@@ -107,7 +403,10 @@ public class EventProcessor {
         }
     }
 
-    /** Returns the values corresponding to each breakpoint. */
+    /**
+     * Returns the values corresponding to each breakpoint. It is empty if they were given to a
+     * sink.
+     */
     public List<BreakPointContext> getBreakpointContexts() {
         return breakpointContexts;
     }
@@ -115,4 +414,9 @@ public class EventProcessor {
     public List<ReturnData> getReturnValues() {
         return returnValues;
     }
+
+    /** Returns what has been counted with {@link CollectorOptions#shouldCountHits()}. */
+    public HitCountSummary getHitCounts() {
+        return hitCounter.summarize();
+    }
 }
@@ -0,0 +1,125 @@
+package se.kth.debug;
+
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.Location;
+import com.sun.jdi.Method;
+import com.sun.jdi.request.EventRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import se.kth.debug.struct.result.HitCountSummary;
+import se.kth.debug.struct.result.LineHitCount;
+import se.kth.debug.struct.result.ReturnHitCount;
+
+/**
+ * Counts hits and returns per test method in arrays of primitive counters. Each breakpoint and each
+ * method gets the next index in them when it is counted for the first time. The index of a
+ * breakpoint is kept on its request, so that counting a hit does not look anything up.
+ */
+final class HitCounter {
+    // Key of the property holding the index of the counter of a breakpoint request.
+    private static final String COUNTER = "counter";
+
+    // Names are resolved when first counted, as the debuggee is gone once the counts are
+    // summarized.
+    private final List<String> lineFiles = new ArrayList<>();
+    private final List<Integer> lineNumbers = new ArrayList<>();
+    private final List<String> methodClasses = new ArrayList<>();
+    private final List<String> methodNames = new ArrayList<>();
+    private final Map<Method, Integer> methodCounters = new HashMap<>();
+    private final List<String> tests = new ArrayList<>();
+    private final Map<String, Integer> testIndices = new HashMap<>();
+    // Counters of the breakpoints and of the methods, by test.
+    private final List<long[]> lineHits = new ArrayList<>();
+    private final List<long[]> returnHits = new ArrayList<>();
+    private int currentTest;
+
+    HitCounter() {
+        // Counts what runs before the first test method.
+        startTest("");
+    }
+
+    /** Attributes what is counted from now on to the test method. */
+    void startTest(String testMethod) {
+        currentTest =
+                testIndices.computeIfAbsent(
+                        testMethod,
+                        k -> {
+                            tests.add(k);
+                            lineHits.add(new long[0]);
+                            returnHits.add(new long[0]);
+                            return tests.size() - 1;
+                        });
+    }
+
+    void countHit(EventRequest request, Location location) throws AbsentInformationException {
+        Integer counter = (Integer) request.getProperty(COUNTER);
+        if (counter == null) {
+            counter = lineFiles.size();
+            lineFiles.add(location.sourcePath());
+            lineNumbers.add(location.lineNumber());
+            request.putProperty(COUNTER, counter);
+        }
+        increment(lineHits, counter);
+    }
+
+    void countReturn(Method method) {
+        Integer counter = methodCounters.get(method);
+        if (counter == null) {
+            counter = methodNames.size();
+            methodClasses.add(method.declaringType().name());
+            methodNames.add(method.name());
+            methodCounters.put(method, counter);
+        }
+        increment(returnHits, counter);
+    }
+
+    private void increment(List<long[]> hitsByTest, int counter) {
+        long[] hits = hitsByTest.get(currentTest);
+        if (counter >= hits.length) {
+            hits = Arrays.copyOf(hits, Math.max(counter + 1, hits.length * 2));
+            hitsByTest.set(currentTest, hits);
+        }
+        hits[counter]++;
+    }
+
+    HitCountSummary summarize() {
+        List<LineHitCount> lineCounts = new ArrayList<>();
+        for (int i = 0; i < lineFiles.size(); ++i) {
+            Map<String, Long> hitsPerTest = hitsPerTest(lineHits, i);
+            lineCounts.add(
+                    new LineHitCount(
+                            lineFiles.get(i), lineNumbers.get(i), sum(hitsPerTest), hitsPerTest));
+        }
+        List<ReturnHitCount> returnCounts = new ArrayList<>();
+        for (int i = 0; i < methodNames.size(); ++i) {
+            Map<String, Long> hitsPerTest = hitsPerTest(returnHits, i);
+            returnCounts.add(
+                    new ReturnHitCount(
+                            methodClasses.get(i),
+                            methodNames.get(i),
+                            sum(hitsPerTest),
+                            hitsPerTest));
+        }
+        return new HitCountSummary(lineCounts, returnCounts);
+    }
+
+    /** Returns the non-zero counts of the counter, in the order the tests started. */
+    private Map<String, Long> hitsPerTest(List<long[]> hitsByTest, int counter) {
+        Map<String, Long> hitsPerTest = new LinkedHashMap<>();
+        for (int test = 0; test < tests.size(); ++test) {
+            long[] hits = hitsByTest.get(test);
+            if (counter < hits.length && hits[counter] > 0) {
+                hitsPerTest.put(tests.get(test), hits[counter]);
+            }
+        }
+        return hitsPerTest;
+    }
+
+    private static long sum(Map<String, Long> hitsPerTest) {
+        return hitsPerTest.values().stream().mapToLong(Long::longValue).sum();
+    }
+}
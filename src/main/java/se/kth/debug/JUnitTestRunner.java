@@ -3,56 +3,507 @@ package se.kth.debug;
 import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
 import static org.junit.platform.engine.discovery.DiscoverySelectors.selectMethod;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.util.Collections;
-import java.util.concurrent.*;
-import org.junit.platform.console.options.CommandLineOptions;
-import org.junit.platform.console.tasks.ConsoleTestExecutor;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.ClassOrderer;
+import org.junit.jupiter.api.ClassOrdererContext;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.MethodOrdererContext;
+import org.junit.platform.console.options.Theme;
+import org.junit.platform.engine.DiscoverySelector;
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.support.descriptor.MethodSource;
+import org.junit.platform.launcher.Launcher;
+import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.LauncherSession;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
+import org.junit.platform.launcher.TestPlan;
+import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder;
+import org.junit.platform.launcher.core.LauncherFactory;
+import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
+import org.junit.platform.launcher.listeners.TestExecutionSummary;
 
 public class JUnitTestRunner {
-    public static void main(String... args) {
-        String[] tests = args[0].split(" ");
-        for (final String test : tests) {
-            ExecutorService executor = Executors.newSingleThreadExecutor();
-            Callable<Object> task =
-                    () -> {
-                        if (test.contains("::")) {
-                            runTestMethod(test);
-                        } else {
-                            runTestClass(test);
+    /** Makes the runner read jobs from its standard input instead of running a single one. */
+    public static final String JOBS_ARGUMENT = "--jobs";
+
+    /**
+     * Makes the runner write what each test covers under the JaCoCo agent instead of running the
+     * tests for the collector. It is followed by the directory to write to and by the tests.
+     */
+    public static final String COVERAGE_ARGUMENT = "--coverage";
+
+    /**
+     * Lists the coverage files written with {@link #COVERAGE_ARGUMENT}, one line each, in the order
+     * they were written: the file, the test as it was given, and the test method that covered the
+     * lines, or nothing for code that ran outside of test methods. Columns are separated by tabs.
+     * An entry of tests that did not finish is listed last, with {@link #COVERAGE_ABANDONED} in
+     * place of a file.
+     */
+    public static final String COVERAGE_INDEX = "index.txt";
+
+    /**
+     * Marks the entry of tests a coverage run gave up on. Its coverage is incomplete, and the run
+     * records nothing after it, since the abandoned tests may still be running.
+     */
+    public static final String COVERAGE_ABANDONED = "abandoned";
+
+    /**
+     * System property with the seconds the runner gives each entry of tests, 4 minutes if unset.
+     */
+    public static final String TIMEOUT_PROPERTY = "collector-sahab.test-timeout-seconds";
+
+    private static final long DEFAULT_TIMEOUT_SECONDS = 4 * 60;
+
+    /** Exit status of a run whose tests were not found, as with the JUnit console launcher. */
+    static final int NO_TESTS_FOUND_STATUS = 2;
+
+    /** Exit status of a coverage run that gave up on an entry of tests. */
+    static final int COVERAGE_ABANDONED_STATUS = 3;
+
+    private static final int MAX_STACK_TRACE_LINES = 15;
+    private static final String DISCOVERY_LISTENER = "junit.platform.discovery.listener.default";
+    private static final String CLASS_ORDER = "junit.jupiter.testclass.order.default";
+    private static final String METHOD_ORDER = "junit.jupiter.testmethod.order.default";
+
+    public static void main(String... args) throws IOException {
+        int status = 0;
+        // Engines and launcher listeners are loaded once, for every test and every job.
+        try (LauncherSession session = LauncherFactory.openSession()) {
+            if (args[0].equals(JOBS_ARGUMENT)) {
+                runJobs(session.getLauncher());
+            } else if (args[0].equals(COVERAGE_ARGUMENT)) {
+                if (!recordCoverage(session.getLauncher(), new File(args[1]), args[2].split(" "))) {
+                    status = COVERAGE_ABANDONED_STATUS;
+                }
+            } else if (!runTests(session.getLauncher(), args[0].split(" "))) {
+                status = NO_TESTS_FOUND_STATUS;
+            }
+        }
+        if (status != 0) {
+            // Abandoned tests may still be running on daemon threads.
+            System.exit(status);
+        }
+    }
+
+    /** Runs one line of tests at a time until the standard input is closed. */
+    private static void runJobs(Launcher launcher) throws IOException {
+        BufferedReader jobs =
+                new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        while (true) {
+            awaitingJob();
+            String job = jobs.readLine();
+            if (job == null) {
+                return;
+            }
+            runTests(launcher, job.split(" "));
+        }
+    }
+
+    /**
+     * Does nothing. The collector sets a breakpoint here to know that a job is over, and keeps the
+     * runner suspended until it has prepared the next one.
+     */
+    public static void awaitingJob() {}
+
+    /**
+     * Does nothing. The collector sets a breakpoint here to attribute what it counts to the test
+     * method that is starting.
+     */
+    public static void testStarted(String testMethod) {}
+
+    /**
+     * Runs the tests with one discovery request, so that each engine discovers all of them in one
+     * pass. A request selects each test once, so the tests are split into runs at a test that is
+     * selected again, and each run gets a request of its own. The engines that support it run the
+     * tests in the order they are given. Tests that cannot be found are logged instead of failing
+     * the other tests of their engine.
+     *
+     * @return whether every run found tests
+     */
+    private static boolean runTests(Launcher launcher, String[] tests) {
+        TestExecutionListener startListener =
+                new TestExecutionListener() {
+                    @Override
+                    public void executionStarted(TestIdentifier testIdentifier) {
+                        if (testIdentifier.isTest()) {
+                            testStarted(getTestMethod(testIdentifier));
                         }
-                        return 0;
-                    };
-            Future<Object> future = executor.submit(task);
-            try {
-                executor.shutdown();
-                future.get(4, TimeUnit.MINUTES);
-            } catch (Exception ex) {
-                // handle other exceptions
-                ex.printStackTrace();
-            } finally {
-                future.cancel(true);
+                    }
+                };
+        PrintWriter out = new PrintWriter(System.out);
+        boolean testsFound = true;
+        for (List<String> run : splitIntoRuns(tests)) {
+            List<DiscoverySelector> selectors = new ArrayList<>();
+            for (String test : run) {
+                selectors.add(select(test));
+            }
+            LauncherDiscoveryRequest request =
+                    LauncherDiscoveryRequestBuilder.request()
+                            .selectors(selectors)
+                            .configurationParameter(DISCOVERY_LISTENER, "logging")
+                            .configurationParameter(CLASS_ORDER, SelectionOrder.class.getName())
+                            .configurationParameter(METHOD_ORDER, SelectionOrder.class.getName())
+                            .configurationParameter(
+                                    SelectionOrder.TESTS_PARAMETER, String.join(" ", run))
+                            .build();
+            SummaryGeneratingListener summaryListener = new SummaryGeneratingListener();
+            TreePrinter treePrinter = new TreePrinter(out);
+            String description = String.join(" ", run);
+            if (!executeInTime(
+                    description,
+                    run.size() * getTimeoutSeconds(),
+                    () -> launcher.execute(request, summaryListener, treePrinter, startListener))) {
+                continue;
+            }
+            TestExecutionSummary summary = summaryListener.getSummary();
+            summary.printFailuresTo(out, MAX_STACK_TRACE_LINES);
+            summary.printTo(out);
+            out.flush();
+            if (summary.getTestsFoundCount() == 0) {
+                System.err.println("No tests found for: " + description);
+                testsFound = false;
             }
         }
+        return testsFound;
     }
 
-    private static void runTestMethod(String test) throws Exception {
+    /**
+     * Splits the tests into runs in which no test is selected twice, keeping their order. A class
+     * selects its methods, so a class and one of its methods do not go in the same run either.
+     */
+    static List<List<String>> splitIntoRuns(String[] tests) {
+        List<List<String>> runs = new ArrayList<>();
+        List<String> run = new ArrayList<>();
+        for (String test : tests) {
+            if (test.isBlank()) {
+                continue;
+            }
+            if (run.stream().anyMatch(selected -> overlap(selected, test))) {
+                runs.add(run);
+                run = new ArrayList<>();
+            }
+            run.add(test);
+        }
+        if (!run.isEmpty()) {
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    private static boolean overlap(String test, String other) {
         String[] classAndMethod = test.split("::");
-        String clazz = classAndMethod[0];
-        String method = classAndMethod[1];
-
-        CommandLineOptions options = new CommandLineOptions();
-        options.setSelectedMethods(Collections.singletonList(selectMethod(clazz + "#" + method)));
-        options.setFailIfNoTests(true);
-        options.setAnsiColorOutputDisabled(true);
-        new ConsoleTestExecutor(options).execute(new PrintWriter(System.out));
-    }
-
-    private static void runTestClass(String test) throws Exception {
-        CommandLineOptions options = new CommandLineOptions();
-        options.setSelectedClasses(Collections.singletonList(selectClass(test)));
-        options.setFailIfNoTests(true);
-        options.setAnsiColorOutputDisabled(true);
-        new ConsoleTestExecutor(options).execute(new PrintWriter(System.out));
+        String[] otherClassAndMethod = other.split("::");
+        return classAndMethod[0].equals(otherClassAndMethod[0])
+                && (classAndMethod.length == 1
+                        || otherClassAndMethod.length == 1
+                        || classAndMethod[1].equals(otherClassAndMethod[1]));
+    }
+
+    /**
+     * Runs the tests one after the other, dumping the coverage before and after each method.
+     *
+     * @return whether every entry of tests finished, rather than the run giving up on one
+     */
+    private static boolean recordCoverage(Launcher launcher, File directory, String[] tests)
+            throws IOException {
+        try (CoverageRecorder recorder = new CoverageRecorder(directory)) {
+            // Forgets what JUnit covered while it started.
+            recorder.dump(null);
+            for (String test : tests) {
+                if (test.isBlank()) {
+                    continue;
+                }
+                recorder.test = test;
+                LauncherDiscoveryRequest request =
+                        LauncherDiscoveryRequestBuilder.request().selectors(select(test)).build();
+                if (!executeInTime(
+                        test, getTimeoutSeconds(), () -> launcher.execute(request, recorder))) {
+                    recorder.abandon();
+                    return false;
+                }
+                recorder.dump("");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs tests on a thread of their own, and waits a limited time for them. Tests that are still
+     * running then are interrupted and abandoned, even if they ignore the interruption, so that the
+     * runner can go on.
+     *
+     * @return whether the tests finished in time
+     */
+    private static boolean executeInTime(String test, long timeoutSeconds, Runnable execution) {
+        FutureTask<Void> task = new FutureTask<>(execution, null);
+        Thread worker = new Thread(task, "test-runner");
+        // An abandoned test must not keep the runner alive.
+        worker.setDaemon(true);
+        worker.start();
+        try {
+            task.get(timeoutSeconds, TimeUnit.SECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            System.err.println(test + " timed out after " + timeoutSeconds + " seconds");
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        task.cancel(true);
+        return false;
+    }
+
+    /** Returns the seconds the runner gives each entry of tests before it gives up on them. */
+    static long getTimeoutSeconds() {
+        return Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    /** Returns the test method as {@code class::method}, or an empty string if it is not one. */
+    private static String getTestMethod(TestIdentifier testIdentifier) {
+        return testIdentifier
+                .getSource()
+                .filter(MethodSource.class::isInstance)
+                .map(MethodSource.class::cast)
+                .map(source -> source.getClassName() + "::" + source.getMethodName())
+                .orElse("");
+    }
+
+    private static DiscoverySelector select(String test) {
+        if (test.contains("::")) {
+            String[] classAndMethod = test.split("::");
+            return selectMethod(classAndMethod[0] + "#" + classAndMethod[1]);
+        }
+        return selectClass(test);
+    }
+
+    /**
+     * Orders the test classes and methods of a run as they were given, so that the data of a run is
+     * collected in the same order as when its tests run on their own. Tests that were not given
+     * themselves come where their class was given, in the default order of the engine.
+     */
+    public static class SelectionOrder implements ClassOrderer, MethodOrderer {
+        static final String TESTS_PARAMETER = "collector-sahab.tests";
+
+        @Override
+        public void orderClasses(ClassOrdererContext context) {
+            List<String> tests = getTests(context::getConfigurationParameter);
+            context.getClassDescriptors()
+                    .sort(
+                            Comparator.comparingInt(
+                                    descriptor ->
+                                            position(
+                                                    tests,
+                                                    descriptor.getTestClass().getName(),
+                                                    null)));
+        }
+
+        @Override
+        public void orderMethods(MethodOrdererContext context) {
+            List<String> tests = getTests(context::getConfigurationParameter);
+            String className = context.getTestClass().getName();
+            context.getMethodDescriptors()
+                    .sort(
+                            Comparator.comparingInt(
+                                    descriptor ->
+                                            position(
+                                                    tests,
+                                                    className,
+                                                    descriptor.getMethod().getName())));
+        }
+
+        private static List<String> getTests(Function<String, Optional<String>> parameters) {
+            return parameters
+                    .apply(TESTS_PARAMETER)
+                    .map(tests -> List.of(tests.split(" ")))
+                    .orElse(List.of());
+        }
+
+        /** Returns where the method, or the class if it is null, was given among the tests. */
+        private static int position(List<String> tests, String className, String method) {
+            for (int i = 0; i < tests.size(); ++i) {
+                String test = tests.get(i);
+                if (test.equals(className)
+                        || (method == null && test.startsWith(className + "::"))
+                        || test.equals(className + "::" + method)) {
+                    return i;
+                }
+            }
+            return tests.size();
+        }
+    }
+
+    /**
+     * Draws the tests that ran as a tree once they are done, like the JUnit console launcher does
+     * with the theme of the default charset.
+     */
+    private static class TreePrinter implements TestExecutionListener {
+        private final PrintWriter out;
+        private final Theme theme = Theme.valueOf(Charset.defaultCharset());
+        private final Map<TestIdentifier, String> statuses = new HashMap<>();
+
+        TreePrinter(PrintWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        public void executionSkipped(TestIdentifier testIdentifier, String reason) {
+            statuses.put(testIdentifier, theme.skipped() + " " + reason);
+        }
+
+        @Override
+        public void executionFinished(
+                TestIdentifier testIdentifier, TestExecutionResult testExecutionResult) {
+            String status = theme.status(testExecutionResult);
+            Optional<Throwable> throwable = testExecutionResult.getThrowable();
+            if (throwable.isPresent()) {
+                status += " " + throwable.get().getMessage();
+            }
+            statuses.put(testIdentifier, status);
+        }
+
+        @Override
+        public void testPlanExecutionFinished(TestPlan testPlan) {
+            out.println(theme.root());
+            print(testPlan, testPlan.getRoots(), "");
+            out.flush();
+        }
+
+        private void print(TestPlan testPlan, Set<TestIdentifier> nodes, String indent) {
+            List<TestIdentifier> reported = new ArrayList<>();
+            for (TestIdentifier node : nodes) {
+                if (statuses.containsKey(node)) {
+                    reported.add(node);
+                }
+            }
+            for (int i = 0; i < reported.size(); ++i) {
+                TestIdentifier node = reported.get(i);
+                boolean last = i == reported.size() - 1;
+                out.println(
+                        indent
+                                + (last ? theme.end() : theme.entry())
+                                + " "
+                                + node.getDisplayName()
+                                + " "
+                                + statuses.get(node));
+                print(
+                        testPlan,
+                        testPlan.getChildren(node),
+                        indent + (last ? theme.blank() : theme.vertical()));
+            }
+        }
+    }
+
+    /**
+     * Dumps and resets the coverage of the JaCoCo agent through its MBean, once the agent is
+     * started with {@code jmx=true}. What is covered between two test methods, like by
+     * {@code @BeforeAll}, is attributed to the test as it was given. The tests of an abandoned
+     * entry may go on running and dumping, so dumps are serialised and ignored once it is
+     * abandoned.
+     */
+    private static class CoverageRecorder implements TestExecutionListener, Closeable {
+        private final File directory;
+        private final Writer index;
+        private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        private final ObjectName agent;
+        private String test;
+        private int dumps = 0;
+        private boolean abandoned = false;
+
+        CoverageRecorder(File directory) throws IOException {
+            this.directory = directory;
+            index =
+                    Files.newBufferedWriter(
+                            directory.toPath().resolve(COVERAGE_INDEX), StandardCharsets.UTF_8);
+            try {
+                agent = new ObjectName("org.jacoco:type=Runtime");
+            } catch (MalformedObjectNameException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void executionStarted(TestIdentifier testIdentifier) {
+            if (testIdentifier.isTest()) {
+                dump("");
+            }
+        }
+
+        @Override
+        public void executionFinished(
+                TestIdentifier testIdentifier, TestExecutionResult testExecutionResult) {
+            if (testIdentifier.isTest()) {
+                dump(getTestMethod(testIdentifier));
+            }
+        }
+
+        /**
+         * Writes what was covered since the last dump, unless the test method is null.
+         *
+         * @param testMethod the method that covered it, or an empty string if none did
+         */
+        synchronized void dump(String testMethod) {
+            if (abandoned) {
+                return;
+            }
+            try {
+                byte[] coverage =
+                        (byte[])
+                                server.invoke(
+                                        agent,
+                                        "getExecutionData",
+                                        new Object[] {true},
+                                        new String[] {"boolean"});
+                if (testMethod == null) {
+                    return;
+                }
+                String file = dumps++ + ".exec";
+                Files.write(directory.toPath().resolve(file), coverage);
+                index.write(file + '\t' + test + '\t' + testMethod + '\n');
+            } catch (JMException e) {
+                throw new IllegalStateException("The JaCoCo agent is not running with jmx=true", e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /** Lists the current entry as abandoned, and ignores every dump after it. */
+        synchronized void abandon() throws IOException {
+            index.write(COVERAGE_ABANDONED + '\t' + test + '\t' + '\n');
+            abandoned = true;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            index.close();
+        }
     }
 }
@@ -0,0 +1,44 @@
+package se.kth.debug;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * Leaves a property out of the output when its value is null, even if nulls are serialised
+ * otherwise. It is meant for properties that only some collection modes fill in, so that the output
+ * of the other modes does not change.
+ *
+ * <p>It must be registered with {@code @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe
+ * = false)}, or Gson writes the null itself.
+ */
+public class OmitNullAdapterFactory implements TypeAdapterFactory {
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        TypeAdapter<T> delegate = gson.getAdapter(type);
+        return new TypeAdapter<>() {
+            @Override
+            public void write(JsonWriter out, T value) throws IOException {
+                if (value != null) {
+                    delegate.write(out, value);
+                    return;
+                }
+                // A null value is dropped together with its pending name when nulls are not
+                // serialised.
+                boolean serializeNulls = out.getSerializeNulls();
+                out.setSerializeNulls(false);
+                out.nullValue();
+                out.setSerializeNulls(serializeNulls);
+            }
+
+            @Override
+            public T read(JsonReader in) throws IOException {
+                return delegate.read(in);
+            }
+        };
+    }
+}
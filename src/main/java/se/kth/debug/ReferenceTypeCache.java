@@ -0,0 +1,68 @@
+package se.kth.debug;
+
+import com.sun.jdi.Field;
+import com.sun.jdi.ReferenceType;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the metadata of every reference type encountered while collecting values. Without it,
+ * the same information would be requested over JDWP, or recomputed, for every single value of a
+ * type.
+ */
+class ReferenceTypeCache {
+    // Void is not here because this set only decides how an object will be printed. Since void
+    // does not have any value, we do not need to determine how its printing will be handled.
+    private static final Set<String> PRIMITIVE_WRAPPERS =
+            Set.of(
+                    String.class.getName(),
+                    Integer.class.getName(),
+                    Long.class.getName(),
+                    Double.class.getName(),
+                    Float.class.getName(),
+                    Boolean.class.getName(),
+                    Character.class.getName(),
+                    Byte.class.getName(),
+                    Short.class.getName());
+
+    private final Map<ReferenceType, TypeMetadata> cache = new HashMap<>();
+
+    List<Field> getVisibleFields(ReferenceType type) {
+        return get(type).visibleFields;
+    }
+
+    boolean isPrimitiveWrapper(ReferenceType type) {
+        return get(type).isPrimitiveWrapper;
+    }
+
+    /** Returns the field holding the primitive inside a boxed type, or null for other types. */
+    Field getValueField(ReferenceType type) {
+        return get(type).valueField;
+    }
+
+    /** Drops the metadata of the unloaded class so that the stale mirror is not kept around. */
+    void invalidate(String className) {
+        cache.keySet().removeIf(type -> type.name().equals(className));
+    }
+
+    private TypeMetadata get(ReferenceType type) {
+        return cache.computeIfAbsent(type, TypeMetadata::new);
+    }
+
+    private static class TypeMetadata {
+        private final List<Field> visibleFields;
+        private final boolean isPrimitiveWrapper;
+        private final Field valueField;
+
+        private TypeMetadata(ReferenceType type) {
+            visibleFields = type.visibleFields();
+            isPrimitiveWrapper = PRIMITIVE_WRAPPERS.contains(type.name());
+            valueField =
+                    isPrimitiveWrapper && !type.name().equals(String.class.getName())
+                            ? type.fieldByName("value")
+                            : null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package se.kth.debug;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Finds the return instructions in the bytecode of a method. */
+final class ReturnInstructions {
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int TABLESWITCH = 0xaa;
+    private static final int LOOKUPSWITCH = 0xab;
+    private static final int WIDE = 0xc4;
+    private static final int IINC = 0x84;
+
+    // Length of each fixed-length instruction, including its opcode, indexed by opcode.
+    private static final int[] LENGTHS = new int[256];
+
+    static {
+        Arrays.fill(LENGTHS, 1);
+        // bipush, ldc, the loads and stores with an index, ret, and newarray
+        for (int opcode :
+                new int[] {
+                    0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37, 0x38, 0x39, 0x3a, 0xa9,
+                    0xbc
+                }) {
+            LENGTHS[opcode] = 2;
+        }
+        // sipush, ldc_w, ldc2_w, and iinc
+        for (int opcode : new int[] {0x11, 0x13, 0x14, IINC}) {
+            LENGTHS[opcode] = 3;
+        }
+        // conditional branches, goto, and jsr
+        for (int opcode = 0x99; opcode <= 0xa8; ++opcode) {
+            LENGTHS[opcode] = 3;
+        }
+        // field accesses and invocations other than invokeinterface and invokedynamic
+        for (int opcode = 0xb2; opcode <= 0xb8; ++opcode) {
+            LENGTHS[opcode] = 3;
+        }
+        // new, anewarray, checkcast, instanceof, ifnull, and ifnonnull
+        for (int opcode : new int[] {0xbb, 0xbd, 0xc0, 0xc1, 0xc6, 0xc7}) {
+            LENGTHS[opcode] = 3;
+        }
+        // multianewarray
+        LENGTHS[0xc5] = 4;
+        // invokeinterface, invokedynamic, goto_w, and jsr_w
+        for (int opcode : new int[] {0xb9, 0xba, 0xc8, 0xc9}) {
+            LENGTHS[opcode] = 5;
+        }
+    }
+
+    private ReturnInstructions() {}
+
+    /**
+     * Returns the code indices of the {@code ireturn}, {@code lreturn}, {@code freturn}, {@code
+     * dreturn}, {@code areturn}, and {@code return} instructions.
+     *
+     * @param bytecodes the code attribute of a method
+     * @return code indices in ascending order
+     */
+    static List<Long> findCodeIndices(byte[] bytecodes) {
+        List<Long> result = new ArrayList<>();
+        int index = 0;
+        while (index < bytecodes.length) {
+            int opcode = Byte.toUnsignedInt(bytecodes[index]);
+            if (opcode >= IRETURN && opcode <= RETURN) {
+                result.add((long) index);
+            }
+            index += lengthOfInstruction(bytecodes, index, opcode);
+        }
+        return result;
+    }
+
+    // See chapter 6.5 of the Java Virtual Machine Specification for the format of each instruction.
+    private static int lengthOfInstruction(byte[] bytecodes, int index, int opcode) {
+        switch (opcode) {
+            case TABLESWITCH:
+                {
+                    int operands = paddedOperandsStart(index);
+                    int low = readInt(bytecodes, operands + 4);
+                    int high = readInt(bytecodes, operands + 8);
+                    return operands - index + 12 + (high - low + 1) * 4;
+                }
+            case LOOKUPSWITCH:
+                {
+                    int operands = paddedOperandsStart(index);
+                    int numberOfPairs = readInt(bytecodes, operands + 4);
+                    return operands - index + 8 + numberOfPairs * 8;
+                }
+            case WIDE:
+                return Byte.toUnsignedInt(bytecodes[index + 1]) == IINC ? 6 : 4;
+            default:
+                return LENGTHS[opcode];
+        }
+    }
+
+    // The operands of the switch instructions start at the next index divisible by 4.
+    private static int paddedOperandsStart(int index) {
+        return (index + 4) & ~3;
+    }
+
+    private static int readInt(byte[] bytecodes, int index) {
+        return (bytecodes[index] & 0xff) << 24
+                | (bytecodes[index + 1] & 0xff) << 16
+                | (bytecodes[index + 2] & 0xff) << 8
+                | (bytecodes[index + 3] & 0xff);
+    }
+}
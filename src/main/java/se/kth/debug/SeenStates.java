@@ -0,0 +1,81 @@
+package se.kth.debug;
+
+import com.sun.jdi.Location;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.StateHitCount;
+
+/**
+ * Counts the hits of each state a breakpoint has been hit in, by the fingerprint of the state. The
+ * snapshot of a state is written as soon as the state is first seen, or once the debuggee is done
+ * if a sample keeps it until then, so only the index of that snapshot in the output and the count
+ * are kept. The counts are only final once the debuggee is done, so they are handed out by {@link
+ * #drain()}, in the order their states were first seen.
+ */
+final class SeenStates {
+    private static final long UNWRITTEN = -1;
+
+    private final Map<String, long[]> hitCounts = new LinkedHashMap<>();
+    // Snapshots that are not written yet. A sample may still replace them, and then forgets them.
+    private final Map<BreakPointContext, long[]> unwritten = new WeakHashMap<>();
+
+    /**
+     * Counts a hit of the breakpoint in the state, if the state has been seen there before.
+     *
+     * @return whether the state has been seen before
+     */
+    boolean countRepeat(Location location, long fingerprint) {
+        long[] hitCount = hitCounts.get(key(location, fingerprint));
+        if (hitCount == null) {
+            return false;
+        }
+        hitCount[1]++;
+        return true;
+    }
+
+    /**
+     * Starts counting the hits of a state seen for the first time at the breakpoint, of which a
+     * snapshot was taken.
+     */
+    void add(Location location, long fingerprint, BreakPointContext snapshot) {
+        long[] hitCount = new long[] {UNWRITTEN, 1};
+        hitCounts.put(key(location, fingerprint), hitCount);
+        unwritten.put(snapshot, hitCount);
+    }
+
+    /**
+     * Notes where a snapshot was written, if it is the first snapshot of a state.
+     *
+     * @param breakpoint index of the snapshot among the breakpoints written
+     */
+    void written(BreakPointContext snapshot, long breakpoint) {
+        long[] hitCount = unwritten.remove(snapshot);
+        if (hitCount != null) {
+            hitCount[0] = breakpoint;
+        }
+    }
+
+    /**
+     * Returns the counts of the states whose snapshots were written, and forgets every state. The
+     * hits in a state whose snapshot was not written are not reported.
+     */
+    List<StateHitCount> drain() {
+        List<StateHitCount> counted = new ArrayList<>();
+        for (long[] hitCount : hitCounts.values()) {
+            if (hitCount[0] != UNWRITTEN) {
+                counted.add(new StateHitCount(hitCount[0], hitCount[1]));
+            }
+        }
+        hitCounts.clear();
+        unwritten.clear();
+        return counted;
+    }
+
+    private static String key(Location location, long fingerprint) {
+        return location.declaringType().name() + ":" + location.lineNumber() + "#" + fingerprint;
+    }
+}
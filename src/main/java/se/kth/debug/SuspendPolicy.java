@@ -0,0 +1,21 @@
+package se.kth.debug;
+
+import com.sun.jdi.request.EventRequest;
+
+/** Threads of the debuggee that are suspended while a breakpoint or a return is processed. */
+public enum SuspendPolicy {
+    /** Every thread of the debuggee. */
+    ALL(EventRequest.SUSPEND_ALL),
+    /** Only the thread that hit the breakpoint or returned from the method. */
+    EVENT_THREAD(EventRequest.SUSPEND_EVENT_THREAD);
+
+    private final int jdiSuspendPolicy;
+
+    SuspendPolicy(int jdiSuspendPolicy) {
+        this.jdiSuspendPolicy = jdiSuspendPolicy;
+    }
+
+    public int getJdiSuspendPolicy() {
+        return jdiSuspendPolicy;
+    }
+}
@@ -0,0 +1,391 @@
+package se.kth.debug;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.analysis.CoverageBuilder;
+import org.jacoco.core.analysis.IClassCoverage;
+import org.jacoco.core.analysis.IMethodCoverage;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataReader;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.SessionInfo;
+import se.kth.debug.struct.FileAndBreakpoint;
+import se.kth.debug.struct.MethodForExitEvent;
+
+/**
+ * Selects the tests that reach a breakpoint or a method whose exits are asked for, so that the
+ * debuggee does not run the others. The tests are run once under the JaCoCo agent, without
+ * debugging, to learn the lines that each test method covers. This coverage is cached in {@code
+ * ${java.io.tmpdir}/collector-sahab-coverage}, under a hash of the paths, sizes and modification
+ * times of the files on the classpath, so it is recorded again only once a class or a jar changes.
+ *
+ * <p>A test class is replaced by those of its test methods that reach the input, unless all of them
+ * do or code running outside of its test methods, like {@code @BeforeAll}, does. JaCoCo does not
+ * count a line as covered when an exception is thrown before the end of its block, so a test that
+ * only reaches a breakpoint right before throwing is not selected.
+ */
+public final class TestSelection {
+    private static final Logger logger = Logger.getLogger(TestSelection.class.getName());
+    private static final Path CACHE =
+            Paths.get(System.getProperty("java.io.tmpdir"), "collector-sahab-coverage");
+
+    private TestSelection() {}
+
+    /**
+     * Returns the tests that reach the input, in the order they were given.
+     *
+     * @param jaCoCoAgent the JaCoCo runtime jar, see {@link
+     *     Utility#getJaCoCoJavaagentJar(String[])}
+     */
+    public static String[] select(
+            String[] providedClasspath,
+            String[] tests,
+            List<FileAndBreakpoint> classesAndBreakpoints,
+            List<MethodForExitEvent> methodsForExitEvent,
+            File jaCoCoAgent)
+            throws IOException {
+        Path cache = CACHE.resolve(hashClasspath(providedClasspath));
+        List<String> uncovered = new ArrayList<>();
+        for (String test : new LinkedHashSet<>(List.of(tests))) {
+            if (!test.isBlank() && !Files.exists(getCoverageFile(cache, test))) {
+                uncovered.add(test);
+            }
+        }
+        // Tests whose coverage could not be recorded, which are kept as they were given.
+        Set<String> abandoned = new LinkedHashSet<>();
+        while (!uncovered.isEmpty()) {
+            String abandonedTest = record(providedClasspath, uncovered, jaCoCoAgent, cache);
+            if (abandonedTest == null) {
+                break;
+            }
+            logger.warning("The coverage of " + abandonedTest + " could not be recorded.");
+            abandoned.add(abandonedTest);
+            uncovered =
+                    new ArrayList<>(
+                            uncovered.subList(
+                                    uncovered.indexOf(abandonedTest) + 1, uncovered.size()));
+        }
+
+        BreakpointIndex breakpointIndex =
+                new BreakpointIndex(classesAndBreakpoints, methodsForExitEvent);
+        Map<String, byte[]> classes = readClasses(providedClasspath, breakpointIndex.getClasses());
+        List<String> selected = new ArrayList<>();
+        for (String test : tests) {
+            if (abandoned.contains(test)) {
+                selected.add(test);
+            } else if (!test.isBlank()) {
+                selected.addAll(
+                        selectTestMethods(
+                                test, getCoverageFile(cache, test), breakpointIndex, classes));
+            }
+        }
+        logger.info(
+                String.format(
+                        "%d of %d tests reach the breakpoints or the methods.",
+                        selected.size(), tests.length));
+        return selected.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the test itself if it reaches the input as a whole, the test methods that reach the
+     * input otherwise.
+     */
+    private static List<String> selectTestMethods(
+            String test,
+            Path coverageFile,
+            BreakpointIndex breakpointIndex,
+            Map<String, byte[]> classes)
+            throws IOException {
+        // Whether each test method reaches the input, in the order they ran.
+        Map<String, Boolean> testMethods = new LinkedHashMap<>();
+        boolean isReachedOutsideOfTestMethods = false;
+        for (Map.Entry<String, ExecutionDataStore> session : readCoverage(coverageFile)) {
+            boolean isReached = isReached(session.getValue(), breakpointIndex, classes);
+            String testMethod = session.getKey();
+            if (testMethod.isEmpty()) {
+                isReachedOutsideOfTestMethods |= isReached;
+            } else {
+                testMethods.merge(testMethod, isReached, Boolean::logicalOr);
+            }
+        }
+        if (isReachedOutsideOfTestMethods
+                || (!testMethods.isEmpty() && !testMethods.containsValue(false))) {
+            return List.of(test);
+        }
+        return testMethods.entrySet().stream()
+                .filter(Map.Entry::getValue)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isReached(
+            ExecutionDataStore coverage,
+            BreakpointIndex breakpointIndex,
+            Map<String, byte[]> classes)
+            throws IOException {
+        CoverageBuilder builder = new CoverageBuilder();
+        Analyzer analyzer = new Analyzer(coverage, builder);
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            if (coverage.contains(entry.getKey().replace('.', '/'))) {
+                analyzer.analyzeClass(entry.getValue(), entry.getKey());
+            }
+        }
+        for (IClassCoverage classCoverage : builder.getClasses()) {
+            String className = classCoverage.getName().replace('/', '.');
+            BitSet breakpoints = breakpointIndex.getBreakpoints(className);
+            for (int line = breakpoints.nextSetBit(0);
+                    line >= 0;
+                    line = breakpoints.nextSetBit(line + 1)) {
+                if (classCoverage.getLine(line).getInstructionCounter().getCoveredCount() > 0) {
+                    return true;
+                }
+            }
+            for (IMethodCoverage method : classCoverage.getMethods()) {
+                if (breakpointIndex.isMethodExplicitlyAskedFor(className, method.getName())
+                        && method.getMethodCounter().getCoveredCount() > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the tests under the JaCoCo agent and caches what each of them covers. The runner gives
+     * up on an entry of tests that does not finish in time, and on the entries after it, so only
+     * those before it are cached.
+     *
+     * @return the entry the runner gave up on, or null if every entry was recorded
+     */
+    private static String record(
+            String[] providedClasspath, List<String> tests, File jaCoCoAgent, Path cache)
+            throws IOException {
+        Path output = Files.createTempDirectory("collector-coverage");
+        try {
+            String classpath = Utility.getClasspathForRunningJUnit(providedClasspath);
+            logger.info("Recording the coverage of " + tests.size() + " tests");
+            Process process =
+                    new ProcessBuilder(
+                                    "java",
+                                    "-javaagent:" + jaCoCoAgent + "=output=none,jmx=true",
+                                    "-D"
+                                            + JUnitTestRunner.TIMEOUT_PROPERTY
+                                            + "="
+                                            + JUnitTestRunner.getTimeoutSeconds(),
+                                    "-cp",
+                                    classpath,
+                                    JUnitTestRunner.class.getCanonicalName(),
+                                    JUnitTestRunner.COVERAGE_ARGUMENT,
+                                    output.toString(),
+                                    Utility.parseTests(tests.toArray(new String[0])))
+                            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                            .redirectError(ProcessBuilder.Redirect.INHERIT)
+                            .start();
+            // The runner gives up on an entry of tests once its timeout has passed.
+            long timeoutSeconds = (tests.size() + 1) * JUnitTestRunner.getTimeoutSeconds();
+            try {
+                if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                    throw new IOException(
+                            "Recording the coverage did not finish in "
+                                    + timeoutSeconds
+                                    + " seconds");
+                }
+                if (process.exitValue() != 0
+                        && process.exitValue() != JUnitTestRunner.COVERAGE_ABANDONED_STATUS) {
+                    throw new IOException(
+                            "Recording the coverage failed with " + process.exitValue());
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while the coverage was recorded");
+            }
+
+            Map<String, List<String[]>> dumpsByTest = new LinkedHashMap<>();
+            for (String test : tests) {
+                dumpsByTest.put(test, new ArrayList<>());
+            }
+            String abandoned = null;
+            try (BufferedReader index =
+                    Files.newBufferedReader(
+                            output.resolve(JUnitTestRunner.COVERAGE_INDEX),
+                            StandardCharsets.UTF_8)) {
+                String line;
+                while (abandoned == null && (line = index.readLine()) != null) {
+                    String[] columns = line.split("\t", -1);
+                    List<String[]> dumps = columns.length == 3 ? dumpsByTest.get(columns[1]) : null;
+                    if (dumps == null) {
+                        throw new IOException("Unexpected line in the coverage index: " + line);
+                    }
+                    if (columns[0].equals(JUnitTestRunner.COVERAGE_ABANDONED)) {
+                        abandoned = columns[1];
+                    } else {
+                        dumps.add(columns);
+                    }
+                }
+            }
+            boolean isAbandoned = process.exitValue() == JUnitTestRunner.COVERAGE_ABANDONED_STATUS;
+            if (isAbandoned != (abandoned != null)) {
+                throw new IOException(
+                        "The coverage index does not match the exit status " + process.exitValue());
+            }
+            Files.createDirectories(cache);
+            for (Map.Entry<String, List<String[]>> entry : dumpsByTest.entrySet()) {
+                if (entry.getKey().equals(abandoned)) {
+                    break;
+                }
+                writeCoverage(output, entry.getValue(), getCoverageFile(cache, entry.getKey()));
+            }
+            return abandoned;
+        } finally {
+            try (Stream<Path> paths = Files.walk(output)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Writes the dumps of a test as one session per dump, named after the test method, keeping only
+     * the classes that were covered.
+     */
+    private static void writeCoverage(Path output, List<String[]> dumps, Path coverageFile)
+            throws IOException {
+        // Collectors running the same tests may be reading the coverage already there.
+        Path partial = Files.createTempFile(coverageFile.getParent(), "coverage", ".part");
+        try (OutputStream out = Files.newOutputStream(partial)) {
+            ExecutionDataWriter writer = new ExecutionDataWriter(out);
+            for (String[] dump : dumps) {
+                ExecutionDataStore store = new ExecutionDataStore();
+                try (InputStream in = new FileInputStream(output.resolve(dump[0]).toFile())) {
+                    ExecutionDataReader reader = new ExecutionDataReader(in);
+                    reader.setSessionInfoVisitor(info -> {});
+                    reader.setExecutionDataVisitor(store);
+                    reader.read();
+                }
+                writer.visitSessionInfo(new SessionInfo(dump[2], 0, 0));
+                for (ExecutionData data : store.getContents()) {
+                    if (data.hasHits()) {
+                        writer.visitClassExecution(data);
+                    }
+                }
+            }
+        }
+        Files.move(partial, coverageFile, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Reads the coverage of each dump of a test, keyed by test method. */
+    private static List<Map.Entry<String, ExecutionDataStore>> readCoverage(Path coverageFile)
+            throws IOException {
+        List<Map.Entry<String, ExecutionDataStore>> sessions = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(coverageFile)) {
+            ExecutionDataReader reader = new ExecutionDataReader(in);
+            reader.setSessionInfoVisitor(
+                    info -> sessions.add(Map.entry(info.getId(), new ExecutionDataStore())));
+            reader.setExecutionDataVisitor(
+                    data -> sessions.get(sessions.size() - 1).getValue().put(data));
+            reader.read();
+        }
+        return sessions;
+    }
+
+    /** Reads the class files of the classes from the directories and the jars of the classpath. */
+    private static Map<String, byte[]> readClasses(String[] classpath, Set<String> classNames)
+            throws IOException {
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        for (String className : classNames) {
+            String classFile = className.replace('.', '/') + ".class";
+            for (String element : classpath) {
+                File file = new File(element);
+                if (file.isDirectory()) {
+                    Path path = file.toPath().resolve(classFile);
+                    if (Files.exists(path)) {
+                        classes.put(className, Files.readAllBytes(path));
+                        break;
+                    }
+                } else if (file.isFile() && element.endsWith(".jar")) {
+                    try (JarFile jar = new JarFile(file)) {
+                        ZipEntry entry = jar.getEntry(classFile);
+                        if (entry != null) {
+                            try (InputStream in = jar.getInputStream(entry)) {
+                                classes.put(className, in.readAllBytes());
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static Path getCoverageFile(Path cache, String test) {
+        return cache.resolve(hash(List.of(test)) + ".exec");
+    }
+
+    /** Hashes the files on the classpath, including those in its directories. */
+    private static String hashClasspath(String[] classpath) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String element : classpath) {
+            Path path = Paths.get(element);
+            if (!Files.exists(path)) {
+                continue;
+            }
+            try (Stream<Path> paths = Files.walk(path)) {
+                for (Path file : paths.filter(Files::isRegularFile).sorted().toArray(Path[]::new)) {
+                    files.add(
+                            file.toAbsolutePath()
+                                    + "\n"
+                                    + Files.size(file)
+                                    + "\n"
+                                    + Files.getLastModifiedTime(file).toMillis());
+                }
+            }
+        }
+        return hash(files);
+    }
+
+    private static String hash(List<String> lines) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String line : lines) {
+                digest.update((line + '\n').getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is available in every JVM", e);
+        }
+    }
+}
@@ -4,10 +4,11 @@ import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Optional;
 import java.util.Set;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 public class Utility {
     private static final Logger logger = Logger.getLogger("Utility");
@@ -15,14 +16,16 @@ public class Utility {
     private Utility() {}
 
     /**
-     * Concatenates provided classpath with the system set classpath.
+     * Concatenates provided classpath with the system set classpath. Both keep their order, and a
+     * path already on the classpath is left out, so the same classpaths always give the same
+     * result.
      *
      * @param providedClasspath usually the classpath of the compiled project, its tests, and
      *     dependencies
      * @return concatenated string of classpath
      */
     public static String getClasspathForRunningJUnit(String[] providedClasspath) {
-        Set<String> classpathCollection = new HashSet<>();
+        Set<String> classpathCollection = new LinkedHashSet<>();
 
         String[] pathElements =
                 System.getProperty("java.class.path").split(System.getProperty("path.separator"));
@@ -34,7 +37,7 @@ public class Utility {
     }
 
     private static Set<String> verifyAndGetClasspath(String[] classpath) {
-        Set<String> classpathCollection = new HashSet<>();
+        Set<String> classpathCollection = new LinkedHashSet<>();
         for (String cp : classpath) {
             URI uri = new File(cp).toURI();
             try {
@@ -68,11 +71,25 @@ public class Utility {
      * @throws ClassNotFoundException thrown when JaCoCo is not provided as a test dependency
      */
     public static File getJaCoCoJavaagentJar() throws ClassNotFoundException {
+        return getJaCoCoJavaagentJar(new String[0]);
+    }
+
+    /**
+     * Returns path to JaCoCo runtime jar, looking for it on the classpath of the collector and then
+     * on the provided classpath.
+     *
+     * @param providedClasspath usually the classpath of the compiled project, its tests, and
+     *     dependencies
+     * @return org.jacoco.agent-runtime.jar
+     * @throws ClassNotFoundException thrown when JaCoCo is on neither classpath
+     */
+    public static File getJaCoCoJavaagentJar(String[] providedClasspath)
+            throws ClassNotFoundException {
         String[] pathElements =
                 System.getProperty("java.class.path").split(System.getProperty("path.separator"));
-        String jarPattern = "org\\.jacoco\\.agent-\\d\\.\\d\\.\\d-runtime\\.jar";
+        String jarPattern = "org\\.jacoco\\.agent-\\d+\\.\\d+\\.\\d+-runtime\\.jar";
         Optional<File> jaCoCoCandidate =
-                Arrays.stream(pathElements)
+                Stream.concat(Arrays.stream(pathElements), Arrays.stream(providedClasspath))
                         .map(File::new)
                         .filter(f -> f.getName().matches(jarPattern))
                         .findFirst();
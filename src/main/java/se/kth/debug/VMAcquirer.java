@@ -3,44 +3,86 @@ package se.kth.debug;
 import com.sun.jdi.Bootstrap;
 import com.sun.jdi.VirtualMachine;
 import com.sun.jdi.VirtualMachineManager;
-import com.sun.jdi.connect.AttachingConnector;
 import com.sun.jdi.connect.Connector;
 import com.sun.jdi.connect.IllegalConnectorArgumentsException;
+import com.sun.jdi.connect.ListeningConnector;
 import java.io.IOException;
 import java.util.Map;
 
+/**
+ * Listens for a debuggee to connect to the collector. The collector picks the port, so debuggees
+ * can be launched concurrently and nothing has to be read from their output.
+ */
 public class VMAcquirer {
+    // The connector is shared by the whole process, and keeps its listeners in a map that is not
+    // safe to modify concurrently.
+    private static final Object LOCK = new Object();
 
-    /** Call this with the localhost port to connect to. */
-    public VirtualMachine connect(int port) throws IOException {
-        String strPort = Integer.toString(port);
-        AttachingConnector connector = getConnector();
+    private final ListeningConnector connector = getConnector();
+    private final Map<String, Connector.Argument> arguments = connector.defaultArguments();
+    private boolean isListening = false;
+
+    /**
+     * Listens on a free port of the loopback interface.
+     *
+     * @return the address the debuggee connects to
+     */
+    public String startListening() throws IOException {
+        arguments.get("localAddress").setValue("127.0.0.1");
+        arguments.get("port").setValue("0");
+        synchronized (LOCK) {
+            try {
+                String address = connector.startListening(arguments);
+                isListening = true;
+                return address;
+            } catch (IllegalConnectorArgumentsException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** Waits for the debuggee to connect, and stops listening. It fails if the debuggee exits. */
+    public VirtualMachine accept(Process debuggee) throws IOException {
+        // Closing the socket is the only way to interrupt the accept.
+        debuggee.onExit().thenRun(this::stopListening);
         try {
-            return connect(connector, strPort);
+            return connector.accept(arguments);
+        } catch (IOException e) {
+            if (!debuggee.isAlive()) {
+                throw new IOException(
+                        "The debuggee exited with " + debuggee.exitValue() + " before connecting",
+                        e);
+            }
+            throw e;
         } catch (IllegalConnectorArgumentsException e) {
             throw new IllegalStateException(e);
+        } finally {
+            stopListening();
         }
     }
 
-    private AttachingConnector getConnector() {
-        VirtualMachineManager vmManager = Bootstrap.virtualMachineManager();
-        for (Connector connector : vmManager.attachingConnectors()) {
-            if ("com.sun.jdi.SocketAttach".equals(connector.name())) {
-                return (AttachingConnector) connector;
+    /** Stops listening if it has not been stopped yet. */
+    public void stopListening() {
+        synchronized (LOCK) {
+            if (!isListening) {
+                return;
+            }
+            isListening = false;
+            try {
+                connector.stopListening(arguments);
+            } catch (IOException | IllegalConnectorArgumentsException e) {
+                throw new IllegalStateException(e);
             }
         }
-        throw new IllegalStateException();
     }
 
-    private VirtualMachine connect(AttachingConnector connector, String port)
-            throws IllegalConnectorArgumentsException, IOException {
-        Map<String, Connector.Argument> args = connector.defaultArguments();
-        Connector.Argument pidArgument = args.get("port");
-        if (pidArgument == null) {
-            throw new IllegalStateException();
+    private static ListeningConnector getConnector() {
+        VirtualMachineManager vmManager = Bootstrap.virtualMachineManager();
+        for (ListeningConnector connector : vmManager.listeningConnectors()) {
+            if ("com.sun.jdi.SocketListen".equals(connector.name())) {
+                return connector;
+            }
         }
-        pidArgument.setValue(port);
-
-        return connector.attach(args);
+        throw new IllegalStateException();
     }
 }
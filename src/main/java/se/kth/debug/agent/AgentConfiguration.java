@@ -0,0 +1,94 @@
+package se.kth.debug.agent;
+
+import java.util.List;
+import se.kth.debug.ArraySampling;
+import se.kth.debug.CollectorOptions;
+import se.kth.debug.struct.FileAndBreakpoint;
+import se.kth.debug.struct.MethodForExitEvent;
+
+/** What the agent is asked to capture, handed from the collector to the debuggee as JSON. */
+class AgentConfiguration {
+    private final List<FileAndBreakpoint> classesAndBreakpoints;
+    private final List<MethodForExitEvent> methodsForExitEvent;
+    private final String output;
+    private final int stackTraceDepth;
+    private final int numberOfArrayElements;
+    private final ArraySampling arraySampling;
+    private final int executionDepth;
+    private final boolean skipPrintingField;
+    private final boolean skipBreakpointValues;
+    private final boolean skipReturnValues;
+    private final boolean deduplicateObjects;
+    // The source of the pattern, as patterns themselves cannot be serialised.
+    private final String threadNameFilter;
+
+    AgentConfiguration(
+            List<FileAndBreakpoint> classesAndBreakpoints,
+            List<MethodForExitEvent> methodsForExitEvent,
+            String output,
+            CollectorOptions context) {
+        this.classesAndBreakpoints = classesAndBreakpoints;
+        this.methodsForExitEvent = methodsForExitEvent;
+        this.output = output;
+        this.stackTraceDepth = context.getStackTraceDepth();
+        this.numberOfArrayElements = context.getNumberOfArrayElements();
+        this.arraySampling = context.getArraySampling();
+        this.executionDepth = context.getExecutionDepth();
+        this.skipPrintingField = context.shouldSkipPrintingField();
+        this.skipBreakpointValues = context.shouldSkipBreakpointValues();
+        this.skipReturnValues = context.shouldSkipReturnValues();
+        this.deduplicateObjects = context.shouldDeduplicateObjects();
+        this.threadNameFilter =
+                context.getThreadNameFilter() == null
+                        ? null
+                        : context.getThreadNameFilter().pattern();
+    }
+
+    List<FileAndBreakpoint> getClassesAndBreakpoints() {
+        return classesAndBreakpoints;
+    }
+
+    List<MethodForExitEvent> getMethodsForExitEvent() {
+        return methodsForExitEvent;
+    }
+
+    String getOutput() {
+        return output;
+    }
+
+    int getStackTraceDepth() {
+        return stackTraceDepth;
+    }
+
+    int getNumberOfArrayElements() {
+        return numberOfArrayElements;
+    }
+
+    ArraySampling getArraySampling() {
+        return arraySampling;
+    }
+
+    int getExecutionDepth() {
+        return executionDepth;
+    }
+
+    boolean shouldSkipPrintingField() {
+        return skipPrintingField;
+    }
+
+    boolean shouldSkipBreakpointValues() {
+        return skipBreakpointValues;
+    }
+
+    boolean shouldSkipReturnValues() {
+        return skipReturnValues;
+    }
+
+    boolean shouldDeduplicateObjects() {
+        return deduplicateObjects;
+    }
+
+    String getThreadNameFilter() {
+        return threadNameFilter;
+    }
+}
@@ -0,0 +1,137 @@
+package se.kth.debug.agent;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import se.kth.debug.CollectorOptions;
+import se.kth.debug.DebuggeeOutput;
+import se.kth.debug.JUnitTestRunner;
+import se.kth.debug.Utility;
+import se.kth.debug.output.BinaryReader;
+import se.kth.debug.output.CollectedDataSink;
+import se.kth.debug.struct.FileAndBreakpoint;
+import se.kth.debug.struct.MethodForExitEvent;
+
+/** Runs the tests in a debuggee with the {@link CaptureAgent}, instead of debugging it. */
+public class AgentLauncher {
+    private static final Logger logger = Logger.getLogger(AgentLauncher.class.getName());
+
+    private AgentLauncher() {}
+
+    /**
+     * Runs the tests and hands what the probes captured to the sink, in the order it was captured.
+     * The sink is neither finished nor closed.
+     */
+    public static void collect(
+            String[] providedClasspath,
+            String[] tests,
+            List<FileAndBreakpoint> classesAndBreakpoints,
+            List<MethodForExitEvent> methodsForExitEvent,
+            CollectorOptions context,
+            CollectedDataSink sink)
+            throws IOException {
+        if (context.getStackTraceDepth() > 1) {
+            logger.warning(
+                    "Probes only capture the frame of the breakpoint, so the stack trace depth is 1.");
+        }
+        Path workingDirectory = Files.createTempDirectory("collector-agent");
+        try {
+            File agent = workingDirectory.resolve("agent.jar").toFile();
+            writeAgentJar(agent);
+            File output = workingDirectory.resolve("output.bin").toFile();
+            File configuration = workingDirectory.resolve("configuration.json").toFile();
+            try (Writer writer =
+                    Files.newBufferedWriter(configuration.toPath(), StandardCharsets.UTF_8)) {
+                new Gson()
+                        .toJson(
+                                new AgentConfiguration(
+                                        classesAndBreakpoints,
+                                        methodsForExitEvent,
+                                        output.getAbsolutePath(),
+                                        context),
+                                writer);
+            }
+
+            String classpath = Utility.getClasspathForRunningJUnit(providedClasspath);
+            String runnerArgument = Utility.parseTests(tests);
+            logger.log(
+                    Level.INFO,
+                    "java -javaagent:"
+                            + agent
+                            + "="
+                            + configuration
+                            + " -cp "
+                            + classpath
+                            + " "
+                            + JUnitTestRunner.class.getCanonicalName()
+                            + " "
+                            + runnerArgument);
+            ProcessBuilder processBuilder =
+                    new ProcessBuilder(
+                            "java",
+                            "-javaagent:" + agent + "=" + configuration,
+                            "-cp",
+                            classpath,
+                            JUnitTestRunner.class.getCanonicalName(),
+                            runnerArgument);
+            if (context.getDebuggeeLogDirectory() == null) {
+                processBuilder
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.DISCARD);
+            }
+            Process process = processBuilder.start();
+            if (context.getDebuggeeLogDirectory() != null) {
+                DebuggeeOutput.drain(
+                        process, context.getDebuggeeLogDirectory(), context.getDebuggeeLogSize());
+            }
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while the tests were running");
+            }
+
+            if (!output.exists()) {
+                logger.warning("The debuggee exited without writing what the probes captured.");
+                return;
+            }
+            try (InputStream in = new FileInputStream(output);
+                    BinaryReader reader = new BinaryReader(in)) {
+                reader.readTo(sink);
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(workingDirectory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Writes a jar made of a manifest only. The agent class is loaded from the classpath of the
+     * debuggee, which the collector is on.
+     */
+    public static void writeAgentJar(File agent) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes()
+                .put(new Attributes.Name("Premain-Class"), CaptureAgent.class.getName());
+        new JarOutputStream(new FileOutputStream(agent), manifest).close();
+    }
+}
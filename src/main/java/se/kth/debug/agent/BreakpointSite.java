@@ -0,0 +1,51 @@
+package se.kth.debug.agent;
+
+/** What is known before running about a breakpoint a probe was inserted at. */
+class BreakpointSite {
+    private final String sourcePath;
+    private final int lineNumber;
+    private final String location;
+    private final boolean isInsideStaticMethod;
+    // Local variables in the order the probe passes their values.
+    private final String[] variableNames;
+    private final String[] variableTypes;
+
+    BreakpointSite(
+            String sourcePath,
+            int lineNumber,
+            String location,
+            boolean isInsideStaticMethod,
+            String[] variableNames,
+            String[] variableTypes) {
+        this.sourcePath = sourcePath;
+        this.lineNumber = lineNumber;
+        this.location = location;
+        this.isInsideStaticMethod = isInsideStaticMethod;
+        this.variableNames = variableNames;
+        this.variableTypes = variableTypes;
+    }
+
+    String getSourcePath() {
+        return sourcePath;
+    }
+
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    String getLocation() {
+        return location;
+    }
+
+    boolean isInsideStaticMethod() {
+        return isInsideStaticMethod;
+    }
+
+    String[] getVariableNames() {
+        return variableNames;
+    }
+
+    String[] getVariableTypes() {
+        return variableTypes;
+    }
+}
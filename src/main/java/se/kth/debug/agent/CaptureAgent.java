@@ -0,0 +1,62 @@
+package se.kth.debug.agent;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import se.kth.debug.BreakpointIndex;
+import se.kth.debug.output.BinarySink;
+
+/**
+ * Agent inserting the probes into the debuggee. Its argument is the path to the JSON of an {@link
+ * AgentConfiguration}. What the probes capture is written in the binary format to the output of the
+ * configuration when the debuggee exits. Without an argument, the agent only opens the modules, so
+ * that {@link GraphSnapshot} can read any field.
+ */
+public class CaptureAgent {
+    private CaptureAgent() {}
+
+    public static void premain(String arguments, Instrumentation instrumentation)
+            throws IOException {
+        if (arguments == null || arguments.isEmpty()) {
+            openModules(instrumentation);
+            return;
+        }
+        AgentConfiguration configuration;
+        try (Reader reader =
+                Files.newBufferedReader(Paths.get(arguments), StandardCharsets.UTF_8)) {
+            configuration = new Gson().fromJson(reader, AgentConfiguration.class);
+        }
+        Probes.start(configuration, new BinarySink(new File(configuration.getOutput())));
+        Runtime.getRuntime().addShutdownHook(new Thread(Probes::finish));
+        openModules(instrumentation);
+        instrumentation.addTransformer(
+                new ProbeInjector(
+                        new BreakpointIndex(
+                                configuration.getClassesAndBreakpoints(),
+                                configuration.getMethodsForExitEvent()),
+                        configuration));
+    }
+
+    /** Lets the probes and the snapshots read the fields of any object, as JDWP can. */
+    private static void openModules(Instrumentation instrumentation) {
+        Set<Module> probes = Set.of(CaptureAgent.class.getModule());
+        for (Module module : ModuleLayer.boot().modules()) {
+            if (!instrumentation.isModifiableModule(module)) {
+                continue;
+            }
+            Map<String, Set<Module>> opens = new HashMap<>();
+            for (String packageName : module.getPackages()) {
+                opens.put(packageName, probes);
+            }
+            instrumentation.redefineModule(module, Set.of(), Map.of(), opens, Set.of(), Map.of());
+        }
+    }
+}
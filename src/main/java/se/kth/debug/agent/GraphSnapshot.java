@@ -0,0 +1,55 @@
+package se.kth.debug.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+import se.kth.debug.ArraySampling;
+import se.kth.debug.CollectorOptions;
+import se.kth.debug.output.BinarySink;
+import se.kth.debug.struct.result.LocalVariableData;
+
+/**
+ * Expands values inside the debuggee. {@code Debugger} invokes it over JDWP, so that the whole
+ * graphs below the variables of a breakpoint cost one round trip instead of one request per object
+ * and array.
+ */
+public final class GraphSnapshot {
+    private GraphSnapshot() {}
+
+    /**
+     * Collects the fields and the elements of each value the way {@code Debugger} would. A value
+     * that cannot be read, like an object of a module that is not open, gets a runtime value
+     * without fields.
+     *
+     * @param arraySampling ordinal of the {@link ArraySampling}, since passing a string would make
+     *     JDI list the classes of the debuggee once more to check the argument
+     * @return a runtime value per value, holding its fields and elements, written one after the
+     *     other by {@link BinarySink#writeRuntimeValue} and encoded in Base64
+     */
+    public static String snapshot(
+            Object[] values, int executionDepth, int numberOfArrayElements, int arraySampling)
+            throws IOException {
+        CollectorOptions options =
+                new CollectorOptions().setArraySampling(ArraySampling.values()[arraySampling]);
+        options.setExecutionDepth(executionDepth);
+        options.setNumberOfArrayElements(numberOfArrayElements);
+        AgentConfiguration configuration =
+                new AgentConfiguration(List.of(), List.of(), null, options);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinarySink sink = new BinarySink(bytes)) {
+            for (Object value : values) {
+                LocalVariableData holder = new LocalVariableData(null, null, null);
+                try {
+                    new ValueReader(configuration).expand(holder, value, executionDepth);
+                } catch (RuntimeException e) {
+                    holder = new LocalVariableData(null, null, null);
+                }
+                sink.writeRuntimeValue(holder);
+            }
+            sink.finish();
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,400 @@
+package se.kth.debug.agent;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import se.kth.debug.BreakpointIndex;
+
+/**
+ * Inserts calls to {@link Probes} into the classes that have breakpoints or methods whose returns
+ * are asked for, at the same places {@code Debugger} sets its requests:
+ *
+ * <ul>
+ *   <li>before the first instruction of a breakpoint line, in the first method having that line,
+ *       passing the variables visible there,
+ *   <li>before the return instructions on breakpoint lines and in the methods asked for, passing
+ *       the value about to be returned and the arguments.
+ * </ul>
+ *
+ * The probes neither branch nor leave anything on the operand stack, so the stack map frames of the
+ * method stay valid.
+ */
+class ProbeInjector implements ClassFileTransformer {
+    private static final Logger logger = Logger.getLogger(ProbeInjector.class.getName());
+    private static final String PROBES = Type.getInternalName(Probes.class);
+    private static final String BREAKPOINT_DESCRIPTOR =
+            "(ILjava/lang/Class;Ljava/lang/Object;[Ljava/lang/Object;)V";
+    private static final String METHOD_EXIT_DESCRIPTOR =
+            "(Ljava/lang/Object;I[Ljava/lang/Object;)V";
+
+    private final BreakpointIndex breakpointIndex;
+    private final AgentConfiguration configuration;
+
+    ProbeInjector(BreakpointIndex breakpointIndex, AgentConfiguration configuration) {
+        this.breakpointIndex = breakpointIndex;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public byte[] transform(
+            ClassLoader loader,
+            String internalName,
+            Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain,
+            byte[] classfileBuffer) {
+        if (internalName == null
+                || !breakpointIndex.getClasses().contains(internalName.replace('/', '.'))) {
+            return null;
+        }
+        try {
+            return instrument(classfileBuffer);
+        } catch (RuntimeException e) {
+            // An exception thrown here would be swallowed by the JVM.
+            logger.log(Level.SEVERE, "Probes could not be inserted into " + internalName, e);
+            return null;
+        }
+    }
+
+    private byte[] instrument(byte[] classfileBuffer) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classfileBuffer).accept(classNode, 0);
+        String className = classNode.name.replace('/', '.');
+        if ((classNode.version & 0xFFFF) < V1_5) {
+            logger.warning(className + " is too old to refer to itself, so it has no probes.");
+            return null;
+        }
+        if (classNode.sourceFile == null) {
+            logger.warning(className + " is not compiled with debugging information.");
+            return null;
+        }
+        int endOfPackage = classNode.name.lastIndexOf('/');
+        String sourcePath =
+                endOfPackage < 0
+                        ? classNode.sourceFile
+                        : classNode.name.substring(0, endOfPackage + 1) + classNode.sourceFile;
+
+        BitSet remainingBreakpoints =
+                configuration.shouldSkipBreakpointValues()
+                        ? new BitSet()
+                        : (BitSet) breakpointIndex.getBreakpoints(className).clone();
+        for (MethodNode method : classNode.methods) {
+            if ((method.access & (ACC_ABSTRACT | ACC_NATIVE)) != 0) {
+                continue;
+            }
+            instrument(classNode, className, sourcePath, method, remainingBreakpoints);
+        }
+        for (int lineNumber = remainingBreakpoints.nextSetBit(0);
+                lineNumber >= 0;
+                lineNumber = remainingBreakpoints.nextSetBit(lineNumber + 1)) {
+            logger.warning(
+                    String.format("%d is not a valid breakpoint in %s", lineNumber, className));
+        }
+
+        // Frames are kept as they are, so the writer never has to load classes to merge types.
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+
+    private void instrument(
+            ClassNode classNode,
+            String className,
+            String sourcePath,
+            MethodNode method,
+            BitSet remainingBreakpoints) {
+        boolean isStatic = (method.access & ACC_STATIC) != 0;
+        boolean isAskedFor = breakpointIndex.isMethodExplicitlyAskedFor(className, method.name);
+        // Code indices of the labels, counted in instructions, before anything is inserted.
+        Map<LabelNode, Integer> offsets = new HashMap<>();
+        // Probes are only made once all the offsets are known, and are inserted in that order.
+        List<Runnable> insertions = new ArrayList<>();
+        AbstractInsnNode thisInitialised = findCallToSuperConstructor(classNode, method);
+        boolean isThisInitialised = !method.name.equals("<init>");
+
+        int offset = 0;
+        int lineNumber = -1;
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn instanceof LabelNode) {
+                offsets.put((LabelNode) insn, offset);
+            } else if (insn instanceof LineNumberNode) {
+                lineNumber = ((LineNumberNode) insn).line;
+                AbstractInsnNode first = nextInstruction(insn);
+                if (remainingBreakpoints.get(lineNumber) && first != null) {
+                    remainingBreakpoints.clear(lineNumber);
+                    int line = lineNumber;
+                    int codeIndex = offset;
+                    boolean hasNoThis = isStatic || !isThisInitialised;
+                    insertions.add(
+                            () ->
+                                    method.instructions.insertBefore(
+                                            first,
+                                            breakpointProbe(
+                                                    classNode.name,
+                                                    sourcePath,
+                                                    method,
+                                                    line,
+                                                    offsets,
+                                                    codeIndex,
+                                                    hasNoThis)));
+                }
+            } else if (insn.getOpcode() >= 0) {
+                if (isReturn(insn.getOpcode())
+                        && !configuration.shouldSkipReturnValues()
+                        && (isAskedFor || breakpointIndex.isBreakpoint(className, lineNumber))) {
+                    int line = lineNumber;
+                    insertions.add(
+                            () ->
+                                    method.instructions.insertBefore(
+                                            insn, returnProbe(className, method, line)));
+                }
+                if (insn == thisInitialised) {
+                    isThisInitialised = true;
+                }
+                ++offset;
+            }
+        }
+        insertions.forEach(Runnable::run);
+    }
+
+    private InsnList breakpointProbe(
+            String internalName,
+            String sourcePath,
+            MethodNode method,
+            int lineNumber,
+            Map<LabelNode, Integer> offsets,
+            int codeIndex,
+            boolean hasNoThis) {
+        List<LocalVariableNode> variables = getVisibleVariables(method, offsets, codeIndex);
+        int site =
+                Probes.register(
+                        new BreakpointSite(
+                                sourcePath,
+                                lineNumber,
+                                internalName.replace('/', '.') + ":" + lineNumber,
+                                (method.access & ACC_STATIC) != 0,
+                                names(variables),
+                                typeNames(variables)));
+
+        InsnList probe = new InsnList();
+        probe.add(pushInt(site));
+        probe.add(new LdcInsnNode(Type.getObjectType(internalName)));
+        probe.add(hasNoThis ? new InsnNode(ACONST_NULL) : new VarInsnNode(ALOAD, 0));
+        probe.add(newArray(variables));
+        probe.add(new MethodInsnNode(INVOKESTATIC, PROBES, "breakpoint", BREAKPOINT_DESCRIPTOR));
+        return probe;
+    }
+
+    private InsnList returnProbe(String className, MethodNode method, int lineNumber) {
+        Type returnType = Type.getReturnType(method.desc);
+        List<LocalVariableNode> arguments = getArguments(method);
+        int site =
+                Probes.register(
+                        new ReturnSite(
+                                method.name,
+                                returnType.getClassName(),
+                                returnType.getSort() == Type.VOID,
+                                className + ":" + lineNumber,
+                                names(arguments),
+                                typeNames(arguments)));
+
+        InsnList probe = new InsnList();
+        if (returnType.getSort() == Type.VOID) {
+            probe.add(new InsnNode(ACONST_NULL));
+        } else {
+            probe.add(new InsnNode(returnType.getSize() == 2 ? DUP2 : DUP));
+            probe.add(box(returnType));
+        }
+        probe.add(pushInt(site));
+        probe.add(newArray(arguments));
+        probe.add(new MethodInsnNode(INVOKESTATIC, PROBES, "methodExit", METHOD_EXIT_DESCRIPTOR));
+        return probe;
+    }
+
+    /**
+     * Returns the variables JDI considers visible at the code index: those in scope, without the
+     * ones hidden by a variable of the same name in an inner scope, ordered by slot. Like JDI, the
+     * variables holding {@code this} are left out.
+     */
+    private static List<LocalVariableNode> getVisibleVariables(
+            MethodNode method, Map<LabelNode, Integer> offsets, int codeIndex) {
+        Map<String, LocalVariableNode> visible = new HashMap<>();
+        if (method.localVariables != null) {
+            for (LocalVariableNode variable : method.localVariables) {
+                if (isThis(variable)
+                        || offsets.get(variable.start) > codeIndex
+                        || offsets.get(variable.end) <= codeIndex) {
+                    continue;
+                }
+                LocalVariableNode existing = visible.get(variable.name);
+                if (existing == null || offsets.get(variable.start) > offsets.get(existing.start)) {
+                    visible.put(variable.name, variable);
+                }
+            }
+        }
+        List<LocalVariableNode> result = new ArrayList<>(visible.values());
+        result.sort(Comparator.comparingInt(variable -> variable.index));
+        return result;
+    }
+
+    /** Returns the variables of the arguments, ordered by slot, as JDI lists them. */
+    private static List<LocalVariableNode> getArguments(MethodNode method) {
+        int argumentSlots = Type.getArgumentsAndReturnSizes(method.desc) >> 2;
+        if ((method.access & ACC_STATIC) != 0) {
+            // The size includes a slot for this.
+            --argumentSlots;
+        }
+        Map<Integer, LocalVariableNode> arguments = new HashMap<>();
+        if (method.localVariables != null) {
+            for (LocalVariableNode variable : method.localVariables) {
+                if (!isThis(variable) && variable.index < argumentSlots) {
+                    arguments.putIfAbsent(variable.index, variable);
+                }
+            }
+        }
+        List<LocalVariableNode> result = new ArrayList<>(arguments.values());
+        result.sort(Comparator.comparingInt(variable -> variable.index));
+        return result;
+    }
+
+    private static boolean isThis(LocalVariableNode variable) {
+        return variable.name.equals("this") || variable.name.startsWith("this$");
+    }
+
+    /**
+     * Returns the call that initialises {@code this} in a constructor, or null in other methods.
+     * Until then, {@code this} cannot be passed to the probes. Arguments of that call may create
+     * other objects, so the call is the first constructor call on the class or its superclass.
+     */
+    private static AbstractInsnNode findCallToSuperConstructor(
+            ClassNode classNode, MethodNode method) {
+        if (!method.name.equals("<init>")) {
+            return null;
+        }
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn.getOpcode() == INVOKESPECIAL) {
+                MethodInsnNode call = (MethodInsnNode) insn;
+                if (call.name.equals("<init>")
+                        && (call.owner.equals(classNode.superName)
+                                || call.owner.equals(classNode.name))) {
+                    return insn;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static AbstractInsnNode nextInstruction(AbstractInsnNode insn) {
+        AbstractInsnNode next = insn.getNext();
+        while (next != null && next.getOpcode() < 0) {
+            next = next.getNext();
+        }
+        return next;
+    }
+
+    private static InsnList newArray(List<LocalVariableNode> variables) {
+        InsnList insns = new InsnList();
+        insns.add(pushInt(variables.size()));
+        insns.add(new TypeInsnNode(ANEWARRAY, "java/lang/Object"));
+        for (int i = 0; i < variables.size(); ++i) {
+            Type type = Type.getType(variables.get(i).desc);
+            insns.add(new InsnNode(DUP));
+            insns.add(pushInt(i));
+            insns.add(new VarInsnNode(type.getOpcode(ILOAD), variables.get(i).index));
+            insns.add(box(type));
+            insns.add(new InsnNode(AASTORE));
+        }
+        return insns;
+    }
+
+    private static InsnList box(Type type) {
+        InsnList insns = new InsnList();
+        Type boxed;
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                boxed = Type.getType(Boolean.class);
+                break;
+            case Type.CHAR:
+                boxed = Type.getType(Character.class);
+                break;
+            case Type.BYTE:
+                boxed = Type.getType(Byte.class);
+                break;
+            case Type.SHORT:
+                boxed = Type.getType(Short.class);
+                break;
+            case Type.INT:
+                boxed = Type.getType(Integer.class);
+                break;
+            case Type.FLOAT:
+                boxed = Type.getType(Float.class);
+                break;
+            case Type.LONG:
+                boxed = Type.getType(Long.class);
+                break;
+            case Type.DOUBLE:
+                boxed = Type.getType(Double.class);
+                break;
+            default:
+                return insns;
+        }
+        insns.add(
+                new MethodInsnNode(
+                        INVOKESTATIC,
+                        boxed.getInternalName(),
+                        "valueOf",
+                        Type.getMethodDescriptor(boxed, type)));
+        return insns;
+    }
+
+    private static AbstractInsnNode pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            return new InsnNode(ICONST_0 + value);
+        }
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(BIPUSH, value);
+        }
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return new IntInsnNode(SIPUSH, value);
+        }
+        return new LdcInsnNode(value);
+    }
+
+    private static boolean isReturn(int opcode) {
+        return opcode >= IRETURN && opcode <= RETURN;
+    }
+
+    private static String[] names(List<LocalVariableNode> variables) {
+        return variables.stream().map(variable -> variable.name).toArray(String[]::new);
+    }
+
+    private static String[] typeNames(List<LocalVariableNode> variables) {
+        return variables.stream()
+                .map(variable -> Type.getType(variable.desc).getClassName())
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,203 @@
+package se.kth.debug.agent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import se.kth.debug.output.CollectedDataSink;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.struct.result.StackFrameContext;
+
+/**
+ * Entry points of the probes inserted by {@link ProbeInjector}. They run on the threads of the
+ * debuggee, capture the values right away and hand them to the sink the agent writes to.
+ */
+public final class Probes {
+    private static final Logger logger = Logger.getLogger(Probes.class.getName());
+    // Same as the packages left out of the stack traces collected over JDWP.
+    private static final List<String> EXCLUDED_PACKAGES =
+            List.of("java.lang", "java.util", "org.junit", "junit", "jdk", "se.kth.debug");
+    private static final StackWalker STACK_WALKER =
+            StackWalker.getInstance(
+                    Set.of(
+                            StackWalker.Option.SHOW_HIDDEN_FRAMES,
+                            StackWalker.Option.SHOW_REFLECT_FRAMES));
+    private static final List<BreakpointSite> breakpointSites = new CopyOnWriteArrayList<>();
+    private static final List<ReturnSite> returnSites = new CopyOnWriteArrayList<>();
+    // Values read by a probe must not be captured again if reading them runs another probe.
+    private static final ThreadLocal<Boolean> isCapturing =
+            ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private static AgentConfiguration configuration;
+    private static Pattern threadNameFilter;
+    private static CollectedDataSink sink;
+    private static volatile boolean isStopped = false;
+
+    private Probes() {}
+
+    static void start(AgentConfiguration configuration, CollectedDataSink sink) {
+        Probes.configuration = configuration;
+        Probes.threadNameFilter =
+                configuration.getThreadNameFilter() == null
+                        ? null
+                        : Pattern.compile(configuration.getThreadNameFilter());
+        Probes.sink = sink;
+    }
+
+    static int register(BreakpointSite site) {
+        synchronized (breakpointSites) {
+            breakpointSites.add(site);
+            return breakpointSites.size() - 1;
+        }
+    }
+
+    static int register(ReturnSite site) {
+        synchronized (returnSites) {
+            returnSites.add(site);
+            return returnSites.size() - 1;
+        }
+    }
+
+    /**
+     * Called before the first instruction of a breakpoint line.
+     *
+     * @param site index of the {@link BreakpointSite}
+     * @param declaringClass class declaring the method the breakpoint is in
+     * @param thisObject the instance the method runs on, or null if there is none yet
+     * @param variables values of the variables visible at the breakpoint
+     */
+    public static void breakpoint(
+            int site, Class<?> declaringClass, Object thisObject, Object[] variables) {
+        if (!shouldCapture()) {
+            return;
+        }
+        isCapturing.set(Boolean.TRUE);
+        try {
+            BreakpointSite breakpointSite = breakpointSites.get(site);
+            List<StackFrameContext> stackFrameContexts = new ArrayList<>();
+            // Probes only see the frame they run in.
+            if (configuration.getStackTraceDepth() > 0) {
+                ValueReader valueReader = new ValueReader(configuration);
+                StackFrameContext stackFrameContext =
+                        new StackFrameContext(1, breakpointSite.getLocation(), getStackTrace());
+                stackFrameContext.addRuntimeValueCollection(
+                        valueReader.readVariables(
+                                breakpointSite.getVariableNames(),
+                                breakpointSite.getVariableTypes(),
+                                variables));
+                if (!configuration.shouldSkipPrintingField()) {
+                    stackFrameContext.addRuntimeValueCollection(
+                            valueReader.readFields(
+                                    declaringClass,
+                                    breakpointSite.isInsideStaticMethod() ? null : thisObject));
+                }
+                stackFrameContexts.add(stackFrameContext);
+            }
+            BreakPointContext breakPointContext =
+                    new BreakPointContext(
+                            breakpointSite.getSourcePath(),
+                            breakpointSite.getLineNumber(),
+                            stackFrameContexts);
+            synchronized (Probes.class) {
+                if (!isStopped) {
+                    sink.writeBreakpoint(breakPointContext);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            isCapturing.set(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Called right before a return instruction.
+     *
+     * @param returnValue the value about to be returned, boxed if it is primitive
+     * @param site index of the {@link ReturnSite}
+     * @param arguments values of the arguments of the method
+     */
+    public static void methodExit(Object returnValue, int site, Object[] arguments) {
+        if (!shouldCapture()) {
+            return;
+        }
+        isCapturing.set(Boolean.TRUE);
+        try {
+            ReturnSite returnSite = returnSites.get(site);
+            ValueReader valueReader = new ValueReader(configuration);
+            ReturnData returnData =
+                    new ReturnData(
+                            returnSite.getMethodName(),
+                            returnSite.getReturnTypeName(),
+                            returnSite.isVoid()
+                                    ? "<void value>"
+                                    : valueReader.computeReadableValue(returnValue),
+                            returnSite.getLocation(),
+                            valueReader.readVariables(
+                                    returnSite.getArgumentNames(),
+                                    returnSite.getArgumentTypes(),
+                                    arguments),
+                            getStackTrace());
+            if (!returnSite.isVoid()) {
+                valueReader.expand(returnData, returnValue, configuration.getExecutionDepth());
+            }
+            synchronized (Probes.class) {
+                if (!isStopped) {
+                    sink.writeReturn(returnData);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            isCapturing.set(Boolean.FALSE);
+        }
+    }
+
+    /** Writes what has been captured so far. Nothing is captured afterwards. */
+    static synchronized void finish() {
+        isStopped = true;
+        try {
+            sink.finish();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "The captured values could not be written", e);
+        }
+    }
+
+    private static boolean shouldCapture() {
+        return !isStopped
+                && !isCapturing.get()
+                && (threadNameFilter == null
+                        || threadNameFilter.matcher(Thread.currentThread().getName()).matches());
+    }
+
+    private static synchronized void fail(Exception e) {
+        if (!isStopped) {
+            // The output would miss values from now on, so it is better to stop capturing.
+            logger.log(Level.SEVERE, "Values could not be captured, so capturing stops", e);
+            isStopped = true;
+        }
+    }
+
+    private static List<String> getStackTrace() {
+        return STACK_WALKER.walk(
+                frames ->
+                        frames.filter(
+                                        frame ->
+                                                EXCLUDED_PACKAGES.stream()
+                                                        .noneMatch(frame.getClassName()::contains))
+                                .map(
+                                        frame ->
+                                                String.format(
+                                                        "%s:%d, %s",
+                                                        frame.getMethodName(),
+                                                        Math.max(frame.getLineNumber(), -1),
+                                                        frame.getClassName().replace('/', '.')))
+                                .collect(Collectors.toList()));
+    }
+}
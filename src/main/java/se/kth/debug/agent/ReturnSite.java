@@ -0,0 +1,51 @@
+package se.kth.debug.agent;
+
+/** What is known before running about a return instruction a probe was inserted at. */
+class ReturnSite {
+    private final String methodName;
+    private final String returnTypeName;
+    private final boolean isVoid;
+    private final String location;
+    // Arguments in the order the probe passes their values.
+    private final String[] argumentNames;
+    private final String[] argumentTypes;
+
+    ReturnSite(
+            String methodName,
+            String returnTypeName,
+            boolean isVoid,
+            String location,
+            String[] argumentNames,
+            String[] argumentTypes) {
+        this.methodName = methodName;
+        this.returnTypeName = returnTypeName;
+        this.isVoid = isVoid;
+        this.location = location;
+        this.argumentNames = argumentNames;
+        this.argumentTypes = argumentTypes;
+    }
+
+    String getMethodName() {
+        return methodName;
+    }
+
+    String getReturnTypeName() {
+        return returnTypeName;
+    }
+
+    boolean isVoid() {
+        return isVoid;
+    }
+
+    String getLocation() {
+        return location;
+    }
+
+    String[] getArgumentNames() {
+        return argumentNames;
+    }
+
+    String[] getArgumentTypes() {
+        return argumentTypes;
+    }
+}
@@ -0,0 +1,314 @@
+package se.kth.debug.agent;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import se.kth.debug.struct.result.ArrayElement;
+import se.kth.debug.struct.result.FieldData;
+import se.kth.debug.struct.result.LocalVariableData;
+import se.kth.debug.struct.result.RuntimeValue;
+
+/**
+ * Represents the values seen by a probe the way {@code Debugger} represents them over JDWP, reading
+ * fields and array elements with reflection. An instance reads the values of a single breakpoint or
+ * return.
+ */
+class ValueReader {
+    private static final Set<Class<?>> PRIMITIVE_WRAPPERS =
+            Set.of(
+                    String.class,
+                    Integer.class,
+                    Long.class,
+                    Double.class,
+                    Float.class,
+                    Boolean.class,
+                    Character.class,
+                    Byte.class,
+                    Short.class);
+    private static final ClassValue<List<Field>> VISIBLE_FIELDS =
+            new ClassValue<>() {
+                @Override
+                protected List<Field> computeValue(Class<?> type) {
+                    return computeVisibleFields(type);
+                }
+            };
+
+    private final AgentConfiguration configuration;
+    // Objects expanded so far, with the IDs they are referred back to with. The IDs only identify
+    // objects within the breakpoint or return.
+    private final Map<Object, ExpandedObject> capturedObjects = new IdentityHashMap<>();
+
+    ValueReader(AgentConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    List<LocalVariableData> readVariables(String[] names, String[] types, Object[] values) {
+        List<LocalVariableData> result = new ArrayList<>();
+        for (int i = 0; i < names.length; ++i) {
+            LocalVariableData localVariableData =
+                    new LocalVariableData(names[i], types[i], computeReadableValue(values[i]));
+            result.add(localVariableData);
+            expand(localVariableData, values[i], configuration.getExecutionDepth());
+        }
+        return result;
+    }
+
+    /**
+     * Reads the fields of the class declaring the method. Instance fields are skipped when there is
+     * no instance, either because the method is static or because the constructor has not called
+     * the constructor of the superclass yet.
+     */
+    List<FieldData> readFields(Class<?> declaringClass, Object thisObject) {
+        List<FieldData> result = new ArrayList<>();
+        for (Field field : VISIBLE_FIELDS.get(declaringClass)) {
+            boolean isStatic = Modifier.isStatic(field.getModifiers());
+            if (!isStatic && thisObject == null) {
+                continue;
+            }
+            Object value = get(field, isStatic ? null : thisObject);
+            FieldData fieldData =
+                    new FieldData(
+                            field.getName(),
+                            field.getType().getTypeName(),
+                            computeReadableValue(value));
+            expand(fieldData, value, configuration.getExecutionDepth());
+            result.add(fieldData);
+        }
+        return result;
+    }
+
+    Object computeReadableValue(Object value) {
+        if (value != null && value.getClass().isArray()) {
+            List<Object> result = new ArrayList<>();
+            for (Object element : sampleArray(value)) {
+                result.add(getReadableValue(element));
+            }
+            return result;
+        }
+        return getReadableValue(value);
+    }
+
+    /** Collects the fields and the elements of the value into the holder, as deep as asked for. */
+    void expand(RuntimeValue holder, Object value, int executionDepth) {
+        if (!shouldExpand(holder, value, executionDepth)) {
+            return;
+        }
+        if (isAnObjectReference(value)) {
+            holder.setFields(getNestedFields(value, executionDepth));
+        }
+        if (value != null && value.getClass().isArray()) {
+            holder.setArrayElements(getNestedElements(value, executionDepth));
+        }
+    }
+
+    private static Object getReadableValue(Object value) {
+        if (value == null || PRIMITIVE_WRAPPERS.contains(value.getClass())) {
+            return value;
+        }
+        return getTypeName(value.getClass());
+    }
+
+    // Hidden classes, like those of lambdas, are named the way JDI names them.
+    private static String getTypeName(Class<?> type) {
+        return type.getTypeName().replace('/', '.');
+    }
+
+    /** Returns the non-null elements selected by the array sampling, boxing primitives. */
+    private List<Object> sampleArray(Object array) {
+        int needed = configuration.getNumberOfArrayElements();
+        int length = Array.getLength(array);
+        List<Object> result = new ArrayList<>();
+        if (needed <= 0 || length == 0) {
+            return result;
+        }
+        switch (configuration.getArraySampling()) {
+            case TAIL:
+                for (int i = length - 1; i >= 0 && result.size() < needed; --i) {
+                    addIfNotNull(result, Array.get(array, i));
+                }
+                Collections.reverse(result);
+                return result;
+            case STRIDE:
+                if (needed >= length) {
+                    // Every element is needed, as with HEAD.
+                    return sampleHead(array, needed);
+                }
+                for (int i = 0; i < needed; ++i) {
+                    int index = needed == 1 ? 0 : (int) ((long) i * (length - 1) / (needed - 1));
+                    addIfNotNull(result, Array.get(array, index));
+                }
+                return result;
+            default:
+                return sampleHead(array, needed);
+        }
+    }
+
+    private static List<Object> sampleHead(Object array, int needed) {
+        int length = Array.getLength(array);
+        List<Object> result = new ArrayList<>();
+        for (int i = 0; i < length && result.size() < needed; ++i) {
+            addIfNotNull(result, Array.get(array, i));
+        }
+        return result;
+    }
+
+    private static void addIfNotNull(List<Object> elements, Object element) {
+        if (element != null) {
+            elements.add(element);
+        }
+    }
+
+    private List<ArrayElement> getNestedElements(Object array, int executionDepth) {
+        if (executionDepth == 0) {
+            return null;
+        }
+        Class<?> componentType = array.getClass().getComponentType();
+        List<ArrayElement> result = new ArrayList<>();
+        for (Object element : sampleArray(array)) {
+            String type =
+                    componentType.isPrimitive()
+                            ? componentType.getName()
+                            : getTypeName(element.getClass());
+            if (element.getClass().isArray()) {
+                ArrayElement arrayElement = new ArrayElement(type, computeReadableValue(element));
+                result.add(arrayElement);
+                if (shouldExpand(arrayElement, element, executionDepth - 1)) {
+                    arrayElement.setArrayElements(getNestedElements(element, executionDepth - 1));
+                }
+            } else if (isAnObjectReference(element)) {
+                ArrayElement arrayElement = new ArrayElement(type, getReadableValue(element));
+                result.add(arrayElement);
+                if (shouldExpand(arrayElement, element, executionDepth - 1)) {
+                    arrayElement.setFields(getNestedFields(element, executionDepth - 1));
+                }
+            } else {
+                result.add(new ArrayElement(type, getReadableValue(element)));
+            }
+        }
+        return result;
+    }
+
+    private List<FieldData> getNestedFields(Object object, int executionDepth) {
+        if (executionDepth == 0) {
+            return null;
+        }
+        List<FieldData> result = new ArrayList<>();
+        for (Field field : VISIBLE_FIELDS.get(object.getClass())) {
+            Object value = get(field, Modifier.isStatic(field.getModifiers()) ? null : object);
+            FieldData fieldData =
+                    new FieldData(
+                            field.getName(),
+                            field.getType().getTypeName(),
+                            computeReadableValue(value));
+            result.add(fieldData);
+            expand(fieldData, value, executionDepth - 1);
+        }
+        return result;
+    }
+
+    /** Same as {@code Debugger#shouldExpand}, with IDs local to the breakpoint or return. */
+    private boolean shouldExpand(RuntimeValue holder, Object value, int executionDepth) {
+        if (!configuration.shouldDeduplicateObjects()
+                || executionDepth == 0
+                || !isAnObjectReference(value)) {
+            return true;
+        }
+        ExpandedObject expanded = capturedObjects.get(value);
+        if (expanded != null && expanded.executionDepth >= executionDepth) {
+            holder.setBackReference(expanded.objectId);
+            return false;
+        }
+        long objectId;
+        if (expanded != null) {
+            objectId = expanded.objectId;
+            expanded.dropForReference();
+        } else {
+            objectId = (long) capturedObjects.size() + 1;
+        }
+        capturedObjects.put(value, new ExpandedObject(objectId, holder, executionDepth));
+        holder.setObjectId(objectId);
+        return true;
+    }
+
+    private static boolean isAnObjectReference(Object value) {
+        return value != null && !PRIMITIVE_WRAPPERS.contains(value.getClass());
+    }
+
+    private static Object get(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(field + " was made accessible", e);
+        }
+    }
+
+    /**
+     * Lists the fields the way JDI lists visible fields: the fields declared by the type, followed
+     * by the visible fields of its interfaces and superclass that are neither hidden by a declared
+     * field nor ambiguous.
+     */
+    private static List<Field> computeVisibleFields(Class<?> type) {
+        List<Field> inherited = new ArrayList<>();
+        Map<String, Field> inheritedByName = new HashMap<>();
+        Set<String> ambiguousNames = new HashSet<>();
+        List<Class<?>> supertypes = new ArrayList<>(List.of(type.getInterfaces()));
+        if (type.getSuperclass() != null) {
+            supertypes.add(type.getSuperclass());
+        }
+        for (Class<?> supertype : supertypes) {
+            for (Field field : VISIBLE_FIELDS.get(supertype)) {
+                String name = field.getName();
+                if (ambiguousNames.contains(name)) {
+                    continue;
+                }
+                Field existing = inheritedByName.get(name);
+                if (existing == null) {
+                    inheritedByName.put(name, field);
+                    inherited.add(field);
+                } else if (!existing.equals(field)) {
+                    ambiguousNames.add(name);
+                    inherited.remove(existing);
+                }
+            }
+        }
+        List<Field> result = new ArrayList<>();
+        for (Field field : type.getDeclaredFields()) {
+            field.setAccessible(true);
+            result.add(field);
+            Field hidden = inheritedByName.get(field.getName());
+            if (hidden != null) {
+                inherited.remove(hidden);
+            }
+        }
+        result.addAll(inherited);
+        return result;
+    }
+
+    /** Same as {@code Debugger.ExpandedObject}, with the ID local to the breakpoint or return. */
+    private static class ExpandedObject {
+        private final long objectId;
+        private final RuntimeValue holder;
+        private final int executionDepth;
+
+        ExpandedObject(long objectId, RuntimeValue holder, int executionDepth) {
+            this.objectId = objectId;
+            this.holder = holder;
+            this.executionDepth = executionDepth;
+        }
+
+        void dropForReference() {
+            holder.setObjectId(null);
+            holder.setFields(null);
+            holder.setArrayElements(null);
+            holder.setBackReference(objectId);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package se.kth.debug.output;
+
+/** Decides what happens to collected data when the writer of the output falls behind. */
+public enum BackpressurePolicy {
+    /** The debuggee stays suspended until there is room for the data. Nothing is lost. */
+    BLOCK,
+    /** The data is dropped, so that the debuggee is never held up by the writer. */
+    DROP,
+}
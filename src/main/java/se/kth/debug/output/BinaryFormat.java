@@ -0,0 +1,48 @@
+package se.kth.debug.output;
+
+/**
+ * Layout of the binary output, shared by {@link BinarySink} and {@link BinaryReader}.
+ *
+ * <p>The output starts with {@link #MAGIC} and {@link #VERSION}, followed by one record per
+ * breakpoint or return in the order they were collected. Each record starts with {@link
+ * #BREAKPOINT_RECORD} or {@link #RETURN_RECORD}. The hit counts of the states of breakpoints come
+ * after the breakpoints, as {@link #COUNTED_BREAKPOINT_RECORD}s holding the index of the breakpoint
+ * in the output and its count.
+ *
+ * <p>Integers are unsigned LEB128 varints, and signed ones are zigzag encoded first. Names, types,
+ * locations and stack frames are symbols: a symbol is a varint that is 0 for null, the 1-based
+ * index of a symbol seen before, or the next index followed by the length and the UTF-8 bytes of
+ * the new symbol. Hence, each of them is written once however often it is repeated. Values are a
+ * tag followed by their encoding, and lists are their size followed by their elements. A list that
+ * may be null has its size incremented by one, so that 0 stands for null.
+ */
+final class BinaryFormat {
+    static final byte[] MAGIC = {'C', 'S', 'B'};
+    static final int VERSION = 1;
+
+    static final int BREAKPOINT_RECORD = 1;
+    static final int RETURN_RECORD = 2;
+    static final int COUNTED_BREAKPOINT_RECORD = 3;
+
+    // Flags telling which optional parts of a runtime value follow.
+    static final int HAS_FIELDS = 1;
+    static final int HAS_ARRAY_ELEMENTS = 1 << 1;
+    static final int HAS_OBJECT_ID = 1 << 2;
+    static final int HAS_BACK_REFERENCE = 1 << 3;
+
+    // Tags of values.
+    static final int NULL = 0;
+    static final int INTEGER = 1;
+    static final int LONG = 2;
+    static final int SHORT = 3;
+    static final int BYTE = 4;
+    static final int CHARACTER = 5;
+    static final int FALSE = 6;
+    static final int TRUE = 7;
+    static final int FLOAT = 8;
+    static final int DOUBLE = 9;
+    static final int STRING = 10;
+    static final int LIST = 11;
+
+    private BinaryFormat() {}
+}
@@ -0,0 +1,240 @@
+package se.kth.debug.output;
+
+import static se.kth.debug.output.BinaryFormat.*;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import se.kth.debug.struct.result.ArrayElement;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.FieldData;
+import se.kth.debug.struct.result.LocalVariableData;
+import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.struct.result.RuntimeValue;
+import se.kth.debug.struct.result.RuntimeValueKind;
+import se.kth.debug.struct.result.StackFrameContext;
+import se.kth.debug.struct.result.StateHitCount;
+
+/** Decodes the output of {@link BinarySink} back into the objects that were collected. */
+public class BinaryReader implements Closeable {
+    private static final RuntimeValueKind[] KINDS = RuntimeValueKind.values();
+
+    private final DataInputStream in;
+    private final List<String> symbols = new ArrayList<>();
+
+    public BinaryReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an output of the collector");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version of the binary output: " + version);
+        }
+    }
+
+    /**
+     * Hands every breakpoint and return to the sink in the order they were collected. The sink is
+     * neither finished nor closed.
+     */
+    public void readTo(CollectedDataSink sink) throws IOException {
+        readTo(sink, 0);
+    }
+
+    /**
+     * Hands every breakpoint and return to a sink that has already received other breakpoints.
+     *
+     * @param firstBreakpoint number of breakpoints the sink has received before, which the indices
+     *     of the hit counts are shifted by
+     * @return number of breakpoints handed to the sink
+     */
+    public long readTo(CollectedDataSink sink, long firstBreakpoint) throws IOException {
+        long breakpoints = 0;
+        int record;
+        while ((record = in.read()) != -1) {
+            switch (record) {
+                case BREAKPOINT_RECORD:
+                    sink.writeBreakpoint(readBreakpoint());
+                    ++breakpoints;
+                    break;
+                case COUNTED_BREAKPOINT_RECORD:
+                    long breakpoint = firstBreakpoint + readVarint();
+                    sink.writeHitCount(new StateHitCount(breakpoint, readVarint()));
+                    break;
+                case RETURN_RECORD:
+                    sink.writeReturn((ReturnData) readRuntimeValue());
+                    break;
+                default:
+                    throw new IOException("Unknown record: " + record);
+            }
+        }
+        return breakpoints;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private BreakPointContext readBreakpoint() throws IOException {
+        String file = readSymbol();
+        int lineNumber = (int) readSignedVarint();
+        int size = (int) readVarint();
+        List<StackFrameContext> stackFrameContexts = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            StackFrameContext stackFrameContext =
+                    new StackFrameContext((int) readVarint(), readSymbol(), readSymbols());
+            List<RuntimeValue> runtimeValues = readRuntimeValues(RuntimeValue.class);
+            if (runtimeValues != null) {
+                stackFrameContext.addRuntimeValueCollection(runtimeValues);
+            }
+            stackFrameContexts.add(stackFrameContext);
+        }
+        return new BreakPointContext(file, lineNumber, stackFrameContexts);
+    }
+
+    private <T extends RuntimeValue> List<T> readRuntimeValues(Class<T> type) throws IOException {
+        int size = (int) readVarint() - 1;
+        if (size < 0) {
+            return null;
+        }
+        List<T> runtimeValues = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            runtimeValues.add(type.cast(readRuntimeValue()));
+        }
+        return runtimeValues;
+    }
+
+    /** Reads a runtime value written by {@link BinarySink#writeRuntimeValue(RuntimeValue)}. */
+    public RuntimeValue readRuntimeValue() throws IOException {
+        RuntimeValueKind kind = KINDS[in.readUnsignedByte()];
+        String name = readSymbol();
+        String type = readSymbol();
+        Object value = readValue();
+        RuntimeValue runtimeValue;
+        switch (kind) {
+            case FIELD:
+                runtimeValue = new FieldData(name, type, value);
+                break;
+            case LOCAL_VARIABLE:
+                runtimeValue = new LocalVariableData(name, type, value);
+                break;
+            case ARRAY_ELEMENT:
+                runtimeValue = new ArrayElement(type, value);
+                break;
+            default:
+                String location = readSymbol();
+                List<LocalVariableData> parameterValues =
+                        readRuntimeValues(LocalVariableData.class);
+                runtimeValue =
+                        new ReturnData(name, type, value, location, parameterValues, readSymbols());
+        }
+
+        int flags = in.readUnsignedByte();
+        if ((flags & HAS_FIELDS) != 0) {
+            runtimeValue.setFields(readRuntimeValues(FieldData.class));
+        }
+        if ((flags & HAS_ARRAY_ELEMENTS) != 0) {
+            runtimeValue.setArrayElements(readRuntimeValues(ArrayElement.class));
+        }
+        if ((flags & HAS_OBJECT_ID) != 0) {
+            runtimeValue.setObjectId(readVarint());
+        }
+        if ((flags & HAS_BACK_REFERENCE) != 0) {
+            runtimeValue.setBackReference(readVarint());
+        }
+        return runtimeValue;
+    }
+
+    private Object readValue() throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INTEGER:
+                return (int) readSignedVarint();
+            case LONG:
+                return readSignedVarint();
+            case SHORT:
+                return (short) readSignedVarint();
+            case BYTE:
+                return in.readByte();
+            case CHARACTER:
+                return (char) readVarint();
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return readString();
+            case LIST:
+                int size = (int) readVarint();
+                List<Object> elements = new ArrayList<>(size);
+                for (int i = 0; i < size; ++i) {
+                    elements.add(readValue());
+                }
+                return elements;
+            default:
+                throw new IOException("Unknown tag of a value: " + tag);
+        }
+    }
+
+    private List<String> readSymbols() throws IOException {
+        int size = (int) readVarint() - 1;
+        if (size < 0) {
+            return null;
+        }
+        List<String> result = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            result.add(readSymbol());
+        }
+        return result;
+    }
+
+    private String readSymbol() throws IOException {
+        int index = (int) readVarint();
+        if (index == 0) {
+            return null;
+        }
+        if (index == symbols.size() + 1) {
+            symbols.add(readString());
+        }
+        return symbols.get(index - 1);
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[(int) readVarint()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long readSignedVarint() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Malformed varint");
+    }
+}
@@ -0,0 +1,244 @@
+package se.kth.debug.output;
+
+import static se.kth.debug.output.BinaryFormat.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.struct.result.RuntimeValue;
+import se.kth.debug.struct.result.StackFrameContext;
+import se.kth.debug.struct.result.StateHitCount;
+
+/**
+ * Writes the collected data in the compact format described in {@link BinaryFormat}. It can be read
+ * back with {@link BinaryReader}.
+ */
+public class BinarySink implements CollectedDataSink {
+    private static final Logger logger = Logger.getLogger("Runner");
+
+    private final File output;
+    private final File partial;
+    private final DataOutputStream out;
+    private final Map<String, Integer> symbols = new HashMap<>();
+
+    public BinarySink(File output) throws IOException {
+        this.output = output;
+        if (output.getParentFile() != null) {
+            output.getParentFile().mkdirs();
+        }
+        // The output only appears once everything has been written to it.
+        partial = File.createTempFile("output", ".part", output.getAbsoluteFile().getParentFile());
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /** Writes to the stream instead of a file. Finishing the sink only closes the stream. */
+    public BinarySink(OutputStream stream) throws IOException {
+        this.output = null;
+        this.partial = null;
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    @Override
+    public void writeBreakpoint(BreakPointContext breakPointContext) throws IOException {
+        out.writeByte(BREAKPOINT_RECORD);
+        writeSymbol(breakPointContext.getFile());
+        writeSignedVarint(breakPointContext.getLineNumber());
+        List<StackFrameContext> stackFrameContexts = breakPointContext.getStackFrameContexts();
+        writeVarint(stackFrameContexts.size());
+        for (StackFrameContext stackFrameContext : stackFrameContexts) {
+            writeVarint(stackFrameContext.getPositionFromTopInStackTrace());
+            writeSymbol(stackFrameContext.getLocation());
+            writeSymbols(stackFrameContext.getStackTrace());
+            writeRuntimeValues(stackFrameContext.getRuntimeValueCollection());
+        }
+    }
+
+    @Override
+    public void writeReturn(ReturnData returnData) throws IOException {
+        out.writeByte(RETURN_RECORD);
+        writeRuntimeValue(returnData);
+    }
+
+    @Override
+    public void writeHitCount(StateHitCount stateHitCount) throws IOException {
+        out.writeByte(COUNTED_BREAKPOINT_RECORD);
+        writeVarint(stateHitCount.getBreakpoint());
+        writeVarint(stateHitCount.getHitCount());
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.close();
+        if (output == null) {
+            return;
+        }
+        Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("File output to: " + output.getAbsolutePath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        if (partial != null) {
+            Files.deleteIfExists(partial.toPath());
+        }
+    }
+
+    private void writeRuntimeValues(List<? extends RuntimeValue> runtimeValues) throws IOException {
+        if (runtimeValues == null) {
+            writeVarint(0);
+            return;
+        }
+        writeVarint(runtimeValues.size() + 1);
+        for (RuntimeValue runtimeValue : runtimeValues) {
+            writeRuntimeValue(runtimeValue);
+        }
+    }
+
+    /**
+     * Writes a runtime value on its own, outside of any record. It is read back with {@link
+     * BinaryReader#readRuntimeValue()}.
+     */
+    public void writeRuntimeValue(RuntimeValue runtimeValue) throws IOException {
+        out.writeByte(runtimeValue.getKind().ordinal());
+        writeSymbol(runtimeValue.getName());
+        writeSymbol(runtimeValue.getType());
+        writeValue(runtimeValue.getValue());
+        if (runtimeValue instanceof ReturnData) {
+            ReturnData returnData = (ReturnData) runtimeValue;
+            writeSymbol(returnData.getLocation());
+            writeRuntimeValues(returnData.getParameterValues());
+            writeSymbols(returnData.getStackTrace());
+        }
+
+        int flags = 0;
+        if (runtimeValue.getFields() != null) {
+            flags |= HAS_FIELDS;
+        }
+        if (runtimeValue.getArrayElements() != null) {
+            flags |= HAS_ARRAY_ELEMENTS;
+        }
+        if (runtimeValue.getObjectId() != null) {
+            flags |= HAS_OBJECT_ID;
+        }
+        if (runtimeValue.getBackReference() != null) {
+            flags |= HAS_BACK_REFERENCE;
+        }
+        out.writeByte(flags);
+        if (runtimeValue.getFields() != null) {
+            writeRuntimeValues(runtimeValue.getFields());
+        }
+        if (runtimeValue.getArrayElements() != null) {
+            writeRuntimeValues(runtimeValue.getArrayElements());
+        }
+        if (runtimeValue.getObjectId() != null) {
+            writeVarint(runtimeValue.getObjectId());
+        }
+        if (runtimeValue.getBackReference() != null) {
+            writeVarint(runtimeValue.getBackReference());
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            writeSignedVarint((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeSignedVarint((Long) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            writeSignedVarint((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHARACTER);
+            writeVarint((Character) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString((String) value);
+        } else if (value instanceof List) {
+            out.writeByte(LIST);
+            List<?> elements = (List<?>) value;
+            writeVarint(elements.size());
+            for (Object element : elements) {
+                writeValue(element);
+            }
+        } else {
+            throw new IllegalArgumentException(
+                    "Values of " + value.getClass() + " cannot be written");
+        }
+    }
+
+    private void writeSymbols(List<String> strings) throws IOException {
+        if (strings == null) {
+            writeVarint(0);
+            return;
+        }
+        writeVarint(strings.size() + 1);
+        for (String symbol : strings) {
+            writeSymbol(symbol);
+        }
+    }
+
+    private void writeSymbol(String symbol) throws IOException {
+        if (symbol == null) {
+            writeVarint(0);
+            return;
+        }
+        Integer index = symbols.get(symbol);
+        if (index != null) {
+            writeVarint(index);
+            return;
+        }
+        index = symbols.size() + 1;
+        symbols.put(symbol, index);
+        writeVarint(index);
+        writeString(symbol);
+    }
+
+    private void writeString(String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeSignedVarint(long value) throws IOException {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
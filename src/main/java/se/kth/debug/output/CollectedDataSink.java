@@ -0,0 +1,26 @@
+package se.kth.debug.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.struct.result.StateHitCount;
+
+/** Receives the collected data as soon as each breakpoint or return has been processed. */
+public interface CollectedDataSink extends Closeable {
+    void writeBreakpoint(BreakPointContext breakPointContext) throws IOException;
+
+    void writeReturn(ReturnData returnData) throws IOException;
+
+    /**
+     * Receives the final hit count of the state of a breakpoint written before, if repeated states
+     * are only counted. The counts come after all the breakpoints they are about.
+     */
+    void writeHitCount(StateHitCount stateHitCount) throws IOException;
+
+    /**
+     * Completes the output once the debuggee has finished. A sink that is closed without being
+     * finished discards whatever it has received.
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,195 @@
+package se.kth.debug.output;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.struct.result.StateHitCount;
+
+/**
+ * Writes the {@code {"breakpoint": [...], "return": [...]}} document without keeping the collected
+ * data in memory. If repeated states of breakpoints are counted, a {@code "hitCount"} array follows
+ * with the count of each state and the index of its breakpoint in the first array. Breakpoints and
+ * returns arrive interleaved, so each array is written to its own segment next to the output, and
+ * the segments are joined into the output when the sink is finished.
+ */
+public class JsonStreamingSink implements CollectedDataSink {
+    private static final Logger logger = Logger.getLogger("Runner");
+
+    private final Gson gson =
+            new GsonBuilder()
+                    .setPrettyPrinting()
+                    .serializeNulls()
+                    .serializeSpecialFloatingPointValues()
+                    .create();
+    private final File output;
+    private final Segment breakpoints;
+    private final Segment returns;
+    // Only written if repeated states of breakpoints are counted.
+    private Segment hitCounts;
+
+    public JsonStreamingSink(File output, boolean skipBreakpointValues, boolean skipReturnValues)
+            throws IOException {
+        this.output = output;
+        if (output.getParentFile() != null) {
+            output.getParentFile().mkdirs();
+        }
+        breakpoints = skipBreakpointValues ? null : new Segment("breakpoint");
+        returns = skipReturnValues ? null : new Segment("return");
+    }
+
+    /** Does nothing if breakpoint data was not asked for. */
+    @Override
+    public void writeBreakpoint(BreakPointContext breakPointContext) throws IOException {
+        if (breakpoints != null) {
+            breakpoints.write(breakPointContext, BreakPointContext.class);
+        }
+    }
+
+    /** Does nothing if return data was not asked for. */
+    @Override
+    public void writeReturn(ReturnData returnData) throws IOException {
+        if (returns != null) {
+            returns.write(returnData, ReturnData.class);
+        }
+    }
+
+    /** Does nothing if breakpoint data was not asked for. */
+    @Override
+    public void writeHitCount(StateHitCount stateHitCount) throws IOException {
+        if (breakpoints == null) {
+            return;
+        }
+        if (hitCounts == null) {
+            hitCounts = new Segment("hitCount");
+        }
+        hitCounts.write(stateHitCount, StateHitCount.class);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        if (breakpoints == null) {
+            logger.info(
+                    "Breakpoint data was not asked for. Please provide class names and line numbers if you desire otherwise.");
+        } else {
+            breakpoints.end();
+            segments.add(breakpoints);
+            if (breakpoints.size > 0) {
+                logger.info("Breakpoints serialised!");
+            } else {
+                logger.info("Output file was not generated as breakpoints were not encountered.");
+            }
+        }
+        if (returns == null) {
+            logger.info(
+                    "Return data was not asked for. Please provide method names if you desire otherwise.");
+        } else {
+            returns.end();
+            segments.add(returns);
+            if (returns.size > 0) {
+                logger.info("Return values serialised!");
+            } else {
+                logger.info("No method exits were encountered.");
+            }
+        }
+        if (hitCounts != null) {
+            hitCounts.end();
+            segments.add(hitCounts);
+        }
+        join(segments);
+        logger.info("File output to: " + output.getAbsolutePath());
+    }
+
+    /**
+     * Each segment is a complete document with a single property, so the output is the segments
+     * without their braces, separated by commas. Since all of them are written with the same
+     * indentation, the result is exactly what a single {@link JsonWriter} would have written.
+     */
+    private void join(List<Segment> segments) throws IOException {
+        try (FileChannel out =
+                FileChannel.open(
+                        output.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, "{");
+            for (int i = 0; i < segments.size(); ++i) {
+                if (i > 0) {
+                    write(out, ",");
+                }
+                try (FileChannel in = FileChannel.open(segments.get(i).file.toPath())) {
+                    // Leaves out the leading "{" and the trailing "\n}".
+                    long position = 1;
+                    long end = in.size() - 2;
+                    while (position < end) {
+                        position += in.transferTo(position, end - position, out);
+                    }
+                }
+            }
+            write(out, segments.isEmpty() ? "}" : "\n}");
+        }
+    }
+
+    private static void write(FileChannel channel, String text) throws IOException {
+        channel.write(StandardCharsets.UTF_8.encode(text));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Segment segment : new Segment[] {breakpoints, returns, hitCounts}) {
+            if (segment != null) {
+                // The writer itself refuses to close an incomplete document.
+                segment.stream.close();
+                Files.deleteIfExists(segment.file.toPath());
+            }
+        }
+    }
+
+    private class Segment {
+        private final File file;
+        private final Writer stream;
+        private final JsonWriter writer;
+        private long size = 0;
+
+        private Segment(String name) throws IOException {
+            file =
+                    File.createTempFile(
+                            name, ".json.part", output.getAbsoluteFile().getParentFile());
+            stream =
+                    new BufferedWriter(
+                            new OutputStreamWriter(
+                                    new FileOutputStream(file), StandardCharsets.UTF_8));
+            writer = new JsonWriter(stream);
+            writer.setIndent("  ");
+            writer.beginObject();
+            writer.name(name);
+            writer.beginArray();
+        }
+
+        private <T> void write(T value, Class<T> type) throws IOException {
+            gson.toJson(value, type, writer);
+            ++size;
+        }
+
+        private void end() throws IOException {
+            writer.endArray();
+            writer.endObject();
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package se.kth.debug.output;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Format of the file the collected data is written to. */
+public enum OutputFormat {
+    /** Pretty-printed JSON, written by {@link JsonStreamingSink}. */
+    JSON,
+    /** Compact binary format, written by {@link BinarySink} and read by {@link BinaryReader}. */
+    BINARY;
+
+    public CollectedDataSink createSink(
+            File output, boolean skipBreakpointValues, boolean skipReturnValues)
+            throws IOException {
+        if (this == BINARY) {
+            return new BinarySink(output);
+        }
+        return new JsonStreamingSink(output, skipBreakpointValues, skipReturnValues);
+    }
+}
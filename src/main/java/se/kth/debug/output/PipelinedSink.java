@@ -0,0 +1,160 @@
+package se.kth.debug.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.struct.result.StateHitCount;
+
+/**
+ * Hands the collected data to another sink on a separate thread. The thread processing events then
+ * only has to capture the data before resuming the debuggee, while serialising it overlaps with the
+ * execution of the debuggee. At most {@code capacity} breakpoints and returns wait to be written,
+ * and the {@link BackpressurePolicy} decides what happens when there are more.
+ */
+public class PipelinedSink implements CollectedDataSink {
+    private static final Logger logger = Logger.getLogger("Runner");
+    // Tells the writer that nothing else will be queued.
+    private static final Object END = new Object();
+
+    private final CollectedDataSink delegate;
+    private final BackpressurePolicy policy;
+    private final BlockingQueue<Object> queue;
+    private final Thread writer;
+    private volatile Throwable failure;
+    private long dropped = 0;
+    // Indices of the breakpoints that were dropped, in ascending order, and the number received.
+    private final List<Long> droppedBreakpoints = new ArrayList<>();
+    private long breakpoints = 0;
+
+    public PipelinedSink(CollectedDataSink delegate, int capacity, BackpressurePolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::write, "collector-output-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void writeBreakpoint(BreakPointContext breakPointContext) throws IOException {
+        if (!enqueue(breakPointContext)) {
+            droppedBreakpoints.add(breakpoints);
+        }
+        ++breakpoints;
+    }
+
+    @Override
+    public void writeReturn(ReturnData returnData) throws IOException {
+        enqueue(returnData);
+    }
+
+    /**
+     * Hands the count to the delegate, with the index the breakpoint has there, unless the
+     * breakpoint was dropped. Counts themselves are never dropped.
+     */
+    @Override
+    public void writeHitCount(StateHitCount stateHitCount) throws IOException {
+        throwIfFailed();
+        int position = Collections.binarySearch(droppedBreakpoints, stateHitCount.getBreakpoint());
+        if (position >= 0) {
+            return;
+        }
+        // The number of breakpoints dropped before this one.
+        int droppedBefore = -position - 1;
+        put(
+                new StateHitCount(
+                        stateHitCount.getBreakpoint() - droppedBefore,
+                        stateHitCount.getHitCount()));
+    }
+
+    @Override
+    public void finish() throws IOException {
+        put(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output writer");
+        }
+        throwIfFailed();
+        if (dropped > 0) {
+            logger.warning(
+                    dropped + " breakpoints and returns were dropped as the output fell behind.");
+        }
+        delegate.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    /** Returns whether the data was queued rather than dropped. */
+    private boolean enqueue(Object data) throws IOException {
+        throwIfFailed();
+        if (policy == BackpressurePolicy.DROP) {
+            if (!queue.offer(data)) {
+                ++dropped;
+                return false;
+            }
+            return true;
+        }
+        put(data);
+        return true;
+    }
+
+    private void put(Object data) throws InterruptedIOException {
+        try {
+            queue.put(data);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output writer");
+        }
+    }
+
+    private void throwIfFailed() throws IOException {
+        if (failure != null) {
+            throw new IOException("The output could not be written", failure);
+        }
+    }
+
+    private void write() {
+        try {
+            Object data;
+            while ((data = queue.take()) != END) {
+                if (failure != null) {
+                    // Keeps draining the queue so that the event thread is never blocked forever.
+                    continue;
+                }
+                try {
+                    if (data instanceof BreakPointContext) {
+                        delegate.writeBreakpoint((BreakPointContext) data);
+                    } else if (data instanceof StateHitCount) {
+                        delegate.writeHitCount((StateHitCount) data);
+                    } else {
+                        delegate.writeReturn((ReturnData) data);
+                    }
+                } catch (Throwable e) {
+                    // Even an error must not stop the writer, or the event thread would wait for
+                    // it forever.
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The sink was closed without being finished.
+        }
+    }
+}
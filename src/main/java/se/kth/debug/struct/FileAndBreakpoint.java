@@ -2,14 +2,22 @@ package se.kth.debug.struct;
 
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 
 public class FileAndBreakpoint {
     private final String fileName;
     private final List<Integer> breakpoints;
+    // Captures every hit if null.
+    private final HitSampling sampling;
 
     public FileAndBreakpoint(String fileName, List<Integer> breakpoints) {
+        this(fileName, breakpoints, null);
+    }
+
+    public FileAndBreakpoint(String fileName, List<Integer> breakpoints, HitSampling sampling) {
         this.fileName = fileName;
         this.breakpoints = breakpoints;
+        this.sampling = sampling;
     }
 
     public String getFileName() {
@@ -20,6 +28,11 @@ public class FileAndBreakpoint {
         return breakpoints;
     }
 
+    /** Returns which hits of the breakpoints are captured, or null for all of them. */
+    public HitSampling getSampling() {
+        return sampling;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
@@ -27,7 +40,8 @@ public class FileAndBreakpoint {
         if (getClass() != obj.getClass()) return false;
         FileAndBreakpoint other = (FileAndBreakpoint) obj;
         return fileName.equals(other.fileName)
-                && new HashSet<>(breakpoints).equals(new HashSet<>(other.breakpoints));
+                && new HashSet<>(breakpoints).equals(new HashSet<>(other.breakpoints))
+                && Objects.equals(sampling, other.sampling);
     }
 
     @Override
@@ -36,11 +50,12 @@ public class FileAndBreakpoint {
         int result = 1;
         result = prime * result + fileName.hashCode();
         result = prime * result + breakpoints.hashCode();
+        result = prime * result + Objects.hashCode(sampling);
         return result;
     }
 
     @Override
     public String toString() {
-        return "[" + fileName + ":" + breakpoints + "]";
+        return "[" + fileName + ":" + breakpoints + (sampling == null ? "" : " " + sampling) + "]";
     }
 }
@@ -0,0 +1,53 @@
+package se.kth.debug.struct;
+
+import java.util.Objects;
+
+/** Decides which hits of the breakpoints of a {@link FileAndBreakpoint} are captured. */
+public class HitSampling {
+    public enum Policy {
+        /** Every {@code size}-th hit. */
+        EVERY_NTH,
+        /** {@code size} hits drawn uniformly from all the hits of the run. */
+        RESERVOIR,
+        /**
+         * The first {@code size} hits and the last {@code size} hits. Any hit may be one of the
+         * last ones, so every hit is still captured, and only the output is smaller.
+         */
+        FIRST_LAST,
+    }
+
+    private final Policy policy;
+    private final int size;
+
+    public HitSampling(Policy policy, int size) {
+        this.policy = policy;
+        this.size = size;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (getClass() != obj.getClass()) return false;
+        HitSampling other = (HitSampling) obj;
+        return policy == other.policy && size == other.size;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(policy, size);
+    }
+
+    @Override
+    public String toString() {
+        return policy + "(" + size + ")";
+    }
+}
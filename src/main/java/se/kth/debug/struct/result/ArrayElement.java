@@ -1,6 +1,8 @@
 package se.kth.debug.struct.result;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.List;
+import se.kth.debug.OmitNullAdapterFactory;
 
 public class ArrayElement implements RuntimeValue {
     private final RuntimeValueKind kind = RuntimeValueKind.ARRAY_ELEMENT;
@@ -9,6 +11,12 @@ public class ArrayElement implements RuntimeValue {
     private List<FieldData> fields = null;
     private List<ArrayElement> arrayElements = null;
 
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long objectId = null;
+
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long backReference = null;
+
     public ArrayElement(String type, Object value) {
         this.type = type;
         this.value = value;
@@ -39,11 +47,38 @@ public class ArrayElement implements RuntimeValue {
         return null;
     }
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
     public void setArrayElements(List<ArrayElement> arrayElements) {
         this.arrayElements = arrayElements;
     }
 
+    @Override
     public void setFields(List<FieldData> fields) {
         this.fields = fields;
     }
+
+    @Override
+    public Long getObjectId() {
+        return objectId;
+    }
+
+    @Override
+    public void setObjectId(Long objectId) {
+        this.objectId = objectId;
+    }
+
+    @Override
+    public Long getBackReference() {
+        return backReference;
+    }
+
+    @Override
+    public void setBackReference(Long backReference) {
+        this.backReference = backReference;
+    }
 }
@@ -1,12 +1,20 @@
 package se.kth.debug.struct.result;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.List;
+import se.kth.debug.OmitNullAdapterFactory;
 
 public class BreakPointContext {
     private final String file;
     private final int lineNumber;
     private final List<StackFrameContext> stackFrameContexts;
 
+    // How often the breakpoint was hit in this state, if repeated states are only counted. Sinks
+    // get
+    // it as a separate StateHitCount after the snapshots instead.
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long hitCount = null;
+
     public BreakPointContext(
             String file, int lineNumber, List<StackFrameContext> stackFrameContexts) {
         this.file = file;
@@ -14,6 +22,10 @@ public class BreakPointContext {
         this.stackFrameContexts = stackFrameContexts;
     }
 
+    public String getFile() {
+        return file;
+    }
+
     public int getLineNumber() {
         return lineNumber;
     }
@@ -21,4 +33,12 @@ public class BreakPointContext {
     public List<StackFrameContext> getStackFrameContexts() {
         return stackFrameContexts;
     }
+
+    public Long getHitCount() {
+        return hitCount;
+    }
+
+    public void setHitCount(Long hitCount) {
+        this.hitCount = hitCount;
+    }
 }
@@ -1,6 +1,8 @@
 package se.kth.debug.struct.result;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.List;
+import se.kth.debug.OmitNullAdapterFactory;
 
 public class FieldData implements RuntimeValue {
     private final RuntimeValueKind kind = RuntimeValueKind.FIELD;
@@ -10,6 +12,12 @@ public class FieldData implements RuntimeValue {
     private List<FieldData> fields = null;
     private List<ArrayElement> arrayElements = null;
 
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long objectId = null;
+
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long backReference = null;
+
     public FieldData(String name, String type, Object value) {
         this.name = name;
         this.type = type;
@@ -21,10 +29,17 @@ public class FieldData implements RuntimeValue {
         return name;
     }
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
     public void setFields(List<FieldData> fields) {
         this.fields = fields;
     }
 
+    @Override
     public void setArrayElements(List<ArrayElement> arrayElements) {
         this.arrayElements = arrayElements;
     }
@@ -48,4 +63,24 @@ public class FieldData implements RuntimeValue {
     public List<ArrayElement> getArrayElements() {
         return arrayElements;
     }
+
+    @Override
+    public Long getObjectId() {
+        return objectId;
+    }
+
+    @Override
+    public void setObjectId(Long objectId) {
+        this.objectId = objectId;
+    }
+
+    @Override
+    public Long getBackReference() {
+        return backReference;
+    }
+
+    @Override
+    public void setBackReference(Long backReference) {
+        this.backReference = backReference;
+    }
 }
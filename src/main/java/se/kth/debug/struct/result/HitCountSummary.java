@@ -0,0 +1,25 @@
+package se.kth.debug.struct.result;
+
+import com.google.gson.annotations.SerializedName;
+import java.util.List;
+
+/** The output of a run that only counts, with the same sections as the collected data. */
+public class HitCountSummary {
+    private final List<LineHitCount> breakpoint;
+
+    @SerializedName("return")
+    private final List<ReturnHitCount> returns;
+
+    public HitCountSummary(List<LineHitCount> breakpoint, List<ReturnHitCount> returns) {
+        this.breakpoint = breakpoint;
+        this.returns = returns;
+    }
+
+    public List<LineHitCount> getBreakpoints() {
+        return breakpoint;
+    }
+
+    public List<ReturnHitCount> getReturns() {
+        return returns;
+    }
+}
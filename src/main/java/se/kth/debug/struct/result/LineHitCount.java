@@ -0,0 +1,34 @@
+package se.kth.debug.struct.result;
+
+import java.util.Map;
+
+/** How often a breakpoint was hit, in total and by each test method that hit it. */
+public class LineHitCount {
+    private final String file;
+    private final int lineNumber;
+    private final long hits;
+    private final Map<String, Long> hitsPerTest;
+
+    public LineHitCount(String file, int lineNumber, long hits, Map<String, Long> hitsPerTest) {
+        this.file = file;
+        this.lineNumber = lineNumber;
+        this.hits = hits;
+        this.hitsPerTest = hitsPerTest;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public Map<String, Long> getHitsPerTest() {
+        return hitsPerTest;
+    }
+}
@@ -1,6 +1,8 @@
 package se.kth.debug.struct.result;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.List;
+import se.kth.debug.OmitNullAdapterFactory;
 
 public class LocalVariableData implements RuntimeValue {
     private final RuntimeValueKind kind = RuntimeValueKind.LOCAL_VARIABLE;
@@ -10,16 +12,24 @@ public class LocalVariableData implements RuntimeValue {
     private List<FieldData> fields = null;
     private List<ArrayElement> arrayElements = null;
 
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long objectId = null;
+
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long backReference = null;
+
     public LocalVariableData(String name, String type, Object value) {
         this.name = name;
         this.type = type;
         this.value = value;
     }
 
+    @Override
     public void setFields(List<FieldData> fields) {
         this.fields = fields;
     }
 
+    @Override
     public void setArrayElements(List<ArrayElement> arrayElements) {
         this.arrayElements = arrayElements;
     }
@@ -48,4 +58,29 @@ public class LocalVariableData implements RuntimeValue {
     public String getName() {
         return name;
     }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public Long getObjectId() {
+        return objectId;
+    }
+
+    @Override
+    public void setObjectId(Long objectId) {
+        this.objectId = objectId;
+    }
+
+    @Override
+    public Long getBackReference() {
+        return backReference;
+    }
+
+    @Override
+    public void setBackReference(Long backReference) {
+        this.backReference = backReference;
+    }
 }
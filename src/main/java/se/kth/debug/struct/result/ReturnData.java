@@ -1,6 +1,8 @@
 package se.kth.debug.struct.result;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.List;
+import se.kth.debug.OmitNullAdapterFactory;
 
 public class ReturnData implements RuntimeValue {
     private final RuntimeValueKind kind = RuntimeValueKind.RETURN;
@@ -13,6 +15,12 @@ public class ReturnData implements RuntimeValue {
     private List<FieldData> fields = null;
     private List<ArrayElement> arrayElements = null;
 
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long objectId = null;
+
+    @JsonAdapter(value = OmitNullAdapterFactory.class, nullSafe = false)
+    private Long backReference = null;
+
     public ReturnData(
             String methodName,
             String type,
@@ -28,10 +36,12 @@ public class ReturnData implements RuntimeValue {
         this.stackTrace = stackTrace;
     }
 
+    @Override
     public void setFields(List<FieldData> fields) {
         this.fields = fields;
     }
 
+    @Override
     public void setArrayElements(List<ArrayElement> arrayElements) {
         this.arrayElements = arrayElements;
     }
@@ -60,4 +70,41 @@ public class ReturnData implements RuntimeValue {
     public String getName() {
         return methodName;
     }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public List<LocalVariableData> getParameterValues() {
+        return parameterValues;
+    }
+
+    public List<String> getStackTrace() {
+        return stackTrace;
+    }
+
+    @Override
+    public Long getObjectId() {
+        return objectId;
+    }
+
+    @Override
+    public void setObjectId(Long objectId) {
+        this.objectId = objectId;
+    }
+
+    @Override
+    public Long getBackReference() {
+        return backReference;
+    }
+
+    @Override
+    public void setBackReference(Long backReference) {
+        this.backReference = backReference;
+    }
 }
@@ -0,0 +1,35 @@
+package se.kth.debug.struct.result;
+
+import java.util.Map;
+
+/** How often a method returned, in total and in each test method that called it. */
+public class ReturnHitCount {
+    private final String className;
+    private final String methodName;
+    private final long hits;
+    private final Map<String, Long> hitsPerTest;
+
+    public ReturnHitCount(
+            String className, String methodName, long hits, Map<String, Long> hitsPerTest) {
+        this.className = className;
+        this.methodName = methodName;
+        this.hits = hits;
+        this.hitsPerTest = hitsPerTest;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public Map<String, Long> getHitsPerTest() {
+        return hitsPerTest;
+    }
+}
@@ -9,7 +9,29 @@ public interface RuntimeValue {
 
     List<FieldData> getFields();
 
+    void setFields(List<FieldData> fields);
+
     List<ArrayElement> getArrayElements();
 
+    void setArrayElements(List<ArrayElement> arrayElements);
+
     String getName();
+
+    String getType();
+
+    /**
+     * Returns the unique ID of the object in the debuggee if its fields were collected while
+     * objects are deduplicated, or null otherwise.
+     */
+    Long getObjectId();
+
+    void setObjectId(Long objectId);
+
+    /**
+     * Returns the unique ID of the object whose fields were collected elsewhere in the same
+     * snapshot, or null if this value was not deduplicated.
+     */
+    Long getBackReference();
+
+    void setBackReference(Long backReference);
 }
@@ -20,6 +20,18 @@ public class StackFrameContext {
         this.stackTrace = stackTrace;
     }
 
+    public int getPositionFromTopInStackTrace() {
+        return positionFromTopInStackTrace;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public List<String> getStackTrace() {
+        return stackTrace;
+    }
+
     public void addRuntimeValueCollection(List<? extends RuntimeValue> runtimeValues) {
         this.runtimeValueCollection.addAll(runtimeValues);
     }
@@ -0,0 +1,27 @@
+package se.kth.debug.struct.result;
+
+/**
+ * How often a breakpoint was hit in the state of one of the breakpoints written before, if repeated
+ * states are only counted.
+ */
+public class StateHitCount {
+    private final long breakpoint;
+    private final long hitCount;
+
+    /**
+     * @param breakpoint index of the breakpoint among those written to the output, from 0
+     * @param hitCount number of hits in its state, including itself
+     */
+    public StateHitCount(long breakpoint, long hitCount) {
+        this.breakpoint = breakpoint;
+        this.hitCount = hitCount;
+    }
+
+    public long getBreakpoint() {
+        return breakpoint;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+}
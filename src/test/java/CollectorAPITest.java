@@ -1,18 +1,58 @@
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.sun.jdi.AbsentInformationException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import se.kth.debug.ArraySampling;
+import se.kth.debug.CaptureBackend;
 import se.kth.debug.Collector;
 import se.kth.debug.CollectorOptions;
 import se.kth.debug.EventProcessor;
+import se.kth.debug.JUnitTestRunner;
+import se.kth.debug.SuspendPolicy;
+import se.kth.debug.TestSelection;
+import se.kth.debug.output.BackpressurePolicy;
+import se.kth.debug.output.BinaryReader;
+import se.kth.debug.output.BinarySink;
+import se.kth.debug.output.CollectedDataSink;
+import se.kth.debug.output.JsonStreamingSink;
+import se.kth.debug.output.PipelinedSink;
+import se.kth.debug.struct.FileAndBreakpoint;
+import se.kth.debug.struct.MethodForExitEvent;
 import se.kth.debug.struct.result.*;
 
 public class CollectorAPITest {
@@ -53,6 +93,74 @@ public class CollectorAPITest {
         assertThat(eventProcessor.getReturnValues(), is(empty()));
     }
 
+    @Nested
+    class ReadingValuesInBulk {
+        private EventProcessor collectPair()
+                throws AbsentInformationException, FileNotFoundException {
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests = new String[] {"foo.StaticClassFieldTest::test_doSomething"};
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT.resolve("static-class-field-values.txt").toFile();
+            return Collector.invoke(
+                    classpath,
+                    tests,
+                    classesAndBreakpoints,
+                    setExecutionDepth(1).setSkipReturnValues(true));
+        }
+
+        private List<RuntimeValue> valuesAtLine(EventProcessor eventProcessor, int lineNumber) {
+            return eventProcessor.getBreakpointContexts().stream()
+                    .filter(bpc -> bpc.getLineNumber() == lineNumber)
+                    .findAny()
+                    .orElseThrow()
+                    .getStackFrameContexts()
+                    .get(0)
+                    .getRuntimeValueCollection();
+        }
+
+        @Test
+        void eachLocalVariableAndFieldOfTheFrameGetsItsOwnValue()
+                throws AbsentInformationException, FileNotFoundException {
+            // act
+            List<RuntimeValue> values = valuesAtLine(collectPair(), 20);
+
+            // assert
+            assertThat(values.size(), equalTo(4));
+            assertThat(values.get(0).getKind(), is(RuntimeValueKind.LOCAL_VARIABLE));
+            assertThat(values.get(0).getName(), equalTo("a"));
+            assertThat(values.get(0).getValue(), equalTo(1));
+            assertThat(values.get(1).getKind(), is(RuntimeValueKind.LOCAL_VARIABLE));
+            assertThat(values.get(1).getName(), equalTo("b"));
+            assertThat(values.get(1).getValue(), equalTo(2));
+            // Line 20 has not assigned the second field yet.
+            assertThat(values.get(2).getKind(), is(RuntimeValueKind.FIELD));
+            assertThat(values.get(2).getName(), equalTo("a"));
+            assertThat(values.get(2).getValue(), equalTo(1));
+            assertThat(values.get(3).getKind(), is(RuntimeValueKind.FIELD));
+            assertThat(values.get(3).getName(), equalTo("b"));
+            assertThat(values.get(3).getValue(), equalTo(0));
+        }
+
+        @Test
+        void eachFieldOfANestedObjectGetsItsOwnValue()
+                throws AbsentInformationException, FileNotFoundException {
+            // act
+            List<RuntimeValue> values = valuesAtLine(collectPair(), 6);
+
+            // assert
+            assertThat(values.size(), equalTo(1));
+            RuntimeValue pair = values.get(0);
+            assertThat(pair.getName(), equalTo("p"));
+            assertThat(pair.getFields().size(), equalTo(2));
+            assertThat(pair.getFields().get(0).getName(), equalTo("a"));
+            assertThat(pair.getFields().get(0).getValue(), equalTo(1));
+            assertThat(pair.getFields().get(1).getName(), equalTo("b"));
+            assertThat(pair.getFields().get(1).getValue(), equalTo(2));
+        }
+    }
+
     @Nested
     class RepresentingCollections {
         @Test
@@ -142,6 +250,54 @@ public class CollectorAPITest {
             assertThat(actualElements, equalTo(List.of("yes", "we", "can")));
         }
 
+        @Nested
+        class OnlySampledArrayElementsAreRecorded {
+            private List<?> arrangeAndAct(ArraySampling arraySampling, int numberOfArrayElements)
+                    throws AbsentInformationException, FileNotFoundException {
+                // arrange
+                String[] classpath =
+                        TestHelper.getMavenClasspathFromBuildDirectory(
+                                TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+                String[] tests = new String[] {"foo.CollectionsTest::test_canWePrintPrimitive"};
+                File classesAndBreakpoints =
+                        TestHelper.PATH_TO_INPUT
+                                .resolve("collections")
+                                .resolve("primitive.txt")
+                                .toFile();
+                CollectorOptions context =
+                        TestHelper.getDefaultOptions().setArraySampling(arraySampling);
+                context.setNumberOfArrayElements(numberOfArrayElements);
+
+                // act
+                EventProcessor eventProcessor =
+                        Collector.invoke(classpath, tests, classesAndBreakpoints, context);
+                return (List<?>)
+                        eventProcessor
+                                .getBreakpointContexts()
+                                .get(0)
+                                .getStackFrameContexts()
+                                .get(0)
+                                .getRuntimeValueCollection()
+                                .get(0)
+                                .getValue();
+            }
+
+            @Test
+            void head() throws AbsentInformationException, FileNotFoundException {
+                assertThat(arrangeAndAct(ArraySampling.HEAD, 2), equalTo(List.of("yes", "we")));
+            }
+
+            @Test
+            void tail() throws AbsentInformationException, FileNotFoundException {
+                assertThat(arrangeAndAct(ArraySampling.TAIL, 2), equalTo(List.of("we", "can")));
+            }
+
+            @Test
+            void stride() throws AbsentInformationException, FileNotFoundException {
+                assertThat(arrangeAndAct(ArraySampling.STRIDE, 2), equalTo(List.of("yes", "can")));
+            }
+        }
+
         @Nested
         class NestedArraysAreRepresentedCorrectly {
             private StackFrameContext arrangeAndAct(int executionDepth)
@@ -350,6 +506,109 @@ public class CollectorAPITest {
             assertThat(threeLevelsDeep.getName(), equalTo("x"));
             assertThat(threeLevelsDeep.getValue(), equalTo(42));
         }
+
+        @Test
+        void objectsInACycleShouldBeExpandedOnlyOnce()
+                throws AbsentInformationException, FileNotFoundException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests = new String[] {"foo.ObjectsTest::aCycle"};
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT
+                            .resolve("objects")
+                            .resolve("cyclic-reference.txt")
+                            .toFile();
+
+            // act
+            EventProcessor eventProcessor =
+                    Collector.invoke(
+                            classpath,
+                            tests,
+                            classesAndBreakpoints,
+                            setExecutionDepth(5)
+                                    .setDeduplicateObjects(true)
+                                    .setSkipReturnValues(true));
+
+            // assert
+            List<RuntimeValue> localVariables =
+                    eventProcessor
+                            .getBreakpointContexts()
+                            .get(0)
+                            .getStackFrameContexts()
+                            .get(0)
+                            .getRuntimeValueCollection();
+            RuntimeValue first = localVariables.get(0);
+            RuntimeValue second = localVariables.get(1);
+
+            assertThat(first.getName(), equalTo("first"));
+            assertThat(first.getObjectId(), is(notNullValue()));
+
+            assertThat(second.getName(), equalTo("second"));
+            assertThat(second.getObjectId(), is(notNullValue()));
+
+            RuntimeValue secondThroughFirst = first.getFields().get(1);
+            assertThat(secondThroughFirst.getName(), equalTo("next"));
+            assertThat(secondThroughFirst.getBackReference(), equalTo(second.getObjectId()));
+            assertThat(secondThroughFirst.getFields(), is(nullValue()));
+
+            RuntimeValue firstThroughSecond = second.getFields().get(1);
+            assertThat(firstThroughSecond.getBackReference(), equalTo(first.getObjectId()));
+            assertThat(firstThroughSecond.getFields(), is(nullValue()));
+        }
+
+        @ParameterizedTest
+        @EnumSource(CaptureBackend.class)
+        void objectReachedAgainWithMoreDepthLeftShouldBeExpandedThere(CaptureBackend backend)
+                throws AbsentInformationException, FileNotFoundException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests = new String[] {"foo.ObjectsTest::aCycle"};
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT
+                            .resolve("objects")
+                            .resolve("cyclic-reference.txt")
+                            .toFile();
+
+            // act
+            EventProcessor eventProcessor =
+                    Collector.invoke(
+                            classpath,
+                            tests,
+                            classesAndBreakpoints,
+                            setExecutionDepth(2)
+                                    .setDeduplicateObjects(true)
+                                    .setSkipReturnValues(true)
+                                    .setCaptureBackend(backend));
+
+            // assert
+            List<RuntimeValue> localVariables =
+                    eventProcessor
+                            .getBreakpointContexts()
+                            .get(0)
+                            .getStackFrameContexts()
+                            .get(0)
+                            .getRuntimeValueCollection();
+            RuntimeValue first = localVariables.get(0);
+            RuntimeValue second = localVariables.get(1);
+
+            // The second node is reached through the first one with too little depth left to
+            // expand its own next node.
+            RuntimeValue secondThroughFirst = first.getFields().get(1);
+            assertThat(secondThroughFirst.getName(), equalTo("next"));
+            assertThat(secondThroughFirst.getObjectId(), is(nullValue()));
+            assertThat(secondThroughFirst.getFields(), is(nullValue()));
+
+            assertThat(second.getName(), equalTo("second"));
+            assertThat(second.getObjectId(), is(notNullValue()));
+            assertThat(secondThroughFirst.getBackReference(), equalTo(second.getObjectId()));
+
+            RuntimeValue firstThroughSecond = second.getFields().get(1);
+            assertThat(firstThroughSecond.getBackReference(), equalTo(first.getObjectId()));
+        }
     }
 
     @Test
@@ -597,4 +856,916 @@ public class CollectorAPITest {
 
         assertThat(returnData.getValue(), equalTo("a"));
     }
+
+    @Nested
+    class InspectingThreads {
+        private EventProcessor arrangeAndAct(CollectorOptions context)
+                throws AbsentInformationException, FileNotFoundException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests =
+                    new String[] {
+                        "foo.BasicMathTest::test_add", "foo.BasicMathTest::test_subtract"
+                    };
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+
+            // act
+            return Collector.invoke(classpath, tests, classesAndBreakpoints, context);
+        }
+
+        @Test
+        void onlySuspendingTheEventThread_collectsTheSameData()
+                throws AbsentInformationException, FileNotFoundException {
+            EventProcessor eventProcessor =
+                    arrangeAndAct(
+                            TestHelper.getDefaultOptions()
+                                    .setSuspendPolicy(SuspendPolicy.EVENT_THREAD));
+
+            // assert
+            assertThat(eventProcessor.getBreakpointContexts().size(), equalTo(2));
+            assertThat(eventProcessor.getReturnValues().size(), equalTo(2));
+        }
+
+        @Test
+        void eventsFromThreadsMatchingTheFilter_areProcessed()
+                throws AbsentInformationException, FileNotFoundException {
+            EventProcessor eventProcessor =
+                    arrangeAndAct(
+                            TestHelper.getDefaultOptions()
+                                    .setThreadNameFilter(Pattern.compile("test-runner")));
+
+            // assert
+            assertThat(eventProcessor.getBreakpointContexts().size(), equalTo(2));
+            assertThat(eventProcessor.getReturnValues().size(), equalTo(2));
+        }
+
+        @Test
+        void eventsFromThreadsNotMatchingTheFilter_areIgnored()
+                throws AbsentInformationException, FileNotFoundException {
+            EventProcessor eventProcessor =
+                    arrangeAndAct(
+                            TestHelper.getDefaultOptions()
+                                    .setThreadNameFilter(Pattern.compile("no-such-thread")));
+
+            // assert
+            assertThat(eventProcessor.getBreakpointContexts(), is(empty()));
+            assertThat(eventProcessor.getReturnValues(), is(empty()));
+        }
+    }
+
+    @Nested
+    class TargetingMethodExits {
+        @Test
+        void returnValuesAreTheSameAsWithClassWideExits()
+                throws AbsentInformationException, FileNotFoundException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests =
+                    new String[] {
+                        "foo.BasicMathTest::test_add", "foo.BasicMathTest::test_subtract"
+                    };
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+
+            // act
+            EventProcessor classWide =
+                    Collector.invoke(
+                            classpath,
+                            tests,
+                            classesAndBreakpoints,
+                            TestHelper.getDefaultOptions());
+            EventProcessor targeted =
+                    Collector.invoke(
+                            classpath,
+                            tests,
+                            classesAndBreakpoints,
+                            TestHelper.getDefaultOptions().setTargetMethodExits(true));
+
+            // assert
+            assertThat(targeted.getReturnValues().size(), equalTo(2));
+            for (int i = 0; i < 2; ++i) {
+                ReturnData expected = classWide.getReturnValues().get(i);
+                ReturnData actual = targeted.getReturnValues().get(i);
+                assertThat(actual.getName(), equalTo(expected.getName()));
+                assertThat(actual.getValue(), equalTo(expected.getValue()));
+            }
+            assertThat(targeted.getBreakpointContexts().size(), equalTo(2));
+        }
+
+        @Test
+        void everyReturnInsideSwitchBlockIsCollected()
+                throws AbsentInformationException, FileNotFoundException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests = new String[] {"foo.SwitchCaseTest::test"};
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT.resolve("switch-case.json").toFile();
+
+            // act
+            EventProcessor eventProcessor =
+                    Collector.invoke(
+                            classpath,
+                            tests,
+                            classesAndBreakpoints,
+                            TestHelper.getDefaultOptions()
+                                    .setSkipBreakpointValues(true)
+                                    .setTargetMethodExits(true));
+
+            // assert
+            assertThat(eventProcessor.getReturnValues().size(), equalTo(8));
+        }
+
+        @Test
+        void onlyTheMethodAskedForIsCollected()
+                throws AbsentInformationException, FileNotFoundException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests = new String[] {"foo.TwinsTest::executeBothMethods"};
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT.resolve("twins").resolve("input.txt").toFile();
+            File methodsForExitEvent =
+                    TestHelper.PATH_TO_INPUT.resolve("twins").resolve("methods.json").toFile();
+
+            // act
+            EventProcessor eventProcessor =
+                    Collector.invoke(
+                            classpath,
+                            tests,
+                            classesAndBreakpoints,
+                            methodsForExitEvent,
+                            TestHelper.getDefaultOptions().setTargetMethodExits(true));
+
+            // assert
+            assertThat(eventProcessor.getReturnValues().size(), equalTo(1));
+            assertThat(eventProcessor.getReturnValues().get(0).getValue(), equalTo("a"));
+        }
+    }
+
+    @Nested
+    class WritingBinaryOutput {
+        /**
+         * Collects the data once, both in memory and into the binary output, so that the unique IDs
+         * of objects are the same in both.
+         */
+        private void assertDecodedDataIsTheCollectedData(
+                Path tempDir, String test, File classesAndBreakpoints, CollectorOptions context)
+                throws AbsentInformationException, IOException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            File output = tempDir.resolve("output.bin").toFile();
+            List<BreakPointContext> expectedBreakpoints = new ArrayList<>();
+            List<ReturnData> expectedReturns = new ArrayList<>();
+            TestHelper.RecordingSink decoded = new TestHelper.RecordingSink();
+
+            // act
+            try (BinarySink binarySink = new BinarySink(output)) {
+                Collector.invoke(
+                        classpath,
+                        new String[] {test},
+                        classesAndBreakpoints,
+                        null,
+                        context,
+                        new CollectedDataSink() {
+                            @Override
+                            public void writeBreakpoint(BreakPointContext breakPointContext)
+                                    throws IOException {
+                                expectedBreakpoints.add(breakPointContext);
+                                binarySink.writeBreakpoint(breakPointContext);
+                            }
+
+                            @Override
+                            public void writeReturn(ReturnData returnData) throws IOException {
+                                expectedReturns.add(returnData);
+                                binarySink.writeReturn(returnData);
+                            }
+
+                            @Override
+                            public void writeHitCount(StateHitCount stateHitCount)
+                                    throws IOException {
+                                expectedBreakpoints
+                                        .get((int) stateHitCount.getBreakpoint())
+                                        .setHitCount(stateHitCount.getHitCount());
+                                binarySink.writeHitCount(stateHitCount);
+                            }
+
+                            @Override
+                            public void finish() {}
+
+                            @Override
+                            public void close() {}
+                        });
+                binarySink.finish();
+            }
+            try (BinaryReader reader = new BinaryReader(new FileInputStream(output))) {
+                reader.readTo(decoded);
+            }
+
+            // assert
+            Gson gson = new GsonBuilder().serializeNulls().create();
+            assertThat(expectedBreakpoints.size() + expectedReturns.size(), greaterThan(0));
+            assertThat(
+                    gson.toJson(decoded.getBreakpointContexts()),
+                    equalTo(gson.toJson(expectedBreakpoints)));
+            assertThat(
+                    gson.toJson(decoded.getReturnValues()), equalTo(gson.toJson(expectedReturns)));
+        }
+
+        @Test
+        void deduplicatedObjectsAndReturnValuesAreDecoded(@TempDir Path tempDir)
+                throws AbsentInformationException, IOException {
+            assertDecodedDataIsTheCollectedData(
+                    tempDir,
+                    "foo.ObjectsTest::aCycle",
+                    TestHelper.PATH_TO_INPUT
+                            .resolve("objects")
+                            .resolve("cyclic-reference.txt")
+                            .toFile(),
+                    setExecutionDepth(5).setDeduplicateObjects(true));
+        }
+
+        @Test
+        void nestedCollectionsAreDecoded(@TempDir Path tempDir)
+                throws AbsentInformationException, IOException {
+            assertDecodedDataIsTheCollectedData(
+                    tempDir,
+                    "foo.CollectionsTest::test_canWeRepresentNestedCollection",
+                    TestHelper.PATH_TO_INPUT
+                            .resolve("collections")
+                            .resolve("nested-collection.txt")
+                            .toFile(),
+                    setExecutionDepth(8));
+        }
+
+        @Test
+        void hitCountsOfFingerprintedStatesAreDecoded(@TempDir Path tempDir)
+                throws AbsentInformationException, IOException {
+            assertDecodedDataIsTheCollectedData(
+                    tempDir,
+                    "foo.BasicMathTest",
+                    TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile(),
+                    TestHelper.getDefaultOptions().setFingerprintStates(true));
+        }
+    }
+
+    @Test
+    void testsRunInParallel_collectTheSameDataInTheSameOrder()
+            throws AbsentInformationException, IOException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests =
+                new String[] {
+                    "foo.BasicMathTest::test_add",
+                    "foo.BasicMathTest::test_subtract",
+                    "foo.BasicMathTest::test_add"
+                };
+        File classesAndBreakpoints = TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+        TestHelper.RecordingSink inParallel = new TestHelper.RecordingSink();
+
+        // act
+        EventProcessor sequentially =
+                Collector.invoke(
+                        classpath, tests, classesAndBreakpoints, TestHelper.getDefaultOptions());
+        Collector.invokeInParallel(
+                classpath,
+                tests,
+                classesAndBreakpoints,
+                null,
+                TestHelper.getDefaultOptions(),
+                2,
+                inParallel);
+
+        // assert
+        Gson gson = new GsonBuilder().serializeNulls().create();
+        assertThat(inParallel.getBreakpointContexts().size(), equalTo(3));
+        assertThat(
+                gson.toJson(inParallel.getBreakpointContexts()),
+                equalTo(gson.toJson(sequentially.getBreakpointContexts())));
+        assertThat(
+                gson.toJson(inParallel.getReturnValues()),
+                equalTo(gson.toJson(sequentially.getReturnValues())));
+    }
+
+    @Test
+    void sharingClassData_collectsTheSameData() throws AbsentInformationException, IOException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[] {"foo.BasicMathTest::test_add"};
+        File classesAndBreakpoints = TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+
+        // act
+        EventProcessor withoutSharing =
+                Collector.invoke(
+                        classpath, tests, classesAndBreakpoints, TestHelper.getDefaultOptions());
+        // The first debuggee dumps the archive and the second one maps it.
+        Collector.invoke(
+                classpath,
+                tests,
+                classesAndBreakpoints,
+                TestHelper.getDefaultOptions().setShareClassData(true));
+        EventProcessor withSharing =
+                Collector.invoke(
+                        classpath,
+                        tests,
+                        classesAndBreakpoints,
+                        TestHelper.getDefaultOptions().setShareClassData(true));
+
+        // assert
+        Gson gson = new GsonBuilder().serializeNulls().create();
+        assertThat(withSharing.getBreakpointContexts().size(), equalTo(1));
+        assertThat(
+                gson.toJson(withSharing.getBreakpointContexts()),
+                equalTo(gson.toJson(withoutSharing.getBreakpointContexts())));
+        assertThat(
+                gson.toJson(withSharing.getReturnValues()),
+                equalTo(gson.toJson(withoutSharing.getReturnValues())));
+    }
+
+    @Test
+    void loggingTheDebuggee_copiesWhatTheTestsPrint(@TempDir Path logDirectory)
+            throws AbsentInformationException, IOException, InterruptedException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[] {"foo.BasicMathTest::test_add"};
+        File classesAndBreakpoints = TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+        CollectorOptions context =
+                TestHelper.getDefaultOptions().setDebuggeeLogDirectory(logDirectory.toFile());
+
+        // act
+        Collector.invoke(classpath, tests, classesAndBreakpoints, context);
+
+        // assert
+        File[] logs = logDirectory.toFile().listFiles((directory, name) -> name.endsWith(".out"));
+        assertThat(logs.length, equalTo(1));
+        // The logs are written by threads of the collector until the debuggee has exited.
+        String output = "";
+        for (int i = 0; i < 100 && !output.contains("tests found"); ++i) {
+            Thread.sleep(100);
+            output = Files.readString(logs[0].toPath());
+        }
+        assertThat(output, containsString("test_add()"));
+        assertThat(
+                new File(logDirectory.toFile(), logs[0].getName().replace(".out", ".err")).exists(),
+                is(true));
+    }
+
+    @Test
+    void loggingTheDebuggee_replacesTheLogOnceItIsFull(@TempDir Path logDirectory)
+            throws AbsentInformationException, IOException, InterruptedException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[] {"foo.BasicMathTest::test_add"};
+        File classesAndBreakpoints = TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+        CollectorOptions context =
+                TestHelper.getDefaultOptions()
+                        .setDebuggeeLogDirectory(logDirectory.toFile())
+                        .setDebuggeeLogSize(64);
+
+        // act
+        Collector.invoke(classpath, tests, classesAndBreakpoints, context);
+
+        // assert
+        File[] logs = logDirectory.toFile().listFiles((directory, name) -> name.endsWith(".out"));
+        assertThat(logs.length, equalTo(1));
+        // The logs are written by threads of the collector until the debuggee has exited.
+        File previous = new File(logs[0].getPath() + ".1");
+        for (int i = 0; i < 100 && !previous.exists(); ++i) {
+            Thread.sleep(100);
+        }
+        assertThat(previous.exists(), is(true));
+    }
+
+    @Test
+    void selectingTestsByCoverage_keepsOnlyTheTestsReachingTheInput()
+            throws AbsentInformationException, IOException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests =
+                new String[] {
+                    "foo.ObjectsTest",
+                    "foo.BasicMathTest",
+                    "foo.RecordMyReturnButWithoutBreakpointsTest"
+                };
+        File classesAndBreakpoints =
+                TestHelper.PATH_TO_INPUT.resolve("basic-math-add.txt").toFile();
+        File methodsForExitEvent =
+                TestHelper.PATH_TO_INPUT
+                        .resolve("return-value-without-breakpoints")
+                        .resolve("methods.json")
+                        .toFile();
+
+        // act
+        String[] selected =
+                TestSelection.select(
+                        classpath,
+                        tests,
+                        List.of(new FileAndBreakpoint("foo.BasicMath", List.of(5))),
+                        List.of(
+                                new MethodForExitEvent(
+                                        "gimmegimmegimme",
+                                        "foo.RecordMyReturnButWithoutBreakpoints")),
+                        new File(System.getProperty("jacoco.agent")));
+        EventProcessor eventProcessor =
+                Collector.invoke(
+                        classpath,
+                        tests,
+                        classesAndBreakpoints,
+                        methodsForExitEvent,
+                        TestHelper.getDefaultOptions()
+                                .setSelectTestsByCoverage(true)
+                                .setJaCoCoAgent(new File(System.getProperty("jacoco.agent"))));
+
+        // assert
+        assertThat(
+                selected,
+                equalTo(
+                        new String[] {
+                            "foo.BasicMathTest::test_add",
+                            "foo.RecordMyReturnButWithoutBreakpointsTest"
+                        }));
+        assertThat(eventProcessor.getBreakpointContexts().size(), equalTo(1));
+        assertThat(eventProcessor.getReturnValues().size(), equalTo(2));
+    }
+
+    @Test
+    void selectingTestsByCoverage_keepsTheTestsThatTimedOutWithoutCachingThem() throws IOException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[] {"foo.BasicMathTest", "foo.HangingTest", "foo.ObjectsTest"};
+        List<FileAndBreakpoint> classesAndBreakpoints =
+                List.of(new FileAndBreakpoint("foo.BasicMath", List.of(5)));
+        File jaCoCoAgent = new File(System.getProperty("jacoco.agent"));
+        System.setProperty(JUnitTestRunner.TIMEOUT_PROPERTY, "5");
+
+        // act
+        String[] selected;
+        String[] selectedAgain;
+        try {
+            selected =
+                    TestSelection.select(
+                            classpath, tests, classesAndBreakpoints, List.of(), jaCoCoAgent);
+            selectedAgain =
+                    TestSelection.select(
+                            classpath, tests, classesAndBreakpoints, List.of(), jaCoCoAgent);
+        } finally {
+            System.clearProperty(JUnitTestRunner.TIMEOUT_PROPERTY);
+        }
+
+        // assert
+        String[] expected = new String[] {"foo.BasicMathTest::test_add", "foo.HangingTest"};
+        assertThat(selected, equalTo(expected));
+        assertThat(selectedAgain, equalTo(expected));
+    }
+
+    @Test
+    void quotas_captureOnlyTheFirstHitsAndReturns()
+            throws AbsentInformationException, FileNotFoundException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests =
+                new String[] {
+                    "foo.BasicMathTest::test_add",
+                    "foo.BasicMathTest::test_add",
+                    "foo.BasicMathTest::test_add"
+                };
+        File classesAndBreakpoints =
+                TestHelper.PATH_TO_INPUT.resolve("basic-math-add.txt").toFile();
+
+        // act
+        EventProcessor eventProcessor =
+                Collector.invoke(
+                        classpath,
+                        tests,
+                        classesAndBreakpoints,
+                        null,
+                        TestHelper.getDefaultOptions()
+                                .setTargetMethodExits(true)
+                                .setMaxHitsPerLine(1)
+                                .setMaxReturnsPerMethod(1));
+
+        // assert
+        assertThat(eventProcessor.getBreakpointContexts().size(), equalTo(1));
+        assertThat(eventProcessor.getReturnValues().size(), equalTo(1));
+    }
+
+    @Test
+    void quotas_shutTheDebuggeeDownOnceClassWideExitsAreExhausted()
+            throws AbsentInformationException, FileNotFoundException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests =
+                new String[] {
+                    "foo.BasicMathTest::test_add",
+                    "foo.BasicMathTest::test_add",
+                    "foo.BasicMathTest::test_add"
+                };
+        File classesAndBreakpoints =
+                TestHelper.PATH_TO_INPUT.resolve("basic-math-add.txt").toFile();
+        List<String> messages = new ArrayList<>();
+        Handler handler =
+                new Handler() {
+                    @Override
+                    public void publish(LogRecord record) {
+                        messages.add(record.getMessage());
+                    }
+
+                    @Override
+                    public void flush() {}
+
+                    @Override
+                    public void close() {}
+                };
+        Logger logger = Logger.getLogger(EventProcessor.class.getName());
+        logger.addHandler(handler);
+
+        // act
+        EventProcessor eventProcessor;
+        try {
+            eventProcessor =
+                    Collector.invoke(
+                            classpath,
+                            tests,
+                            classesAndBreakpoints,
+                            null,
+                            TestHelper.getDefaultOptions()
+                                    .setMaxHitsPerLine(1)
+                                    .setMaxReturnsPerMethod(1));
+        } finally {
+            logger.removeHandler(handler);
+        }
+
+        // assert
+        assertThat(eventProcessor.getBreakpointContexts().size(), equalTo(1));
+        assertThat(eventProcessor.getReturnValues().size(), equalTo(1));
+        assertThat(
+                messages,
+                hasItem("The quotas leave nothing to capture, so the debuggee is shut down."));
+    }
+
+    @Test
+    void quotas_dropWhatDoesNotFitInTheByteBudget()
+            throws AbsentInformationException, FileNotFoundException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[] {"foo.BasicMathTest"};
+        File classesAndBreakpoints = TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+
+        // act
+        EventProcessor eventProcessor =
+                Collector.invoke(
+                        classpath,
+                        tests,
+                        classesAndBreakpoints,
+                        null,
+                        TestHelper.getDefaultOptions().setMaxCapturedBytes(1));
+
+        // assert
+        assertThat(eventProcessor.getBreakpointContexts(), empty());
+        assertThat(eventProcessor.getReturnValues(), empty());
+    }
+
+    @Test
+    void countingHits_countsPerLineMethodAndTest()
+            throws AbsentInformationException, FileNotFoundException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[] {"foo.BasicMathTest", "foo.BasicMathTest::test_add"};
+        File classesAndBreakpoints = TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+
+        // act
+        EventProcessor eventProcessor =
+                Collector.invoke(
+                        classpath,
+                        tests,
+                        classesAndBreakpoints,
+                        null,
+                        TestHelper.getDefaultOptions().setCountHits(true));
+
+        // assert
+        assertThat(eventProcessor.getBreakpointContexts(), empty());
+        HitCountSummary summary = eventProcessor.getHitCounts();
+        assertThat(summary.getBreakpoints().size(), equalTo(2));
+        for (LineHitCount line : summary.getBreakpoints()) {
+            assertThat(line.getFile(), equalTo("foo/BasicMath.java"));
+            if (line.getLineNumber() == 5) {
+                assertThat(line.getHits(), equalTo(2L));
+                assertThat(
+                        line.getHitsPerTest(), equalTo(Map.of("foo.BasicMathTest::test_add", 2L)));
+            } else {
+                assertThat(line.getLineNumber(), equalTo(9));
+                assertThat(
+                        line.getHitsPerTest(),
+                        equalTo(Map.of("foo.BasicMathTest::test_subtract", 1L)));
+            }
+        }
+        assertThat(summary.getReturns().size(), equalTo(2));
+        for (ReturnHitCount method : summary.getReturns()) {
+            assertThat(method.getClassName(), equalTo("foo.BasicMath"));
+            assertThat(method.getHits(), equalTo(method.getMethodName().equals("add") ? 2L : 1L));
+        }
+    }
+
+    @Test
+    void fingerprintingStates_countsRepeatedStatesOnTheFirstSnapshot()
+            throws AbsentInformationException, FileNotFoundException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests =
+                new String[] {
+                    "foo.BasicMathTest::test_add",
+                    "foo.BasicMathTest::test_add",
+                    "foo.BasicMathTest::test_subtract",
+                    "foo.BasicMathTest::test_add"
+                };
+        File classesAndBreakpoints = TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toFile();
+
+        // act
+        EventProcessor eventProcessor =
+                Collector.invoke(
+                        classpath,
+                        tests,
+                        classesAndBreakpoints,
+                        null,
+                        TestHelper.getDefaultOptions()
+                                .setFingerprintStates(true)
+                                .setSkipReturnValues(true));
+
+        // assert
+        List<BreakPointContext> breakpoints = eventProcessor.getBreakpointContexts();
+        assertThat(breakpoints.size(), equalTo(2));
+        assertThat(breakpoints.get(0).getLineNumber(), equalTo(5));
+        assertThat(breakpoints.get(0).getHitCount(), equalTo(3L));
+        assertThat(
+                breakpoints
+                        .get(0)
+                        .getStackFrameContexts()
+                        .get(0)
+                        .getRuntimeValueCollection()
+                        .size(),
+                equalTo(2));
+        assertThat(breakpoints.get(1).getLineNumber(), equalTo(9));
+        assertThat(breakpoints.get(1).getHitCount(), equalTo(1L));
+    }
+
+    @ParameterizedTest
+    @CsvSource({"every-second-hit, 2", "reservoir-of-three-hits, 3", "first-and-last-hit, 2"})
+    void sampling_capturesOnlyTheSampledHits(String input, int expectedHits)
+            throws AbsentInformationException, FileNotFoundException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[5];
+        Arrays.fill(tests, "foo.BasicMathTest::test_add");
+        File classesAndBreakpoints =
+                TestHelper.PATH_TO_INPUT.resolve("sampling").resolve(input + ".txt").toFile();
+
+        // act
+        EventProcessor eventProcessor =
+                Collector.invoke(
+                        classpath,
+                        tests,
+                        classesAndBreakpoints,
+                        null,
+                        TestHelper.getDefaultOptions().setSkipReturnValues(true));
+
+        // assert
+        List<BreakPointContext> breakpoints = eventProcessor.getBreakpointContexts();
+        assertThat(breakpoints.size(), equalTo(expectedHits));
+        for (BreakPointContext breakpoint : breakpoints) {
+            assertThat(breakpoint.getLineNumber(), equalTo(5));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"reservoir-of-three-hits", "first-and-last-hit"})
+    void samplingWithFingerprintedStates_countsRepeatsOnTheSampledSnapshot(String input)
+            throws AbsentInformationException, FileNotFoundException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[5];
+        Arrays.fill(tests, "foo.BasicMathTest::test_add");
+        File classesAndBreakpoints =
+                TestHelper.PATH_TO_INPUT.resolve("sampling").resolve(input + ".txt").toFile();
+
+        // act
+        EventProcessor eventProcessor =
+                Collector.invoke(
+                        classpath,
+                        tests,
+                        classesAndBreakpoints,
+                        null,
+                        TestHelper.getDefaultOptions()
+                                .setFingerprintStates(true)
+                                .setSkipReturnValues(true));
+
+        // assert
+        List<BreakPointContext> breakpoints = eventProcessor.getBreakpointContexts();
+        assertThat(breakpoints.size(), equalTo(1));
+        assertThat(breakpoints.get(0).getLineNumber(), equalTo(5));
+        assertThat(breakpoints.get(0).getHitCount(), equalTo(5L));
+    }
+
+    @Test
+    void snapshotsInTheDebuggee_collectTheSameNestedObjects()
+            throws AbsentInformationException, FileNotFoundException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] tests = new String[] {"foo.ObjectsTest::maybeTwoMoreLevels"};
+        File classesAndBreakpoints =
+                TestHelper.PATH_TO_INPUT
+                        .resolve("objects")
+                        .resolve("multiple-level-nesting.txt")
+                        .toFile();
+        CollectorOptions overJdwp = TestHelper.getDefaultOptions();
+        overJdwp.setExecutionDepth(3);
+        CollectorOptions inTheDebuggee = TestHelper.getDefaultOptions().setSnapshotInDebuggee(true);
+        inTheDebuggee.setExecutionDepth(3);
+
+        // act
+        EventProcessor expected =
+                Collector.invoke(classpath, tests, classesAndBreakpoints, overJdwp);
+        EventProcessor actual =
+                Collector.invoke(classpath, tests, classesAndBreakpoints, inTheDebuggee);
+
+        // assert
+        Gson gson = new GsonBuilder().serializeNulls().create();
+        assertThat(actual.getBreakpointContexts().size(), greaterThan(0));
+        assertThat(
+                gson.toJson(actual.getBreakpointContexts()),
+                equalTo(gson.toJson(expected.getBreakpointContexts())));
+        assertThat(
+                gson.toJson(actual.getReturnValues()),
+                equalTo(gson.toJson(expected.getReturnValues())));
+    }
+
+    @Nested
+    class CapturingWithTheAgent {
+        @Test
+        void nestedObjectsAreTheSameAsOverJdwp()
+                throws AbsentInformationException, FileNotFoundException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests = new String[] {"foo.ObjectsTest::maybeTwoMoreLevels"};
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT
+                            .resolve("objects")
+                            .resolve("multiple-level-nesting.txt")
+                            .toFile();
+            CollectorOptions overJdwp = TestHelper.getDefaultOptions();
+            overJdwp.setExecutionDepth(3);
+            CollectorOptions withTheAgent =
+                    TestHelper.getDefaultOptions().setCaptureBackend(CaptureBackend.AGENT);
+            withTheAgent.setExecutionDepth(3);
+
+            // act
+            EventProcessor expected =
+                    Collector.invoke(classpath, tests, classesAndBreakpoints, overJdwp);
+            EventProcessor actual =
+                    Collector.invoke(classpath, tests, classesAndBreakpoints, withTheAgent);
+
+            // assert
+            Gson gson = new GsonBuilder().serializeNulls().create();
+            assertThat(actual.getBreakpointContexts().size(), greaterThan(0));
+            assertThat(
+                    gson.toJson(actual.getBreakpointContexts()),
+                    equalTo(gson.toJson(expected.getBreakpointContexts())));
+            assertThat(
+                    gson.toJson(actual.getReturnValues()),
+                    equalTo(gson.toJson(expected.getReturnValues())));
+        }
+
+        @Test
+        void onlyTheReturnsOfTheMethodAskedForAreCaptured()
+                throws AbsentInformationException, FileNotFoundException {
+            // arrange
+            String[] classpath =
+                    TestHelper.getMavenClasspathFromBuildDirectory(
+                            TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+            String[] tests = new String[] {"foo.TwinsTest::executeBothMethods"};
+            File classesAndBreakpoints =
+                    TestHelper.PATH_TO_INPUT.resolve("twins").resolve("input.txt").toFile();
+            File methodsForExitEvent =
+                    TestHelper.PATH_TO_INPUT.resolve("twins").resolve("methods.json").toFile();
+
+            // act
+            EventProcessor eventProcessor =
+                    Collector.invoke(
+                            classpath,
+                            tests,
+                            classesAndBreakpoints,
+                            methodsForExitEvent,
+                            TestHelper.getDefaultOptions().setCaptureBackend(CaptureBackend.AGENT));
+
+            // assert
+            assertThat(eventProcessor.getReturnValues().size(), equalTo(1));
+            ReturnData returnData = eventProcessor.getReturnValues().get(0);
+            assertThat(returnData.getValue(), equalTo("a"));
+            assertThat(returnData.getStackTrace().get(0), equalTo("getValue:5, foo.twins.A"));
+        }
+    }
+
+    @Test
+    void jsonStreamingSink_ignoresTheDataThatWasNotAskedFor(@TempDir Path tempDir)
+            throws IOException {
+        // arrange
+        File output = tempDir.resolve("output.json").toFile();
+
+        // act
+        try (JsonStreamingSink sink = new JsonStreamingSink(output, false, true)) {
+            sink.writeBreakpoint(new BreakPointContext("foo/BasicMath.java", 5, List.of()));
+            sink.writeReturn(new ReturnData("add", "int", 3, null, List.of(), List.of()));
+            sink.finish();
+        }
+
+        // assert
+        String json = Files.readString(output.toPath());
+        assertThat(json, containsString("\"breakpoint\""));
+        assertThat(json.contains("\"return\""), is(false));
+    }
+
+    @Test
+    void pipelinedSink_reportsAnErrorOfTheWriterInsteadOfWaitingForIt() {
+        // arrange
+        CollectedDataSink failing =
+                new CollectedDataSink() {
+                    @Override
+                    public void writeBreakpoint(BreakPointContext breakPointContext) {
+                        throw new OutOfMemoryError("Serialising the breakpoint");
+                    }
+
+                    @Override
+                    public void writeReturn(ReturnData returnData) {}
+
+                    @Override
+                    public void writeHitCount(StateHitCount stateHitCount) {}
+
+                    @Override
+                    public void finish() {}
+
+                    @Override
+                    public void close() {}
+                };
+
+        // act and assert
+        assertTimeoutPreemptively(
+                Duration.ofSeconds(30),
+                () -> {
+                    try (PipelinedSink sink =
+                            new PipelinedSink(failing, 1, BackpressurePolicy.BLOCK)) {
+                        IOException failure =
+                                assertThrows(
+                                        IOException.class,
+                                        () -> {
+                                            for (int i = 0; i < 10; ++i) {
+                                                sink.writeBreakpoint(
+                                                        new BreakPointContext(
+                                                                "foo/BasicMath.java",
+                                                                5,
+                                                                List.of()));
+                                            }
+                                            sink.finish();
+                                        });
+                        assertThat(failure.getCause(), instanceOf(OutOfMemoryError.class));
+                    }
+                });
+    }
 }
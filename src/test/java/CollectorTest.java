@@ -10,14 +10,20 @@ import com.google.gson.Gson;
 import com.google.gson.internal.LinkedTreeMap;
 import com.google.gson.stream.JsonReader;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import se.kth.debug.Collector;
+import se.kth.debug.CollectorDaemon;
 
 public class CollectorTest {
     @Test
@@ -82,6 +88,8 @@ public class CollectorTest {
         assertThat(
                 errorStream.toString(), containsString("com.sun.jdi.AbsentInformationException"));
         assertThat(outputJson.toFile(), not(anExistingFile()));
+        // segments of the output are not left behind either
+        assertThat(tempDir.toFile().list(), emptyArray());
     }
 
     @Nested
@@ -309,4 +317,232 @@ public class CollectorTest {
         String actualOutput = Files.readString(outputJson);
         assertThat(actualOutput, equalTo(expectedOutput));
     }
+
+    @Test
+    void outputShouldNotChange_evenIfTheWriterFallsBehind(@TempDir Path tempDir)
+            throws IOException {
+        // arrange
+        Path outputJson = tempDir.resolve("output.json");
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String[] args = {
+            "-i",
+            TestHelper.PATH_TO_INPUT.resolve("special-floating-point-value.txt").toString(),
+            "-p",
+            StringUtils.join(classpath, " "),
+            "-t",
+            "foo.SpecialFloatingPointValueTest::test_generateNaN",
+            "-o",
+            outputJson.toString(),
+            "--output-queue-capacity",
+            "1",
+            "--backpressure-policy",
+            "BLOCK"
+        };
+
+        // act
+        Collector.main(args);
+
+        // assert
+        String expectedOutput =
+                Files.readString(
+                        TestHelper.PATH_TO_EXPECTED_OUTPUT.resolve(
+                                "special-floating-point-value.json"));
+        String actualOutput = Files.readString(outputJson);
+        assertThat(actualOutput, equalTo(expectedOutput));
+    }
+
+    @Test
+    void daemon_runsJobsOneAfterTheOtherInTheSameDebuggee(@TempDir Path tempDir)
+            throws IOException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        String expectedOutput =
+                Files.readString(
+                        TestHelper.PATH_TO_EXPECTED_OUTPUT.resolve(
+                                "special-floating-point-value.json"));
+
+        try (CollectorDaemon daemon = new CollectorDaemon(classpath)) {
+            int port = daemon.start(0);
+            Thread server =
+                    new Thread(
+                            () -> {
+                                try {
+                                    daemon.serve();
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            });
+            server.start();
+
+            // act
+            Path first = tempDir.resolve("first.json");
+            Path second = tempDir.resolve("second.json");
+            // the classes of this job were loaded by the first one
+            Path third = tempDir.resolve("third.json");
+            Collector.main(
+                    new String[] {
+                        "--daemon-port",
+                        String.valueOf(port),
+                        "-i",
+                        TestHelper.PATH_TO_INPUT
+                                .resolve("special-floating-point-value.txt")
+                                .toString(),
+                        "-p",
+                        StringUtils.join(classpath, " "),
+                        "-t",
+                        "foo.SpecialFloatingPointValueTest::test_generateNaN",
+                        "-o",
+                        first.toString()
+                    });
+            Collector.main(
+                    new String[] {
+                        "--daemon-port",
+                        String.valueOf(port),
+                        "-i",
+                        TestHelper.PATH_TO_INPUT.resolve("basic-math.txt").toString(),
+                        "-p",
+                        StringUtils.join(classpath, " "),
+                        "-t",
+                        "foo.BasicMathTest::test_add foo.BasicMathTest::test_subtract",
+                        "-o",
+                        second.toString()
+                    });
+            Collector.main(
+                    new String[] {
+                        "--daemon-port",
+                        String.valueOf(port),
+                        "-i",
+                        TestHelper.PATH_TO_INPUT
+                                .resolve("special-floating-point-value.txt")
+                                .toString(),
+                        "-p",
+                        StringUtils.join(classpath, " "),
+                        "-t",
+                        "foo.SpecialFloatingPointValueTest::test_generateNaN",
+                        "-o",
+                        third.toString()
+                    });
+
+            // assert
+            assertThat(Files.readString(first), equalTo(expectedOutput));
+            try (JsonReader jsonReader = new JsonReader(new FileReader(second.toFile()))) {
+                Object json = new Gson().fromJson(jsonReader, Object.class);
+                assertThat((List<?>) (((LinkedTreeMap<?, ?>) json).get("breakpoint")), hasSize(2));
+                assertThat((List<?>) (((LinkedTreeMap<?, ?>) json).get("return")), hasSize(2));
+            }
+            assertThat(Files.readString(third), equalTo(expectedOutput));
+        }
+    }
+
+    @Test
+    void daemon_refusesJobsWithoutItsToken(@TempDir Path tempDir) throws IOException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+        Path output = tempDir.resolve("output.json");
+
+        try (CollectorDaemon daemon = new CollectorDaemon(classpath)) {
+            int port = daemon.start(0);
+            Thread server =
+                    new Thread(
+                            () -> {
+                                try {
+                                    daemon.serve();
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            });
+            server.start();
+
+            // act
+            String response;
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                    PrintWriter out =
+                            new PrintWriter(
+                                    new OutputStreamWriter(
+                                            socket.getOutputStream(), StandardCharsets.UTF_8),
+                                    true);
+                    BufferedReader in =
+                            new BufferedReader(
+                                    new InputStreamReader(
+                                            socket.getInputStream(), StandardCharsets.UTF_8))) {
+                out.println("not-the-token");
+                out.println(
+                        new Gson()
+                                .toJson(
+                                        new String[] {
+                                            "-i",
+                                            TestHelper.PATH_TO_INPUT
+                                                    .resolve("basic-math.txt")
+                                                    .toString(),
+                                            "-p",
+                                            StringUtils.join(classpath, " "),
+                                            "-t",
+                                            "foo.BasicMathTest::test_add",
+                                            "-o",
+                                            output.toString()
+                                        }));
+                response = in.readLine();
+            }
+
+            // assert
+            assertThat(response, not(equalTo(CollectorDaemon.OK)));
+            assertThat(output.toFile(), not(anExistingFile()));
+            Path tokenFile = CollectorDaemon.getDefaultTokenFile(port).toPath();
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                assertThat(
+                        Files.getPosixFilePermissions(tokenFile),
+                        equalTo(PosixFilePermissions.fromString("rw-------")));
+            }
+        }
+    }
+
+    @Test
+    void daemon_answersJobsWhileAnotherClientSendsNothing() throws IOException {
+        // arrange
+        String[] classpath =
+                TestHelper.getMavenClasspathFromBuildDirectory(
+                        TestHelper.PATH_TO_SAMPLE_MAVEN_PROJECT.resolve("with-debug"));
+
+        try (CollectorDaemon daemon = new CollectorDaemon(classpath)) {
+            int port = daemon.start(0);
+            Thread server =
+                    new Thread(
+                            () -> {
+                                try {
+                                    daemon.serve();
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            });
+            server.start();
+
+            // act
+            String response;
+            try (Socket silent = new Socket(InetAddress.getLoopbackAddress(), port);
+                    Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                    PrintWriter out =
+                            new PrintWriter(
+                                    new OutputStreamWriter(
+                                            socket.getOutputStream(), StandardCharsets.UTF_8),
+                                    true);
+                    BufferedReader in =
+                            new BufferedReader(
+                                    new InputStreamReader(
+                                            socket.getInputStream(), StandardCharsets.UTF_8))) {
+                // Shorter than the time the daemon waits for the silent client.
+                socket.setSoTimeout(5000);
+                out.println("not-the-token");
+                response = in.readLine();
+            }
+
+            // assert
+            assertThat(response, startsWith("The job was refused"));
+        }
+    }
 }
@@ -1,5 +1,7 @@
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.matchesPattern;
+import static org.hamcrest.Matchers.stringContainsInOrder;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -21,6 +23,13 @@ class JUnitTestRunnerTest {
     private String getActualLogs(String tests)
             throws IOException, InterruptedException, ClassNotFoundException {
         Path actualLog = Files.createFile(tempDir.resolve("log.txt"));
+        Process p = runTests(tests, actualLog);
+        p.waitFor(); // to ensure that logs are generated
+
+        return Files.readString(actualLog);
+    }
+
+    private Process runTests(String tests, Path log) throws IOException {
         String classpath =
                 Utility.getClasspathForRunningJUnit(
                         TestHelper.getMavenClasspathFromBuildDirectory(
@@ -30,12 +39,10 @@ class JUnitTestRunnerTest {
         ProcessBuilder processBuilder =
                 new ProcessBuilder(
                         "java", "-cp", classpath, JUnitTestRunner.class.getCanonicalName(), tests);
-        processBuilder.redirectOutput(actualLog.toFile());
+        processBuilder.redirectOutput(log.toFile());
+        processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
 
-        Process p = processBuilder.start();
-        p.waitFor(); // to ensure that logs are generated
-
-        return Files.readString(actualLog);
+        return processBuilder.start();
     }
 
     @Test
@@ -55,4 +62,33 @@ class JUnitTestRunnerTest {
 
         assertThat(getActualLogs(tests), matchesPattern(Files.readString(expectedLogRegex)));
     }
+
+    @Test
+    void main_failsIfNoTestsAreFound() throws IOException, InterruptedException {
+        // act
+        Process p = runTests("foo.junit.NoSuchTest", tempDir.resolve("log.txt"));
+
+        // assert
+        assertThat(p.waitFor(), equalTo(2));
+    }
+
+    @Test
+    void main_runsTestsInTheGivenOrderAndRepeatedTestsAgain()
+            throws IOException, InterruptedException, ClassNotFoundException {
+        // act
+        String tests =
+                "foo.junit.JUnit5Test::test_subtract foo.junit.JUnit5Test::test_add"
+                        + " foo.junit.JUnit5Test::test_subtract";
+        String actualLogs = getActualLogs(tests);
+
+        // assert
+        assertThat(
+                actualLogs,
+                stringContainsInOrder(
+                        "test_subtract()",
+                        "test_add()",
+                        "2 tests successful",
+                        "test_subtract()",
+                        "1 tests successful"));
+    }
 }
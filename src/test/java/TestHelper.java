@@ -2,8 +2,13 @@ import java.io.FileNotFoundException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import se.kth.debug.CollectorOptions;
+import se.kth.debug.output.CollectedDataSink;
+import se.kth.debug.struct.result.BreakPointContext;
+import se.kth.debug.struct.result.ReturnData;
+import se.kth.debug.struct.result.StateHitCount;
 
 public class TestHelper {
     public static final Path PATH_TO_SAMPLE_MAVEN_PROJECT =
@@ -41,4 +46,41 @@ public class TestHelper {
         context.setSkipPrintingField(false);
         return context;
     }
+
+    /** Keeps whatever it receives in memory. */
+    public static class RecordingSink implements CollectedDataSink {
+        private final List<BreakPointContext> breakpointContexts = new ArrayList<>();
+        private final List<ReturnData> returnValues = new ArrayList<>();
+
+        @Override
+        public void writeBreakpoint(BreakPointContext breakPointContext) {
+            breakpointContexts.add(breakPointContext);
+        }
+
+        @Override
+        public void writeReturn(ReturnData returnData) {
+            returnValues.add(returnData);
+        }
+
+        @Override
+        public void writeHitCount(StateHitCount stateHitCount) {
+            breakpointContexts
+                    .get((int) stateHitCount.getBreakpoint())
+                    .setHitCount(stateHitCount.getHitCount());
+        }
+
+        @Override
+        public void finish() {}
+
+        @Override
+        public void close() {}
+
+        public List<BreakPointContext> getBreakpointContexts() {
+            return breakpointContexts;
+        }
+
+        public List<ReturnData> getReturnValues() {
+            return returnValues;
+        }
+    }
 }
@@ -41,6 +41,21 @@ public class UtilityTest {
                 hasItems(expectedClasspath.split(File.pathSeparator)));
     }
 
+    @Test
+    void getClasspathForRunningJUnit_providedClasspathKeepsItsOrder(@TempDir Path tempDir)
+            throws IOException {
+        String[] providedClasspath = new String[8];
+        for (int i = 0; i < providedClasspath.length; ++i) {
+            providedClasspath[i] =
+                    Files.createFile(tempDir.resolve("dependency-" + i + ".jar")).toString();
+        }
+
+        String actualClasspath = Utility.getClasspathForRunningJUnit(providedClasspath);
+
+        String expectedEnd = String.join(File.pathSeparator, providedClasspath);
+        assertThat(actualClasspath, endsWith(expectedEnd));
+    }
+
     @Test
     void getJaCoCoJavaagentJar_throws_ClassNotFoundException() {
         assertThrowsExactly(ClassNotFoundException.class, Utility::getJaCoCoJavaagentJar);
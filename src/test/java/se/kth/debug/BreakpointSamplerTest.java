@@ -0,0 +1,75 @@
+package se.kth.debug;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import com.sun.jdi.Location;
+import com.sun.jdi.ReferenceType;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import se.kth.debug.struct.FileAndBreakpoint;
+import se.kth.debug.struct.HitSampling;
+import se.kth.debug.struct.result.BreakPointContext;
+
+class BreakpointSamplerTest {
+    @Test
+    void lastHitsAreTheLastRetainedOnesInOrder() {
+        // arrange
+        BreakpointSampler sampler =
+                new BreakpointSampler(
+                        new BreakpointIndex(
+                                List.of(
+                                        new FileAndBreakpoint(
+                                                "foo.Sampled",
+                                                List.of(5),
+                                                new HitSampling(HitSampling.Policy.FIRST_LAST, 2))),
+                                null));
+        Location location = location("foo.Sampled", 5);
+
+        // act
+        for (int hit = 1; hit <= 6; hit++) {
+            sampler.sample(location, null);
+            // The last hit is in a state seen before, so it is counted but not retained.
+            if (hit < 6) {
+                sampler.retain(location, new BreakPointContext("foo.Sampled", hit, List.of()));
+            }
+        }
+
+        // assert
+        assertThat(
+                sampler.drain().stream()
+                        .map(BreakPointContext::getLineNumber)
+                        .collect(Collectors.toList()),
+                contains(4, 5));
+    }
+
+    private static Location location(String className, int lineNumber) {
+        ReferenceType type =
+                (ReferenceType)
+                        Proxy.newProxyInstance(
+                                ReferenceType.class.getClassLoader(),
+                                new Class<?>[] {ReferenceType.class},
+                                (proxy, method, args) -> {
+                                    if (method.getName().equals("name")) {
+                                        return className;
+                                    }
+                                    throw new UnsupportedOperationException(method.getName());
+                                });
+        return (Location)
+                Proxy.newProxyInstance(
+                        Location.class.getClassLoader(),
+                        new Class<?>[] {Location.class},
+                        (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "declaringType":
+                                    return type;
+                                case "lineNumber":
+                                    return lineNumber;
+                                default:
+                                    throw new UnsupportedOperationException(method.getName());
+                            }
+                        });
+    }
+}
@@ -0,0 +1,70 @@
+package se.kth.debug;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import com.sun.jdi.ReferenceType;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ReferenceTypeCacheTest {
+    @Test
+    void metadataOfAnUnloadedClassIsRequestedAgain() {
+        // arrange
+        ReferenceTypeCache cache = new ReferenceTypeCache();
+        AtomicInteger requests = new AtomicInteger();
+        ReferenceType unloaded = countingFieldRequests("foo.Unloaded", requests);
+        ReferenceType kept = countingFieldRequests("foo.Kept", requests);
+        cache.getVisibleFields(unloaded);
+        cache.getVisibleFields(kept);
+
+        // act
+        cache.invalidate("foo.Unloaded");
+        cache.getVisibleFields(unloaded);
+        cache.getVisibleFields(kept);
+
+        // assert
+        assertThat(requests.get(), equalTo(3));
+    }
+
+    @Test
+    void metadataIsRequestedOncePerType() {
+        // arrange
+        ReferenceTypeCache cache = new ReferenceTypeCache();
+        AtomicInteger requests = new AtomicInteger();
+        ReferenceType type = countingFieldRequests("foo.Cached", requests);
+
+        // act
+        cache.getVisibleFields(type);
+        cache.isPrimitiveWrapper(type);
+        cache.getValueField(type);
+
+        // assert
+        assertThat(requests.get(), equalTo(1));
+    }
+
+    /** Returns a type that counts how many times its fields are requested over JDWP. */
+    private static ReferenceType countingFieldRequests(String name, AtomicInteger requests) {
+        return (ReferenceType)
+                Proxy.newProxyInstance(
+                        ReferenceType.class.getClassLoader(),
+                        new Class<?>[] {ReferenceType.class},
+                        (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "name":
+                                    return name;
+                                case "visibleFields":
+                                    requests.incrementAndGet();
+                                    return List.of();
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "equals":
+                                    return proxy == args[0];
+                                default:
+                                    throw new UnsupportedOperationException(method.getName());
+                            }
+                        });
+    }
+}
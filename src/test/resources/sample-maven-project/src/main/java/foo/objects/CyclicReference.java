@@ -0,0 +1,20 @@
+package foo.objects;
+
+public class CyclicReference {
+    public static int sumOfCycle() {
+        Node first = new Node(1);
+        Node second = new Node(2);
+        first.next = second;
+        second.next = first;
+        return first.value + second.value;
+    }
+}
+
+class Node {
+    final int value;
+    Node next;
+
+    Node(int value) {
+        this.value = value;
+    }
+}
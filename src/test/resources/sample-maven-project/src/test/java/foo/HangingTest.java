@@ -0,0 +1,10 @@
+package foo;
+
+import org.junit.jupiter.api.Test;
+
+public class HangingTest {
+    @Test
+    void test_hang() throws InterruptedException {
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
@@ -5,6 +5,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
 
+import foo.objects.CyclicReference;
 import foo.objects.OneLevelNestedObject;
 import foo.objects.MultipleLevelNestedObject;
 
@@ -20,4 +21,9 @@ public class ObjectsTest {
         MultipleLevelNestedObject m = new MultipleLevelNestedObject();
         assertEquals(42, m.meaningOfLife());
     }
+
+    @Test
+    void aCycle() {
+        assertEquals(3, CyclicReference.sumOfCycle());
+    }
 }